@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.goots.exploder.types.InflaterGzipInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A seek index for a compressed tar (.tar.gz / .tar.xz) recording the uncompressed offset and size
+ * of each member, so a single member may be extracted without decoding the whole archive.
+ * <p>
+ * For gzip the index also holds a checkpoint at the start of every gzip member (e.g. as written by
+ * pigz {@code --independent} or bgzip) from which inflation may be restarted ; decoding then only
+ * covers the window between the checkpoint and the member. Only multi-member gzip files benefit: an
+ * ordinary single member gzip has one checkpoint, at its start, and is always decoded (though not
+ * written) up to the member, as restarting within a deflate stream would need the inflater to be
+ * primed with its window and bit offset, which {@link java.util.zip.Inflater} does not support. For xz
+ * the block index held within the xz file itself is used so only block offsets are implied.
+ */
+class ArchiveIndex
+{
+    static final String GZIP = "gz";
+
+    static final String XZ = "xz";
+
+    private static final String HEADER = "exploder-index 1";
+
+    private static final Logger logger = LoggerFactory.getLogger( ArchiveIndex.class );
+
+    private final String format;
+
+    private final File source;
+
+    private final List<long[]> checkpoints = new ArrayList<>();
+
+    private final Map<String, long[]> members = new HashMap<>();
+
+    ArchiveIndex( String format, File source )
+    {
+        this.format = format;
+        this.source = source;
+    }
+
+    String getFormat()
+    {
+        return format;
+    }
+
+    File getSource()
+    {
+        return source;
+    }
+
+    void addCheckpoint( long compressedOffset, long uncompressedOffset )
+    {
+        checkpoints.add( new long[] { compressedOffset, uncompressedOffset } );
+    }
+
+    void addMember( String name, long offset, long size )
+    {
+        members.put( name, new long[] { offset, size } );
+    }
+
+    /**
+     * @param name the member name.
+     * @return the uncompressed offset and size of the member, or null if not indexed.
+     */
+    long[] getMember( String name )
+    {
+        return members.get( name );
+    }
+
+    /**
+     * Opens the source positioned at the specified uncompressed offset, decoding as little as the
+     * format allows.
+     *
+     * @param offset the uncompressed offset.
+     * @return the positioned stream.
+     * @throws IOException if an error occurs.
+     */
+    InputStream open( long offset ) throws IOException
+    {
+        if ( XZ.equals( format ) )
+        {
+            SeekableXZInputStream xz = new SeekableXZInputStream( new SeekableFileInputStream( source ) );
+            xz.seek( offset );
+            return xz;
+        }
+
+        long[] checkpoint = { 0, 0 };
+        for ( long[] c : checkpoints )
+        {
+            if ( c[1] <= offset )
+            {
+                checkpoint = c;
+            }
+        }
+        logger.debug( "Restarting inflation of {} at {} for offset {}", source, checkpoint, offset );
+
+        FileInputStream input = new FileInputStream( source );
+        input.getChannel().position( checkpoint[0] );
+        InputStream gzip = new InflaterGzipInputStream( input );
+        IOUtils.skipFully( gzip, offset - checkpoint[1] );
+        return gzip;
+    }
+
+    /**
+     * @param cacheDirectory the index cache directory.
+     * @param source the compressed tar.
+     * @return the location of the index for the source within the cache directory.
+     */
+    static File getIndexFile( File cacheDirectory, File source )
+    {
+        return new File( cacheDirectory, source.getName() + '-'
+                        + DigestUtils.sha1Hex( source.getAbsolutePath() ).substring( 0, 16 ) + ".idx" );
+    }
+
+    void save( File indexFile ) throws IOException
+    {
+        indexFile.getParentFile().mkdirs();
+
+        try ( PrintWriter writer = new PrintWriter( Files.newBufferedWriter( indexFile.toPath(), StandardCharsets.UTF_8 ) ) )
+        {
+            writer.println( HEADER );
+            writer.println( "format " + format );
+            writer.println( "source " + source.length() + ' ' + source.lastModified() );
+            for ( long[] c : checkpoints )
+            {
+                writer.println( "checkpoint " + c[0] + ' ' + c[1] );
+            }
+            for ( Map.Entry<String, long[]> m : members.entrySet() )
+            {
+                writer.println( "member " + m.getValue()[0] + ' ' + m.getValue()[1] + ' ' + m.getKey() );
+            }
+        }
+        logger.debug( "Saved index of {} members for {} to {}", members.size(), source, indexFile );
+    }
+
+    /**
+     * @param indexFile the persisted index.
+     * @param source the compressed tar.
+     * @return the index or null if there is none or it does not match the current source.
+     * @throws IOException if an error occurs.
+     */
+    static ArchiveIndex load( File indexFile, File source ) throws IOException
+    {
+        if ( ! indexFile.exists() )
+        {
+            return null;
+        }
+        try ( BufferedReader reader = Files.newBufferedReader( indexFile.toPath(), StandardCharsets.UTF_8 ) )
+        {
+            if ( ! HEADER.equals( reader.readLine() ) )
+            {
+                return null;
+            }
+            ArchiveIndex index = new ArchiveIndex( reader.readLine().substring( "format ".length() ), source );
+            if ( ! ( "source " + source.length() + ' ' + source.lastModified() ).equals( reader.readLine() ) )
+            {
+                logger.debug( "Ignoring stale index {}", indexFile );
+                return null;
+            }
+
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                String[] fields = line.split( " ", 4 );
+                if ( "checkpoint".equals( fields[0] ) )
+                {
+                    index.addCheckpoint( Long.parseLong( fields[1] ), Long.parseLong( fields[2] ) );
+                }
+                else if ( "member".equals( fields[0] ) )
+                {
+                    index.addMember( fields[3], Long.parseLong( fields[1] ), Long.parseLong( fields[2] ) );
+                }
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read only window over a region of a file, e.g. the data of a STORED zip entry, so that a nested
+ * zip may be opened in place. Closing the window does not close the underlying file channel.
+ */
+class BoundedSeekableByteChannel implements SeekableByteChannel
+{
+    private final FileChannel channel;
+
+    private final long start;
+
+    private final long size;
+
+    private long position;
+
+    private boolean open = true;
+
+    /**
+     * @param channel the file channel.
+     * @param start the offset of the window within the file.
+     * @param size the size of the window.
+     */
+    BoundedSeekableByteChannel( FileChannel channel, long start, long size )
+    {
+        this.channel = channel;
+        this.start = start;
+        this.size = size;
+    }
+
+    /**
+     * @param offset the offset within this window.
+     * @param length the size of the new window.
+     * @return a window over a region of this one.
+     */
+    BoundedSeekableByteChannel slice( long offset, long length )
+    {
+        if ( offset < 0 || length < 0 || offset + length > size )
+        {
+            throw new IllegalArgumentException( "Region " + offset + '+' + length + " lies outside window of " + size );
+        }
+        return new BoundedSeekableByteChannel( channel, start + offset, length );
+    }
+
+    /**
+     * @return the content of the window mapped read only from the file.
+     * @throws IOException if an error occurs.
+     */
+    MappedByteBuffer map() throws IOException
+    {
+        return channel.map( FileChannel.MapMode.READ_ONLY, start, size );
+    }
+
+    @Override
+    public int read( ByteBuffer dst ) throws IOException
+    {
+        checkOpen();
+        long remaining = size - position;
+        if ( remaining <= 0 )
+        {
+            return -1;
+        }
+        ByteBuffer bounded = dst;
+        if ( dst.remaining() > remaining )
+        {
+            bounded = dst.duplicate();
+            bounded.limit( bounded.position() + (int) remaining );
+        }
+        int n = channel.read( bounded, start + position );
+        if ( n > 0 )
+        {
+            if ( bounded != dst )
+            {
+                dst.position( dst.position() + n );
+            }
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public int write( ByteBuffer src )
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException
+    {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position( long newPosition ) throws IOException
+    {
+        checkOpen();
+        if ( newPosition < 0 )
+        {
+            throw new IllegalArgumentException( "Negative position " + newPosition );
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+        checkOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate( long size )
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public void close()
+    {
+        open = false;
+    }
+
+    private void checkOpen() throws ClosedChannelException
+    {
+        if ( ! open )
+        {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+/**
+ * Allows an in-flight unpack to be cancelled from another thread. The unpack checks the handle
+ * between entries and within its copy loops ; once cancelled it will close its streams, clean up
+ * and throw a {@link CancelledException}.
+ */
+public class CancellationHandle
+{
+    private volatile boolean cancelled;
+
+    /**
+     * Request cancellation of any unpack using this handle.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Records the progress of an unpack so that a restarted job may skip the archives and entries
+ * that have already been extracted. Archives are keyed by their archive chain (e.g.
+ * {@code app.ear!/lib/x.war}) which, unlike the on-disk path, does not depend upon the
+ * per-JVM {@link Exploder#ARCHIVE_UNPACK_SUFFIX}.
+ */
+class Checkpoint
+{
+    /**
+     * Number of completed entries and archives between periodic writes of the checkpoint file.
+     */
+    static final int INTERVAL = 1000;
+
+    private static final String SUFFIX = "suffix";
+
+    private static final String COMPLETE = "complete.";
+
+    private static final String PROGRESS = "progress.";
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Properties state = new Properties();
+
+    private final File file;
+
+    private int pending;
+
+    Checkpoint( File file ) throws InternalException
+    {
+        this.file = file;
+
+        if ( file.exists() )
+        {
+            try ( InputStream input = Files.newInputStream( file.toPath() ) )
+            {
+                state.load( input );
+            }
+            catch ( IOException e )
+            {
+                throw new InternalException( "Unable to read checkpoint " + file, e );
+            }
+            logger.debug( "Resuming from checkpoint {}", file );
+        }
+    }
+
+    /**
+     * Renames any unpack directories created by a previous JVM (which will have used a different
+     * unique suffix) so that they match the current {@link Exploder#ARCHIVE_UNPACK_SUFFIX}.
+     *
+     * @param root the directory the previous run unpacked into.
+     * @param shared whether the root also holds unrelated content (an archive unpacked beside itself,
+     *               without a target directory) ; only the parts of the root named by the recorded archive
+     *               chains are then walked, rather than the whole of the root.
+     * @throws InternalException if an error occurs.
+     */
+    synchronized void restore( File root, boolean shared ) throws InternalException
+    {
+        String previous = state.getProperty( SUFFIX );
+
+        if ( previous != null && !previous.equals( Exploder.ARCHIVE_UNPACK_SUFFIX ) && root.isDirectory() )
+        {
+            try
+            {
+                Set<Path> starts = new TreeSet<>();
+                if ( shared )
+                {
+                    for ( String key : state.stringPropertyNames() )
+                    {
+                        String chain = key.startsWith( COMPLETE ) ? key.substring( COMPLETE.length() ) :
+                                        key.startsWith( PROGRESS ) ? key.substring( PROGRESS.length() ) : null;
+                        if ( chain != null )
+                        {
+                            // The first segment holds the archive or, if it was unpacked in place, its unpack directory.
+                            String segment = chain.split( "[/!]", 2 )[0];
+                            starts.add( root.toPath().resolve( segment ) );
+                            starts.add( root.toPath().resolve( segment + previous ) );
+                        }
+                    }
+                    starts.removeIf( p -> ! Files.isDirectory( p ) );
+                }
+                else
+                {
+                    starts.add( root.toPath() );
+                }
+                for ( Path start : starts )
+                {
+                    restore( start, previous );
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new InternalException( "Unable to restore previously unpacked directories", e );
+            }
+        }
+        state.setProperty( SUFFIX, Exploder.ARCHIVE_UNPACK_SUFFIX );
+    }
+
+    /**
+     * Renames the unpack directories within the start, deepest first, from the previous suffix.
+     */
+    private void restore( Path start, String previous ) throws IOException
+    {
+        Files.walkFileTree( start, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult postVisitDirectory( Path dir, IOException e ) throws IOException
+            {
+                String name = dir.getFileName().toString();
+                if ( name.endsWith( previous ) )
+                {
+                    Path renamed = dir.resolveSibling(
+                                    name.substring( 0, name.length() - previous.length() )
+                                                    + Exploder.ARCHIVE_UNPACK_SUFFIX );
+                    logger.debug( "Renaming previously unpacked {} to {}", dir, renamed );
+                    Files.move( dir, renamed );
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+    }
+
+    synchronized boolean isComplete( String key )
+    {
+        return state.containsKey( COMPLETE + key );
+    }
+
+    /**
+     * Returns the number of entries (in archive order) of the specified archive that were
+     * completed by a previous run.
+     *
+     * @param key the archive chain.
+     * @return the index of the first incomplete entry.
+     */
+    synchronized long getEntryIndex( String key )
+    {
+        String progress = state.getProperty( PROGRESS + key );
+
+        return progress == null ? 0 : Long.parseLong( progress.substring( 0, progress.indexOf( ',' ) ) );
+    }
+
+    /**
+     * @param key the archive chain.
+     * @return the tracker to which the entries of the archive are reported as they are written.
+     */
+    Entries entries( String key )
+    {
+        return new Entries( key );
+    }
+
+    /**
+     * Writes the checkpoint file if enough entries and archives have completed since it was last written.
+     *
+     * @throws InternalException if an error occurs.
+     */
+    synchronized void saveIfDue() throws InternalException
+    {
+        if ( pending >= INTERVAL )
+        {
+            save();
+        }
+    }
+
+    /**
+     * Records the archive as complete. As with entry progress the checkpoint file is only written
+     * periodically ; the unpack writes it once more on failure.
+     *
+     * @param key the archive chain.
+     * @throws InternalException if an error occurs.
+     */
+    synchronized void archiveCompleted( String key ) throws InternalException
+    {
+        state.remove( PROGRESS + key );
+        state.setProperty( COMPLETE + key, Boolean.TRUE.toString() );
+        pending++;
+        saveIfDue();
+    }
+
+    /**
+     * Atomically writes the current state to the checkpoint file.
+     *
+     * @throws InternalException if an error occurs.
+     */
+    synchronized void save() throws InternalException
+    {
+        File temporary = new File( file.getPath() + ".tmp" );
+
+        try
+        {
+            try ( OutputStream output = Files.newOutputStream( temporary.toPath() ) )
+            {
+                state.store( output, "Exploder checkpoint" );
+            }
+            Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE );
+            pending = 0;
+        }
+        catch ( IOException e )
+        {
+            throw new InternalException( "Unable to write checkpoint " + file, e );
+        }
+    }
+
+    /**
+     * Removes the checkpoint once the unpack has completed successfully.
+     */
+    synchronized void delete()
+    {
+        if ( ! file.delete() && file.exists() )
+        {
+            logger.warn( "Unable to remove completed checkpoint {}", file );
+        }
+    }
+
+    /**
+     * Tracks the entries of an archive as they are written. Entries queued for write-behind, or extracted
+     * by parallel readers, may be written out of order, so the progress recorded only advances over the
+     * entries written without a gap.
+     */
+    final class Entries
+    {
+        private final String key;
+
+        /**
+         * The bytes of the archive up to and including each entry written beyond the recorded progress.
+         */
+        private final SortedMap<Long, Long> written = new TreeMap<>();
+
+        private long completed;
+
+        private Entries( String key )
+        {
+            this.key = key;
+        }
+
+        /**
+         * @param index the index of the entry in archive order.
+         * @param bytes the bytes of the archive up to and including the entry.
+         */
+        void written( long index, long bytes )
+        {
+            synchronized ( Checkpoint.this )
+            {
+                written.put( index, bytes );
+
+                Long total = null;
+                while ( written.containsKey( completed ) )
+                {
+                    total = written.remove( completed++ );
+                }
+                if ( total != null )
+                {
+                    state.setProperty( PROGRESS + key, completed + "," + total );
+                    pending++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import org.apache.commons.compress.MemoryLimitException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the memory held by the LZMA, XZ and 7z decoders of the unpacks sharing it, which may be made
+ * by any number of Exploder instances and threads. Before decoding, the memory the decoder requires
+ * (as declared by the dictionary size recorded in the stream) is reserved ; while the budget is exhausted
+ * the unpack waits for other decoders to finish. A decoder requiring more than the whole budget fails
+ * immediately with a {@link MemoryLimitException}.
+ */
+public class DecoderMemoryBudget
+{
+    private static final long POLL_INTERVAL = 100;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    /**
+     * The capacity in KB, as the decoders declare their requirements.
+     */
+    private final long capacity;
+
+    private long reserved;
+
+    /**
+     * @param bytes the memory that may be held by decoders at once.
+     */
+    public DecoderMemoryBudget( long bytes )
+    {
+        if ( bytes < 1024 )
+        {
+            throw new IllegalArgumentException( "Decoder memory budget must be at least 1KB: " + bytes );
+        }
+        this.capacity = bytes / 1024;
+    }
+
+    /**
+     * @return the memory that may be held by decoders at once.
+     */
+    public long getCapacity()
+    {
+        return capacity * 1024;
+    }
+
+    /**
+     * @return the memory currently reserved by decoders.
+     */
+    public synchronized long getReserved()
+    {
+        return reserved * 1024;
+    }
+
+    /**
+     * @return the limit to pass to the decoders, so that one whose requirement grows part way through
+     * (e.g. a later xz block with a larger dictionary) fails rather than exceeding the whole budget.
+     */
+    int getLimitInKb()
+    {
+        return (int) Math.min( capacity, Integer.MAX_VALUE );
+    }
+
+    /**
+     * Reserves memory for a decoder, waiting until it is available.
+     *
+     * @param source the file to be decoded.
+     * @param neededInKb the memory required.
+     * @param check checks between waits whether the unpack has been cancelled.
+     * @return the reservation, to be closed once decoding is complete.
+     * @throws MemoryLimitException if the requirement exceeds the whole budget.
+     * @throws CancelledException if the unpack is cancelled while waiting.
+     */
+    Reservation reserve( Object source, long neededInKb, CancellationCheck check )
+                    throws MemoryLimitException, CancelledException
+    {
+        if ( neededInKb > capacity )
+        {
+            throw new MemoryLimitException( neededInKb, getLimitInKb() );
+        }
+        synchronized ( this )
+        {
+            while ( reserved + neededInKb > capacity )
+            {
+                logger.debug( "Waiting for {}KB of decoder memory for {} ({}KB of {}KB reserved)", neededInKb, source,
+                              reserved, capacity );
+                check.check();
+                try
+                {
+                    wait( POLL_INTERVAL );
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new CancelledException( "Unpack was interrupted" );
+                }
+            }
+            reserved += neededInKb;
+        }
+        return new Reservation( neededInKb );
+    }
+
+    private synchronized void release( long kb )
+    {
+        reserved -= kb;
+        notifyAll();
+    }
+
+    interface CancellationCheck
+    {
+        void check() throws CancelledException;
+    }
+
+    final class Reservation implements AutoCloseable
+    {
+        private long kb;
+
+        private Reservation( long kb )
+        {
+            this.kb = kb;
+        }
+
+        @Override
+        public void close()
+        {
+            if ( kb > 0 )
+            {
+                release( kb );
+                kb = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bytes written to and deleted from disk by a single unpack, as reported to the listener
+ * configured by {@link Exploder#useFootprintListener(java.util.function.Consumer)}. This covers
+ * extracted entries, decompressed files and copied directories. Files written by the processor (e.g.
+ * staged entries) are not counted, nor are duplicates hardlinked by {@link Exploder#useDeduplication()}
+ * or the deletion of an intermediate file still linked elsewhere, as neither changes the space used.
+ */
+public final class DiskFootprint
+{
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong deleted = new AtomicLong();
+
+    private final AtomicLong current = new AtomicLong();
+
+    private final AtomicLong peak = new AtomicLong();
+
+    void written( long bytes )
+    {
+        written.addAndGet( bytes );
+        peak.accumulateAndGet( current.addAndGet( bytes ), Math::max );
+    }
+
+    void deleted( long bytes )
+    {
+        deleted.addAndGet( bytes );
+        current.addAndGet( -bytes );
+    }
+
+    public long getBytesWritten()
+    {
+        return written.get();
+    }
+
+    /**
+     * @return the bytes of intermediate files deleted (see {@link Exploder#minimizeFootprint()}).
+     */
+    public long getBytesDeleted()
+    {
+        return deleted.get();
+    }
+
+    /**
+     * @return the bytes remaining on disk at the end of the unpack, before any temporary directory is removed.
+     */
+    public long getBytesOnDisk()
+    {
+        return current.get();
+    }
+
+    /**
+     * @return the most bytes on disk at any point during the unpack.
+     */
+    public long getPeakBytesOnDisk()
+    {
+        return peak.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DiskFootprint{written=" + getBytesWritten() + ", deleted=" + getBytesDeleted() + ", onDisk="
+                        + getBytesOnDisk() + ", peak=" + getPeakBytesOnDisk() + '}';
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import java.io.File;
+
+/**
+ * A file produced by an unpack, as published by {@link ExploderEngine#publish(File)}. These are the
+ * same files that would be passed to {@link ExploderFileProcessor#processFile(File, File, VirtualPath)}.
+ * If the unpack uses a temporary directory the file is deleted once the unpack completes.
+ */
+public final class ExplodedEntry
+{
+    private final File baseDir;
+
+    private final File file;
+
+    private final VirtualPath path;
+
+    ExplodedEntry( File baseDir, File file, VirtualPath path )
+    {
+        this.baseDir = baseDir;
+        this.file = file;
+        this.path = path;
+    }
+
+    /**
+     * @return the base folder the unpack was written to.
+     */
+    public File getBaseDir()
+    {
+        return baseDir;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public VirtualPath getPath()
+    {
+        return path;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path.toString();
+    }
+}
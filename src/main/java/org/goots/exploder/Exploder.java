@@ -15,31 +15,23 @@
  */
 package org.goots.exploder;
 
-import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.ArchiveException;
-import org.apache.commons.compress.archivers.ArchiveInputStream;
-import org.apache.commons.compress.compressors.CompressorException;
-import org.apache.commons.compress.compressors.CompressorInputStream;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.goots.exploder.types.FileType;
-import org.goots.jdownloader.JDownloader;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URISyntaxException;
 import java.net.URL;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.Set;
 import java.util.UUID;
-
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Configures and runs an unpack through a fluent API. An Exploder is intended for use by a single
+ * thread ; each is backed by an {@link ExploderEngine}, rebuilt whenever the configuration changes. To
+ * share one configuration across threads create an {@link ExploderEngine} from an {@link ExploderConfig}.
+ */
 public class Exploder
 {
     /**
@@ -47,20 +39,14 @@ public class Exploder
      */
     public final static String ARCHIVE_UNPACK_SUFFIX = "-unpacked-" + UUID.randomUUID();
 
-    private final Logger logger = LoggerFactory.getLogger( getClass() );
-
-    private final FileHandler fsh = new FileHandler();
-
-    private final HashSet<String> excludedSuffixes = new HashSet<>( );
+    private final ExploderConfig.Builder builder = new ExploderConfig.Builder();
 
-    private File directoryRoot;
+    private ExploderEngine engine;
 
     private File targetDirectory;
 
     private boolean cleanup;
 
-    private boolean recurse = true;
-
     /**
      * Register suffix to ignore when exploding the archive(s).
      *
@@ -70,14 +56,9 @@ public class Exploder
      */
     public Exploder excludeSuffix ( String suffix ) throws InternalException
     {
-        suffix = suffix.trim().toLowerCase();
-        if ( ! fsh.getSupportedSuffixes().contains( suffix ) )
-        {
-            throw new InternalException( "Unknown suffix " + suffix );
-        }
-        excludedSuffixes.add( suffix );
+        builder.excludeSuffix( suffix );
 
-        return this;
+        return reconfigured();
     }
 
     /**
@@ -88,9 +69,9 @@ public class Exploder
      */
     public Exploder disableRecursion()
     {
-        recurse = false;
+        builder.disableRecursion();
 
-        return this;
+        return reconfigured();
     }
 
     /**
@@ -108,16 +89,9 @@ public class Exploder
         {
             throw new InternalException( "Working directory already configured" );
         }
-        try
-        {
-            Path temporaryLocation = Files.createTempDirectory( "exploder-" + UUID.randomUUID() );
-            cleanup = true;
-            targetDirectory = temporaryLocation.toFile();
-        }
-        catch ( IOException e )
-        {
-            throw new InternalException( "Error setting up working directory", e );
-        }
+        targetDirectory = ExploderEngine.createTemporaryDirectory();
+        cleanup = true;
+
         return this;
     }
 
@@ -145,9 +119,325 @@ public class Exploder
         return this;
     }
 
+    /**
+     * This will configure the current instance to periodically record its progress to the
+     * specified checkpoint file. If the file already exists (i.e. a previous unpack into the same
+     * target directory did not complete) then archives and entries that were already extracted
+     * will be skipped and the unpack resumed at the first incomplete one. The checkpoint is
+     * removed once the unpack completes successfully.
+     *
+     * @param checkpointFile the file to record progress to.
+     * @return the current Exploder instance.
+     */
+    public Exploder useCheckpoint( File checkpointFile )
+    {
+        builder.useCheckpoint( checkpointFile );
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to check the specified handle between entries and
+     * within its copy loops. Once the handle has been cancelled any in-flight unpack will stop,
+     * clean up and throw a {@link CancelledException}.
+     *
+     * @param cancellation the handle to check.
+     * @return the current Exploder instance.
+     */
+    public Exploder useCancellation( CancellationHandle cancellation )
+    {
+        builder.useCancellation( cancellation );
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance so that each unpack call must complete within the
+     * specified duration. If the deadline passes the unpack will stop, clean up and throw a
+     * {@link CancelledException}.
+     *
+     * @param timeout the maximum duration of each unpack call.
+     * @return the current Exploder instance.
+     */
+    public Exploder useTimeout( Duration timeout )
+    {
+        builder.useTimeout( timeout );
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to decode gzip files and deflated zip entries with
+     * the JDK {@link java.util.zip.Inflater} (backed by the platform zlib) using large buffers, rather
+     * than the commons-compress streams.
+     *
+     * @return the current Exploder instance.
+     */
+    public Exploder useJdkInflater()
+    {
+        builder.useJdkInflater();
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the number of threads used for extraction. Nested archives are unpacked
+     * concurrently, largest first (see {@link UnpackScheduler}), and 7z archives are split across
+     * independent readers. Processor calls are serialised.
+     *
+     * @param threads the number of threads.
+     * @return the current Exploder instance.
+     */
+    public Exploder useThreads( int threads )
+    {
+        builder.useThreads( threads );
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to only extract those entries of the outermost
+     * archive(s) whose name (e.g. {@code lib/x.jar}) matches the filter. Nested archives within the
+     * selected entries are unpacked in full. Seekable formats read only the selected entries.
+     *
+     * @param includeFilter the entry name filter.
+     * @return the current Exploder instance.
+     */
+    public Exploder includeEntries( Predicate<String> includeFilter )
+    {
+        builder.includeEntries( includeFilter );
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to build a seek index for each compressed tar
+     * (.tar.gz / .tar.xz) as it is unpacked, persisting it within the cache directory. The index
+     * is used by {@link #unpackEntry(File, String, File)} to extract single members.
+     *
+     * @param indexCache the directory to store indexes in.
+     * @return the current Exploder instance.
+     */
+    public Exploder useIndexCache( File indexCache )
+    {
+        builder.useIndexCache( indexCache );
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to write the decompressed content of compressed
+     * archives (e.g. the {@code .tar} of a {@code .tar.gz}) to disk before unpacking it. By default
+     * the decompressing stream is fed straight into the archive reader in a single pass.
+     *
+     * @return the current Exploder instance.
+     */
+    public Exploder materializeIntermediates()
+    {
+        builder.materializeIntermediates();
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to hold extracted entries smaller than the threshold in
+     * pooled off-heap buffers rather than writing each to its own file. Staged entries are passed to
+     * {@link ExploderFileProcessor#processStaged(File, File, VirtualPath, ByteBuffer)} and only written if the processor
+     * requires a file. Once the total staged memory reaches the capacity further entries are spilled
+     * to disk. Staging only applies when a processor is supplied and recursion is enabled.
+     *
+     * @param threshold the maximum size of a staged entry.
+     * @param capacity the maximum direct memory to hold.
+     * @return the current Exploder instance.
+     */
+    public Exploder useStaging( int threshold, long capacity )
+    {
+        builder.useStaging( threshold, capacity );
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to detect entries that are identical to one already
+     * extracted in the same unpack (by the size and CRC recorded in zip and 7z archives, confirmed by
+     * comparing the content) and hardlink them to the first copy rather than writing them again.
+     * Duplicates are still passed to the processor. As the copies share storage a processor must
+     * not modify the files in place.
+     *
+     * @return the current Exploder instance.
+     */
+    public Exploder useDeduplication()
+    {
+        builder.useDeduplication();
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to write extracted entries on a separate pool of
+     * writer threads, so that decoding is not stalled by slow file systems. At most the capacity
+     * of entry content is held in memory waiting to be written ; entries that do not fit are written
+     * directly, as are entries written with preallocation or sparse files. All writes for an archive
+     * complete before its contents are processed.
+     *
+     * @param writers the number of writer threads.
+     * @param capacity the maximum number of bytes waiting to be written.
+     * @return the current Exploder instance.
+     */
+    public Exploder useWriteBehind( int writers, int capacity )
+    {
+        builder.useWriteBehind( writers, capacity );
+
+        return reconfigured();
+    }
+
+
+    /**
+     * This will configure the current instance to delete each nested archive and intermediate
+     * decompressed file (e.g. the {@code .tar} of a {@code .tar.gz}) as soon as its contents have been
+     * extracted and it has been passed to the processor, rather than leaving it alongside its unpacked
+     * directory. This reduces the peak disk usage to little more than the size of the extracted
+     * content. The input itself is never deleted.
+     *
+     * @return the current Exploder instance.
+     */
+    public Exploder minimizeFootprint()
+    {
+        builder.minimizeFootprint();
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to track the bytes it writes to and deletes from disk,
+     * passing the {@link DiskFootprint}, including the peak bytes on disk, to the listener at the end of
+     * each unpack call (whether or not it succeeded).
+     *
+     * @param footprintListener the listener.
+     * @return the current Exploder instance.
+     */
+    public Exploder useFootprintListener( Consumer<DiskFootprint> footprintListener )
+    {
+        builder.useFootprintListener( footprintListener );
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to pass the {@link Progress} of each unpack call to the
+     * listener, including the bytes and entries completed against the totals known so far, the entry being
+     * extracted, the throughput and an estimated time remaining. Updates are made by the unpacking threads
+     * at most once per interval, plus a final update at the end of the call (whether or not it succeeded).
+     *
+     * @param progressListener the listener.
+     * @param interval the minimum interval between updates.
+     * @return the current Exploder instance.
+     */
+    public Exploder useProgressListener( Consumer<Progress> progressListener, Duration interval )
+    {
+        builder.useProgressListener( progressListener, interval );
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to size each extracted file of at least 1MB up front
+     * to the size recorded by its archive, writing its final block so that the filesystem allocates
+     * the end of the file before the rest is written. This reduces fragmentation and the cost of
+     * repeatedly extending the file, but as Java has no portable equivalent of fallocate the blocks
+     * between are still allocated as they are written. The file is truncated to the bytes actually
+     * written. Preallocated entries are written directly rather than through a write-behind queue.
+     *
+     * @return the current Exploder instance.
+     */
+    public Exploder usePreallocation()
+    {
+        builder.usePreallocation();
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to seek over, rather than write, whole 4KB blocks of
+     * zeros in extracted files so that, on filesystems supporting sparse files, they occupy no disk
+     * space. The sparse maps of tar entries are always honoured, regardless of this setting. Entries
+     * are then written directly rather than through a write-behind queue.
+     *
+     * @return the current Exploder instance.
+     */
+    public Exploder useSparseFiles()
+    {
+        builder.useSparseFiles();
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to unpack compressed files (e.g. {@code .tar.gz} or
+     * {@code .tar.xz}) through a three stage pipeline: a reader thread reads the compressed file ahead,
+     * a decoder thread decompresses it ahead, and the calling thread unarchives and writes the content.
+     * Each stage hands the next a pair of buffers, so that one is filled while the other is drained and
+     * a large archive is unpacked at the speed of the slowest stage rather than of all three combined.
+     *
+     * @return the current Exploder instance.
+     */
+    public Exploder usePipeline()
+    {
+        builder.usePipeline();
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to read zips (e.g. jars within a war or a fat jar) that
+     * are STORED uncompressed within another zip in place, through a window over the outer file, rather
+     * than writing them out and opening them again. The unpacked layout is unchanged, but the nested
+     * zips themselves are passed to {@link ExploderFileProcessor#processStaged} as content mapped from
+     * the outer file rather than being written.
+     *
+     * @return the current Exploder instance.
+     */
+    public Exploder readStoredInPlace()
+    {
+        builder.readStoredInPlace();
+
+        return reconfigured();
+    }
+
+    /**
+     * This will configure the current instance to reserve the memory each LZMA, XZ and 7z decoder
+     * requires, as declared by the dictionary size recorded in the file, from the budget before decoding.
+     * While the budget is exhausted the unpack waits for other decoders sharing it (in this or other
+     * instances) to finish, subject to any cancellation or timeout. A decoder requiring more than the
+     * whole budget fails immediately with an {@link InternalException} caused by a
+     * {@link org.apache.commons.compress.MemoryLimitException}.
+     *
+     * @param decoderMemory the budget.
+     * @return the current Exploder instance.
+     */
+    public Exploder useDecoderMemoryBudget( DecoderMemoryBudget decoderMemory )
+    {
+        builder.useDecoderMemoryBudget( decoderMemory );
+
+        return reconfigured();
+    }
+
     public Set<String> getSupportedSuffixes ()
     {
-        return fsh.getSupportedSuffixes();
+        return FileHandler.getDefault().getSupportedSuffixes();
+    }
+
+    /**
+     * @return the engine for the current configuration. The target directory configured by this
+     * instance is passed on each call rather than being part of the engine configuration.
+     */
+    public ExploderEngine getEngine()
+    {
+        if ( engine == null )
+        {
+            engine = new ExploderEngine( builder.build() );
+        }
+        return engine;
     }
 
     /**
@@ -190,39 +480,11 @@ public class Exploder
      */
     public void unpack( ExploderFileProcessor processor, URL url ) throws InternalException
     {
-        try
-        {
-            if ( targetDirectory == null )
-            {
-                useTemporaryDirectory();
-            }
-
-            File target = new File ( Files.createTempDirectory( "exploder-" + UUID.randomUUID() ).toFile(),
-                                     url.getFile().substring( url.getFile().lastIndexOf( '/' ) ) );
-
-            logger.debug( "Downloading URL {} to {} unpacking to {}", url, target, targetDirectory );
-            // JDownloader does not support file: protocols so just copy the file in those circumstances.
-            if ( url.getProtocol().equals( "file" ) )
-            {
-                Files.copy( new File( url.getPath() ).toPath(), target.toPath() );
-            }
-            else
-            {
-                new JDownloader( url ).partCount( 10 ).target( target.getAbsolutePath() ).execute();
-            }
-
-            directoryRoot = targetDirectory;
-
-            internal_unpack( processor, target, targetDirectory );
-        }
-        catch ( IOException | org.goots.jdownloader.utils.InternalException | URISyntaxException | InterruptedException e )
-        {
-            throw new InternalException( "Error downloading remote URL", e );
-        }
-        finally
+        if ( targetDirectory == null )
         {
-            cleanup();
+            useTemporaryDirectory();
         }
+        getEngine().unpack( processor, url, targetDirectory, cleanup );
     }
 
     /**
@@ -252,197 +514,78 @@ public class Exploder
      */
     public void unpack( ExploderFileProcessor processor, File root ) throws InternalException
     {
-        try
-        {
-            if ( targetDirectory == null )
-            {
-                targetDirectory = root.isDirectory() ? root : root.getParentFile();
-            }
-            else
-            {
-                if ( root.isDirectory() )
-                {
-                    FileUtils.copyDirectory( root, targetDirectory );
-                    root = targetDirectory;
-                }
-                else if ( ! root.isFile() )
-                {
-                    throw new InternalException(
-                                    "Target (" + root + ") is not directory or file ( exists: " + root.exists() + ')' );
-                }
-            }
-
-            logger.debug( "Setting directory root to {} with target directory {}", root, targetDirectory.getAbsolutePath() );
-            directoryRoot = targetDirectory;
-
-            internal_unpack( processor, root, targetDirectory );
-        }
-        catch ( IOException e )
-        {
-            throw new InternalException( "Error setting up targetDirectory directory", e );
-        }
-        finally
-        {
-            cleanup();
-        }
+        getEngine().unpack( processor, root, targetDirectory, cleanup );
     }
 
     /**
-     * Unpacks the contents of the file/directory, decompressing and unarchiving recursively.
-     * It will use the specified ExploderFileProcessor on each target file. This is a internal
-     * method that will recurse correctly ; the wrapper unpack methods handle cleanup and working
-     * directory configuration.
+     * Returns a publisher of the files produced by unpacking the file/directory. Files are only
+     * extracted as the subscriber requests them ; cancelling the subscription stops the unpack.
+     * The publisher uses the configuration at the time of this call.
      *
-     * @param processor the optional FileProcessor
      * @param root root file (or directory contents) to explode
-     * @param targetDirectory target directory to unpack to. Only used for first level unpack.
-     * @throws InternalException if an error occurs.
+     * @return the publisher.
+     * @see ExploderEngine#publish(File)
      */
-    private void internal_unpack( ExploderFileProcessor processor, File root, File targetDirectory ) throws InternalException
+    public Flow.Publisher<ExplodedEntry> publish( File root )
     {
-        if ( root.isDirectory() )
-        {
-            try ( DirectoryStream<Path> stream = Files.newDirectoryStream( root.toPath() ) )
-            {
-                for ( Path entry : stream )
-                {
-                    internal_unpack( processor, entry.toFile(), null );
-                }
-            }
-            catch ( IOException e )
-            {
-                throw new InternalException( "Unable to iterate through directory", e );
-            }
-        }
-        else
-        {
-            FileType type = fsh.getType( root );
+        ExploderEngine current = getEngine();
+        File target = targetDirectory;
+        boolean temporary = cleanup;
 
-            // Check is type is supported for decompression / extraction or just move to processing.
-            if ( !excludedSuffixes.contains( type.getTypename() ) )
-            {
-                if ( type.isArchive() )
-                {
-                    logger.debug( "Unpacking {} and type {}", root, type.getTypename());
-
-                    unpackArchive( root, type, processor, targetDirectory );
-                }
-                else if ( type.isCompressed() )
-                {
-                    logger.debug( "Decompressing {}", root );
-
-                    decompressFile ( root, type, processor, targetDirectory );
-                }
-                else
-                {
-                    logger.debug( "Found standard file {} ", root );
-                }
-            }
-            if ( processor != null )
-            {
-                processor.processFile( directoryRoot, root );
-            }
-        }
+        return current.publish( root, target, temporary );
     }
 
-    private void decompressFile( File root, FileType type, ExploderFileProcessor processor, File targetDirectory ) throws InternalException
+    /**
+     * Returns a lazily pulled stream of the files produced by unpacking the file/directory. The
+     * stream should be closed to stop an unfinished unpack.
+     *
+     * @param root root file (or directory contents) to explode
+     * @return the stream.
+     * @see ExploderEngine#stream(File)
+     */
+    public Stream<ExplodedEntry> stream( File root )
     {
-        try (CompressorInputStream c = type.getStream( root ))
-        {
-            File destination;
-            if ( targetDirectory != null )
-            {
-                destination = new File( targetDirectory, type.getUncompressedFilename( new File ( root.getName() ) ) );
-            }
-            else
-            {
-                destination = new File( type.getUncompressedFilename( root ) );
-            }
-
-            IOUtils.copy( c, Files.newOutputStream( destination.toPath() ) );
-
-            logger.debug( "Now examining decompressed file {} ", destination );
-
-            if ( recurse )
-            {
-                // Examine decompressed file - that in itself may be an ordinary file or an archive etc.
-                internal_unpack( processor, destination, null );
-            }
-        }
-        catch ( CompressorException | ArchiveException | IOException e )
-        {
-            throw new InternalException( "Caught exception decompressing file", e );
-        }
+        return ExploderStream.of( publish( root ) );
     }
 
-    private void unpackArchive( File root, FileType type, ExploderFileProcessor processor, File targetDirectory ) throws InternalException
+    /**
+     * Lists the top level entries of an archive so that its unpack may be split into balanced shards,
+     * each executed by a separate process with {@link ShardRunner}.
+     *
+     * @param input the archive.
+     * @return the plan.
+     * @throws InternalException if the input is not an archive or an error occurs.
+     * @see ExploderEngine#plan(File)
+     */
+    public WorkPlan plan( File input ) throws InternalException
     {
-        try ( ArchiveInputStream i = type.getStream( root ) )
-        {
-            File target;
-            if ( targetDirectory == null )
-            {
-                target = new File( root.getParentFile(), root.getName() + ARCHIVE_UNPACK_SUFFIX );
-                target.mkdirs();
-            }
-            else
-            {
-                target = targetDirectory;
-            }
-            extract( i, target );
-
-            if ( recurse )
-            {
-                // Recurse into unpacked directory
-                internal_unpack( processor, target, null );
-            }
-        }
-        catch ( CompressorException | ArchiveException | IOException e )
-        {
-            throw new InternalException( "Caught exception unpacking archive", e );
-        }
+        return getEngine().plan( input );
     }
 
-    private void extract( ArchiveInputStream input, File destination) throws IOException, InternalException
+    /**
+     * Extracts a single member of a compressed tar (.tar.gz or .tar.xz) to the destination file.
+     *
+     * If an index cache has been configured and holds an index for the archive (built by an earlier
+     * unpack or call to this method) decoding starts at the closest restart point to the member. Otherwise
+     * the archive is scanned once, without writing, to build the index.
+     *
+     * @param archive the compressed tar.
+     * @param entryName the name of the member to extract.
+     * @param destination the file to extract the member to.
+     * @throws InternalException if an error occurs.
+     */
+    public void unpackEntry( File archive, String entryName, File destination ) throws InternalException
     {
-        ArchiveEntry entry;
-        while ( (entry = input.getNextEntry()) != null)
-        {
-            if ( ! input.canReadEntryData( entry ) )
-            {
-                throw new InternalException( "Unable to read data entry for " + entry.toString() );
-            }
-            File file = new File(destination, entry.getName());
-
-            if (entry.isDirectory())
-            {
-                file.mkdirs();
-            }
-            else
-            {
-                file.getParentFile().mkdirs();
-
-                try (FileOutputStream output = new FileOutputStream( file ))
-                {
-                    IOUtils.copy( input, output );
-                }
-            }
-        }
+        getEngine().unpackEntry( archive, entryName, destination );
     }
 
-    private void cleanup() throws InternalException
+    /**
+     * Discards the engine built for the previous configuration.
+     */
+    private Exploder reconfigured()
     {
-        if ( cleanup )
-        {
-            try
-            {
-                logger.debug( "Cleaning up temporary directory {} ", targetDirectory );
-                FileUtils.deleteDirectory( targetDirectory );
-            }
-            catch ( IOException e )
-            {
-                throw new InternalException( "Error cleaning up working directory", e );
-            }
-        }
+        engine = null;
+
+        return this;
     }
 }
@@ -0,0 +1,620 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The immutable configuration of an {@link ExploderEngine}, created by a {@link Builder}. The options
+ * are those of the equivalent {@link Exploder} methods.
+ */
+public final class ExploderConfig
+{
+    private final Set<String> excludedSuffixes;
+
+    private final boolean recurse;
+
+    private final boolean temporary;
+
+    private final File targetDirectory;
+
+    private final File checkpointFile;
+
+    private final CancellationHandle cancellation;
+
+    private final Duration timeout;
+
+    private final boolean jdkInflater;
+
+    private final int threads;
+
+    private final Predicate<String> includeFilter;
+
+    private final File indexCache;
+
+    private final boolean materialize;
+
+    private final int stagingThreshold;
+
+    private final long stagingCapacity;
+
+    private final boolean deduplicate;
+
+    private final int writers;
+
+    private final int writeCapacity;
+
+    private final boolean minimizeFootprint;
+
+    private final Consumer<DiskFootprint> footprintListener;
+
+    private final Consumer<Progress> progressListener;
+
+    private final Duration progressInterval;
+
+    private final boolean preallocate;
+
+    private final boolean sparseFiles;
+
+    private final boolean pipeline;
+
+    private final boolean storedInPlace;
+
+    private final DecoderMemoryBudget decoderMemory;
+
+    private ExploderConfig( Builder builder )
+    {
+        this.excludedSuffixes = Collections.unmodifiableSet( new HashSet<>( builder.excludedSuffixes ) );
+        this.recurse = builder.recurse;
+        this.temporary = builder.temporary;
+        this.targetDirectory = builder.targetDirectory;
+        this.checkpointFile = builder.checkpointFile;
+        this.cancellation = builder.cancellation;
+        this.timeout = builder.timeout;
+        this.jdkInflater = builder.jdkInflater;
+        this.threads = builder.threads;
+        this.includeFilter = builder.includeFilter;
+        this.indexCache = builder.indexCache;
+        this.materialize = builder.materialize;
+        this.stagingThreshold = builder.stagingThreshold;
+        this.stagingCapacity = builder.stagingCapacity;
+        this.deduplicate = builder.deduplicate;
+        this.writers = builder.writers;
+        this.writeCapacity = builder.writeCapacity;
+        this.minimizeFootprint = builder.minimizeFootprint;
+        this.footprintListener = builder.footprintListener;
+        this.progressListener = builder.progressListener;
+        this.progressInterval = builder.progressInterval;
+        this.preallocate = builder.preallocate;
+        this.sparseFiles = builder.sparseFiles;
+        this.pipeline = builder.pipeline;
+        this.storedInPlace = builder.storedInPlace;
+        this.decoderMemory = builder.decoderMemory;
+    }
+
+    public Set<String> getExcludedSuffixes()
+    {
+        return excludedSuffixes;
+    }
+
+    public boolean isRecurse()
+    {
+        return recurse;
+    }
+
+    /**
+     * @return whether each call unpacks to its own temporary directory, deleted on completion.
+     */
+    public boolean isTemporary()
+    {
+        return temporary;
+    }
+
+    public File getTargetDirectory()
+    {
+        return targetDirectory;
+    }
+
+    public File getCheckpointFile()
+    {
+        return checkpointFile;
+    }
+
+    public CancellationHandle getCancellation()
+    {
+        return cancellation;
+    }
+
+    public Duration getTimeout()
+    {
+        return timeout;
+    }
+
+    public boolean isJdkInflater()
+    {
+        return jdkInflater;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    public Predicate<String> getIncludeFilter()
+    {
+        return includeFilter;
+    }
+
+    public File getIndexCache()
+    {
+        return indexCache;
+    }
+
+    public boolean isMaterialize()
+    {
+        return materialize;
+    }
+
+    /**
+     * @return the staging threshold, or 0 if staging is disabled.
+     */
+    public int getStagingThreshold()
+    {
+        return stagingThreshold;
+    }
+
+    public long getStagingCapacity()
+    {
+        return stagingCapacity;
+    }
+
+    public boolean isDeduplicate()
+    {
+        return deduplicate;
+    }
+
+    /**
+     * @return the number of write-behind threads, or 0 if write-behind is disabled.
+     */
+    public int getWriters()
+    {
+        return writers;
+    }
+
+    public int getWriteCapacity()
+    {
+        return writeCapacity;
+    }
+
+    public boolean isMinimizeFootprint()
+    {
+        return minimizeFootprint;
+    }
+
+    public Consumer<DiskFootprint> getFootprintListener()
+    {
+        return footprintListener;
+    }
+
+    public Consumer<Progress> getProgressListener()
+    {
+        return progressListener;
+    }
+
+    public Duration getProgressInterval()
+    {
+        return progressInterval;
+    }
+
+    public boolean isPreallocate()
+    {
+        return preallocate;
+    }
+
+    public boolean isSparseFiles()
+    {
+        return sparseFiles;
+    }
+
+    public boolean isPipeline()
+    {
+        return pipeline;
+    }
+
+    public boolean isStoredInPlace()
+    {
+        return storedInPlace;
+    }
+
+    public DecoderMemoryBudget getDecoderMemory()
+    {
+        return decoderMemory;
+    }
+
+    public static class Builder
+    {
+        private final Set<String> excludedSuffixes = new HashSet<>();
+
+        private boolean recurse = true;
+
+        private boolean temporary;
+
+        private File targetDirectory;
+
+        private File checkpointFile;
+
+        private CancellationHandle cancellation;
+
+        private Duration timeout;
+
+        private boolean jdkInflater;
+
+        private int threads = 1;
+
+        private Predicate<String> includeFilter;
+
+        private File indexCache;
+
+        private boolean materialize;
+
+        private int stagingThreshold;
+
+        private long stagingCapacity;
+
+        private boolean deduplicate;
+
+        private int writers;
+
+        private int writeCapacity;
+
+        private boolean minimizeFootprint;
+
+        private Consumer<DiskFootprint> footprintListener;
+
+        private Consumer<Progress> progressListener;
+
+        private Duration progressInterval;
+
+        private boolean preallocate;
+
+        private boolean sparseFiles;
+
+        private boolean pipeline;
+
+        private boolean storedInPlace;
+
+        private DecoderMemoryBudget decoderMemory;
+
+        /**
+         * @param suffix the suffix to ignore e.g. {@code .jar}
+         * @return this builder.
+         * @throws InternalException if the suffix is not supported.
+         * @see Exploder#excludeSuffix(String)
+         */
+        public Builder excludeSuffix( String suffix ) throws InternalException
+        {
+            suffix = suffix.trim().toLowerCase();
+            if ( ! FileHandler.getDefault().getSupportedSuffixes().contains( suffix ) )
+            {
+                throw new InternalException( "Unknown suffix " + suffix );
+            }
+            excludedSuffixes.add( suffix );
+
+            return this;
+        }
+
+        /**
+         * @return this builder.
+         * @see Exploder#disableRecursion()
+         */
+        public Builder disableRecursion()
+        {
+            recurse = false;
+
+            return this;
+        }
+
+        /**
+         * Unlike {@link Exploder#useTemporaryDirectory()} each call creates, and then deletes, its own
+         * temporary directory so that concurrent calls do not interfere.
+         *
+         * @return this builder.
+         * @throws InternalException if a target directory has already been configured.
+         */
+        public Builder useTemporaryDirectory() throws InternalException
+        {
+            if ( targetDirectory != null )
+            {
+                throw new InternalException( "Target directory already configured" );
+            }
+            temporary = true;
+
+            return this;
+        }
+
+        /**
+         * @param targetDirectory the target directory, created on first use if required.
+         * @return this builder.
+         * @throws InternalException if a temporary directory has already been configured.
+         * @see Exploder#useTargetDirectory(File)
+         */
+        public Builder useTargetDirectory( File targetDirectory ) throws InternalException
+        {
+            if ( temporary )
+            {
+                throw new InternalException( "Working directory already configured" );
+            }
+            this.targetDirectory = targetDirectory;
+
+            return this;
+        }
+
+        /**
+         * @param checkpointFile the file to record progress to.
+         * @return this builder.
+         * @see Exploder#useCheckpoint(File)
+         */
+        public Builder useCheckpoint( File checkpointFile )
+        {
+            this.checkpointFile = checkpointFile;
+
+            return this;
+        }
+
+        /**
+         * @param cancellation the handle to check, which cancels every call in flight.
+         * @return this builder.
+         * @see Exploder#useCancellation(CancellationHandle)
+         */
+        public Builder useCancellation( CancellationHandle cancellation )
+        {
+            this.cancellation = cancellation;
+
+            return this;
+        }
+
+        /**
+         * @param timeout the maximum duration of each unpack call.
+         * @return this builder.
+         * @see Exploder#useTimeout(Duration)
+         */
+        public Builder useTimeout( Duration timeout )
+        {
+            this.timeout = timeout;
+
+            return this;
+        }
+
+        /**
+         * @return this builder.
+         * @see Exploder#useJdkInflater()
+         */
+        public Builder useJdkInflater()
+        {
+            jdkInflater = true;
+
+            return this;
+        }
+
+        /**
+         * @param threads the number of threads used by each call.
+         * @return this builder.
+         * @see Exploder#useThreads(int)
+         */
+        public Builder useThreads( int threads )
+        {
+            if ( threads < 1 )
+            {
+                throw new IllegalArgumentException( "Thread count must be positive" );
+            }
+            this.threads = threads;
+
+            return this;
+        }
+
+        /**
+         * @param includeFilter the entry name filter.
+         * @return this builder.
+         * @see Exploder#includeEntries(Predicate)
+         */
+        public Builder includeEntries( Predicate<String> includeFilter )
+        {
+            this.includeFilter = includeFilter;
+
+            return this;
+        }
+
+        /**
+         * @param indexCache the directory to store indexes in.
+         * @return this builder.
+         * @see Exploder#useIndexCache(File)
+         */
+        public Builder useIndexCache( File indexCache )
+        {
+            this.indexCache = indexCache;
+
+            return this;
+        }
+
+        /**
+         * @return this builder.
+         * @see Exploder#materializeIntermediates()
+         */
+        public Builder materializeIntermediates()
+        {
+            materialize = true;
+
+            return this;
+        }
+
+        /**
+         * The staging memory is pooled by the engine and so shared by all its calls.
+         *
+         * @param threshold the maximum size of a staged entry.
+         * @param capacity the maximum direct memory to hold.
+         * @return this builder.
+         * @see Exploder#useStaging(int, long)
+         */
+        public Builder useStaging( int threshold, long capacity )
+        {
+            if ( threshold < 1 || threshold > 1 << 30 )
+            {
+                throw new IllegalArgumentException( "Staging threshold must be between 1 and 1GB" );
+            }
+            this.stagingThreshold = threshold;
+            this.stagingCapacity = capacity;
+
+            return this;
+        }
+
+        /**
+         * @return this builder.
+         * @see Exploder#useDeduplication()
+         */
+        public Builder useDeduplication()
+        {
+            deduplicate = true;
+
+            return this;
+        }
+
+        /**
+         * @param writers the number of writer threads used by each call.
+         * @param capacity the maximum number of bytes waiting to be written by each call.
+         * @return this builder.
+         * @see Exploder#useWriteBehind(int, int)
+         */
+        public Builder useWriteBehind( int writers, int capacity )
+        {
+            if ( writers < 1 || capacity < 1 )
+            {
+                throw new IllegalArgumentException( "Writer count and capacity must be positive" );
+            }
+            this.writers = writers;
+            this.writeCapacity = capacity;
+
+            return this;
+        }
+
+        /**
+         * @return this builder.
+         * @see Exploder#minimizeFootprint()
+         */
+        public Builder minimizeFootprint()
+        {
+            minimizeFootprint = true;
+
+            return this;
+        }
+
+        /**
+         * @param footprintListener the listener, called by the thread making each unpack call.
+         * @return this builder.
+         * @see Exploder#useFootprintListener(Consumer)
+         */
+        public Builder useFootprintListener( Consumer<DiskFootprint> footprintListener )
+        {
+            this.footprintListener = footprintListener;
+
+            return this;
+        }
+
+        /**
+         * @param progressListener the listener, called by the unpacking threads.
+         * @param interval the minimum interval between updates.
+         * @return this builder.
+         * @see Exploder#useProgressListener(Consumer, Duration)
+         */
+        public Builder useProgressListener( Consumer<Progress> progressListener, Duration interval )
+        {
+            if ( interval == null || interval.isNegative() )
+            {
+                throw new IllegalArgumentException( "Progress interval must not be negative: " + interval );
+            }
+            this.progressListener = progressListener;
+            this.progressInterval = interval;
+
+            return this;
+        }
+
+        /**
+         * @return this builder.
+         * @see Exploder#usePreallocation()
+         */
+        public Builder usePreallocation()
+        {
+            preallocate = true;
+
+            return this;
+        }
+
+        /**
+         * @return this builder.
+         * @see Exploder#useSparseFiles()
+         */
+        public Builder useSparseFiles()
+        {
+            sparseFiles = true;
+
+            return this;
+        }
+
+        /**
+         * @return this builder.
+         * @see Exploder#usePipeline()
+         */
+        public Builder usePipeline()
+        {
+            pipeline = true;
+
+            return this;
+        }
+
+        /**
+         * @return this builder.
+         * @see Exploder#readStoredInPlace()
+         */
+        public Builder readStoredInPlace()
+        {
+            storedInPlace = true;
+
+            return this;
+        }
+
+        /**
+         * @param decoderMemory the budget, which may be shared with other instances.
+         * @return this builder.
+         * @see Exploder#useDecoderMemoryBudget(DecoderMemoryBudget)
+         */
+        public Builder useDecoderMemoryBudget( DecoderMemoryBudget decoderMemory )
+        {
+            this.decoderMemory = decoderMemory;
+
+            return this;
+        }
+
+        public ExploderConfig build()
+        {
+            return new ExploderConfig( this );
+        }
+    }
+}
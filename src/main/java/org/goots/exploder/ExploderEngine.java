@@ -0,0 +1,2514 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+import org.apache.commons.compress.archivers.sevenz.SevenZMethod;
+import org.apache.commons.compress.archivers.sevenz.SevenZMethodConfiguration;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveStructSparse;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.goots.exploder.types.ArchiveFileType;
+import org.goots.exploder.types.CompressedFileType;
+import org.goots.exploder.types.FileType;
+import org.goots.exploder.types.GZIPFileType;
+import org.goots.exploder.types.InflaterGzipInputStream;
+import org.goots.exploder.types.LZMAFileType;
+import org.goots.exploder.types.SevenZFileType;
+import org.goots.exploder.types.XZFileType;
+import org.goots.jdownloader.JDownloader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tukaani.xz.LZMA2InputStream;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.LZMAInputStream;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.XZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Unpacks files, directories and URLs according to an immutable {@link ExploderConfig}. An engine is
+ * thread safe: the state of each call is held by its own context, so a single engine may be shared by
+ * concurrent callers. The staging pool is shared, but each call stages entries through its own session
+ * and is only passed (or releases) those it staged. Calls do share the files named by the configuration:
+ * calls unpacking into the same target directory see each other's written files as the directory is walked,
+ * and a checkpoint must not be shared, so concurrent callers should normally use a temporary directory.
+ */
+public class ExploderEngine
+{
+    /**
+     * Entries at least this large are preallocated, if enabled.
+     */
+    static final long PREALLOCATION_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The size of the all-zero blocks skipped, rather than written, by sparse writes.
+     */
+    static final int SPARSE_BLOCK_SIZE = 4096;
+
+    private static final byte[] ZEROS = new byte[SPARSE_BLOCK_SIZE];
+
+    /**
+     * The assumed compression ratio of the formats that do not record their uncompressed size.
+     */
+    private static final int COMPRESSION_ESTIMATE = 4;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final FileHandler fsh = FileHandler.getDefault();
+
+    private final ExploderConfig config;
+
+    private final Set<String> excludedSuffixes;
+
+    private final boolean recurse;
+
+    private final File checkpointFile;
+
+    private final CancellationHandle cancellation;
+
+    private final Duration timeout;
+
+    private final boolean jdkInflater;
+
+    private final int threads;
+
+    private final Predicate<String> includeFilter;
+
+    private final File indexCache;
+
+    private final boolean materialize;
+
+    private final StagingArena arena;
+
+    private final boolean deduplicate;
+
+    private final int writers;
+
+    private final int writeCapacity;
+
+    private final boolean minimizeFootprint;
+
+    private final Consumer<DiskFootprint> footprintListener;
+
+    private final Consumer<Progress> progressListener;
+
+    private final Duration progressInterval;
+
+    private final boolean preallocate;
+
+    private final boolean sparseFiles;
+
+    private final boolean pipeline;
+
+    private final boolean storedInPlace;
+
+    private final DecoderMemoryBudget decoderMemory;
+
+    public ExploderEngine( ExploderConfig config )
+    {
+        this.config = config;
+        this.excludedSuffixes = config.getExcludedSuffixes();
+        this.recurse = config.isRecurse();
+        this.checkpointFile = config.getCheckpointFile();
+        this.cancellation = config.getCancellation();
+        this.timeout = config.getTimeout();
+        this.jdkInflater = config.isJdkInflater();
+        this.threads = config.getThreads();
+        this.includeFilter = config.getIncludeFilter();
+        this.indexCache = config.getIndexCache();
+        this.materialize = config.isMaterialize();
+        this.arena = config.getStagingThreshold() > 0 ?
+                        new StagingArena( config.getStagingThreshold(), config.getStagingCapacity() ) : null;
+        this.deduplicate = config.isDeduplicate();
+        this.writers = config.getWriters();
+        this.writeCapacity = config.getWriteCapacity();
+        this.minimizeFootprint = config.isMinimizeFootprint();
+        this.footprintListener = config.getFootprintListener();
+        this.progressListener = config.getProgressListener();
+        this.progressInterval = config.getProgressInterval();
+        this.preallocate = config.isPreallocate();
+        this.sparseFiles = config.isSparseFiles();
+        this.pipeline = config.isPipeline();
+        this.storedInPlace = config.isStoredInPlace();
+        this.decoderMemory = config.getDecoderMemory();
+    }
+
+    public ExploderConfig getConfig()
+    {
+        return config;
+    }
+
+    public Set<String> getSupportedSuffixes ()
+    {
+        return fsh.getSupportedSuffixes();
+    }
+
+    /**
+     * Unpacks the contents of the url/file/directory, decompressing and unarchiving recursively.
+     *
+     * This is a simple wrapper around the File/URL methods.
+     *
+     * @param path root url, file (or directory contents) to explode
+     * @throws InternalException if an error occurs.
+     */
+    public void unpack ( String path ) throws InternalException
+    {
+        if ( path.startsWith("http:") || path.startsWith("https:") || path.startsWith("file:") )
+        {
+            try
+            {
+                unpack(null, new URL ( path ) );
+            }
+            catch ( MalformedURLException e )
+            {
+                throw new InternalException( "Unable to translate path (" + path + ") into URL." );
+            }
+        }
+        else
+        {
+            unpack( new File ( path ) );
+        }
+    }
+
+    /**
+     * Unpacks the contents of the remote file, decompressing and unarchiving recursively.
+     * It will use the specified ExploderFileProcessor on each target file.
+     *
+     * Unless a target directory has been configured each call uses its own temporary directory
+     * which WILL be cleaned up.
+     *
+     * @param processor the optional FileProcessor
+     * @param url remote file to explode
+     * @throws InternalException if an error occurs.
+     */
+    public void unpack( ExploderFileProcessor processor, URL url ) throws InternalException
+    {
+        boolean temporary = config.isTemporary() || config.getTargetDirectory() == null;
+
+        unpack( processor, url, temporary ? createTemporaryDirectory() : config.getTargetDirectory(), temporary );
+    }
+
+    /**
+     * Unpacks the contents of the file/directory, decompressing and unarchiving recursively.
+     *
+     * @param root root file (or directory contents) to explode
+     * @throws InternalException if an error occurs.
+     */
+    public void unpack ( File root ) throws InternalException
+    {
+        unpack( null, root );
+    }
+
+    /**
+     * Unpacks the contents of the file/directory, decompressing and unarchiving recursively.
+     * It will use the specified ExploderFileProcessor on each target file.
+     *
+     * If a root is a directory and a target directory has been configured then it will be copied
+     * to the target directory first. If temporary directories have been configured each call uses
+     * its own, which is cleaned up at the end.
+     *
+     * @param processor the optional FileProcessor
+     * @param root root file (or directory contents) to explode
+     * @throws InternalException if an error occurs.
+     */
+    public void unpack( ExploderFileProcessor processor, File root ) throws InternalException
+    {
+        boolean temporary = config.isTemporary();
+
+        unpack( processor, root, temporary ? createTemporaryDirectory() : config.getTargetDirectory(), temporary );
+    }
+
+    /**
+     * Returns a publisher of the files produced by unpacking the file/directory, as for
+     * {@link #unpack(ExploderFileProcessor, File)}. Each subscription runs its own unpack. Files are
+     * only extracted as the subscriber requests them ; cancelling the subscription stops the unpack.
+     *
+     * @param root root file (or directory contents) to explode
+     * @return the publisher.
+     */
+    public Flow.Publisher<ExplodedEntry> publish( File root )
+    {
+        return new ExploderPublisher( p -> {
+            boolean temporary = config.isTemporary();
+            new UnpackContext( temporary ? createTemporaryDirectory() : config.getTargetDirectory(), temporary, p )
+                            .unpack( p, root );
+        } );
+    }
+
+    /**
+     * Returns a publisher of the files produced by unpacking the file/directory to the given target
+     * directory, overriding the configuration.
+     *
+     * @param root root file (or directory contents) to explode
+     * @param targetDirectory the target directory, or null to unpack alongside the root.
+     * @param cleanup whether to delete the target directory on completion.
+     * @return the publisher.
+     */
+    Flow.Publisher<ExplodedEntry> publish( File root, File targetDirectory, boolean cleanup )
+    {
+        return new ExploderPublisher( p -> new UnpackContext( targetDirectory, cleanup, p ).unpack( p, root ) );
+    }
+
+    /**
+     * Lists the top level entries of an archive, and their sizes, so that the unpack may be split into
+     * shards executed by separate processes. A compressed archive (e.g. {@code .tar.gz}) is decompressed
+     * to read its entries, as is each shard of it.
+     *
+     * @param input the archive.
+     * @return the plan.
+     * @throws InternalException if the input is not an archive or an error occurs.
+     */
+    public WorkPlan plan( File input ) throws InternalException
+    {
+        FileType type = fsh.getType( input );
+        List<WorkPlan.Unit> units = new ArrayList<>();
+
+        try
+        {
+            if ( type.isArchive() && ( ArchiveStreamFactory.ZIP.equals( type.getTypename() )
+                            || ArchiveStreamFactory.JAR.equals( type.getTypename() ) ) )
+            {
+                try ( ZipFile zipFile = new ZipFile( input ) )
+                {
+                    for ( ZipArchiveEntry entry : Collections.list( zipFile.getEntriesInPhysicalOrder() ) )
+                    {
+                        units.add( getUnit( entry ) );
+                    }
+                }
+            }
+            else if ( type instanceof SevenZFileType )
+            {
+                try ( SevenZFile sevenZ = new SevenZFile( input ) )
+                {
+                    for ( SevenZArchiveEntry entry : sevenZ.getEntries() )
+                    {
+                        units.add( getUnit( entry ) );
+                    }
+                }
+            }
+            else if ( type.isArchive() )
+            {
+                try ( ArchiveInputStream i = type.getStream( input ) )
+                {
+                    addUnits( i, units );
+                }
+            }
+            else if ( type.isCompressed()
+                            && fsh.getType( new File( type.getUncompressedFilename( input ) ) ) instanceof ArchiveFileType )
+            {
+                ArchiveFileType inner = (ArchiveFileType) fsh.getType( new File( type.getUncompressedFilename( input ) ) );
+                try ( InputStream c = type.getStream( input );
+                      ArchiveInputStream i = inner.getStream( c ) )
+                {
+                    addUnits( i, units );
+                }
+            }
+            else
+            {
+                throw new InternalException( "Unable to plan " + input + " as it is not an archive" );
+            }
+        }
+        catch ( CompressorException | ArchiveException | IOException e )
+        {
+            throw new InternalException( "Caught exception planning " + input, e );
+        }
+        return new WorkPlan( input, units );
+    }
+
+    private void addUnits( ArchiveInputStream input, List<WorkPlan.Unit> units ) throws IOException
+    {
+        ArchiveEntry entry;
+        while ( ( entry = input.getNextEntry() ) != null )
+        {
+            units.add( getUnit( entry ) );
+        }
+    }
+
+    private WorkPlan.Unit getUnit( ArchiveEntry entry )
+    {
+        FileType type = fsh.getType( new File( entry.getName() ) );
+
+        return new WorkPlan.Unit( entry.getName(), Math.max( entry.getSize(), 0 ),
+                                  ! entry.isDirectory() && ( type.isArchive() || type.isCompressed() ) );
+    }
+
+    /**
+     * Returns a lazily pulled stream of the files produced by unpacking the file/directory. The unpack
+     * only advances as entries are pulled, so nested archives are only entered when the stream reaches
+     * them and a short-circuiting operation (e.g. {@code findFirst}) stops decompression early. The
+     * stream should be closed, e.g. with try-with-resources, to stop an unfinished unpack and remove
+     * any temporary directory. A failed unpack is thrown as an {@link UncheckedInternalException}.
+     *
+     * @param root root file (or directory contents) to explode
+     * @return the stream.
+     */
+    public Stream<ExplodedEntry> stream( File root )
+    {
+        return ExploderStream.of( publish( root ) );
+    }
+
+    /**
+     * Extracts a single member of a compressed tar (.tar.gz or .tar.xz) to the destination file.
+     *
+     * If an index cache has been configured and holds an index for the archive (built by an earlier
+     * unpack or call to this method) decoding starts at the closest restart point to the member. Otherwise
+     * the archive is scanned once, without writing, to build the index.
+     *
+     * @param archive the compressed tar.
+     * @param entryName the name of the member to extract.
+     * @param destination the file to extract the member to.
+     * @throws InternalException if an error occurs.
+     */
+    public void unpackEntry( File archive, String entryName, File destination ) throws InternalException
+    {
+        new UnpackContext( null, false ).unpackEntry( archive, entryName, destination );
+    }
+
+    /**
+     * Unpacks the file/directory to the given target directory, overriding the configuration.
+     *
+     * @param processor the optional FileProcessor
+     * @param root root file (or directory contents) to explode
+     * @param targetDirectory the target directory, or null to unpack alongside the root.
+     * @param cleanup whether to delete the target directory on completion.
+     * @throws InternalException if an error occurs.
+     */
+    void unpack( ExploderFileProcessor processor, File root, File targetDirectory, boolean cleanup )
+                    throws InternalException
+    {
+        new UnpackContext( targetDirectory, cleanup ).unpack( processor, root );
+    }
+
+    /**
+     * Unpacks the remote file to the given target directory, overriding the configuration.
+     *
+     * @param processor the optional FileProcessor
+     * @param url remote file to explode
+     * @param targetDirectory the target directory.
+     * @param cleanup whether to delete the target directory on completion.
+     * @throws InternalException if an error occurs.
+     */
+    void unpack( ExploderFileProcessor processor, URL url, File targetDirectory, boolean cleanup )
+                    throws InternalException
+    {
+        new UnpackContext( targetDirectory, cleanup ).unpack( processor, url );
+    }
+
+    /**
+     * @return a new temporary directory.
+     * @throws InternalException if an error occurs.
+     */
+    static File createTemporaryDirectory() throws InternalException
+    {
+        try
+        {
+            return Files.createTempDirectory( "exploder-" + UUID.randomUUID() ).toFile();
+        }
+        catch ( IOException e )
+        {
+            throw new InternalException( "Error setting up working directory", e );
+        }
+    }
+
+    @FunctionalInterface
+    private interface EntrySource
+    {
+        InputStream getInputStream( ZipArchiveEntry entry ) throws IOException, InternalException;
+    }
+
+    /**
+     * The state of a single call, from which the unpack itself runs.
+     */
+    private class UnpackContext
+    {
+        private final Object processorLock = new Object();
+
+        /**
+         * The first file written for each entry size and CRC.
+         */
+        private final Map<String, File> written = new ConcurrentHashMap<>();
+
+        private final Map<String, ArchiveIndex> pendingIndexes = new ConcurrentHashMap<>();
+
+        /**
+         * The entries staged by this call, if staging has been configured.
+         */
+        private final StagingArena.Session staged = arena == null ? null : arena.newSession();
+
+        /**
+         * The directories created by this unpack.
+         */
+        private final Map<File, Boolean> directories = new ConcurrentHashMap<>();
+
+        private final boolean cleanup;
+
+        private final long deadline;
+
+        private File directoryRoot;
+
+        /**
+         * Whether the directory root also holds content other than this unpack, i.e. an archive unpacked
+         * beside itself.
+         */
+        private boolean sharedRoot;
+
+        private File targetDirectory;
+
+        private Checkpoint checkpoint;
+
+        private boolean staging;
+
+        private UnpackScheduler scheduler;
+
+        private WriteBehind writeBehind;
+
+        /**
+         * Tracks the bytes on disk if a listener has been configured, otherwise null.
+         */
+        private final DiskFootprint footprint = footprintListener == null ? null : new DiskFootprint();
+
+        /**
+         * Tracks the progress of this call if a listener has been configured, otherwise null.
+         */
+        private final ProgressTracker progress = progressListener == null ? null :
+                        new ProgressTracker( progressListener, progressInterval );
+
+        /**
+         * The intermediate files written by decompression.
+         */
+        private final Set<File> decompressed = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Whether the input directory was copied to the target directory.
+         */
+        private boolean copied;
+
+        /**
+         * The nested zips read in place, and their unpack directories, which have already been handled
+         * when the directory containing them is walked.
+         */
+        private final Set<File> inPlace = ConcurrentHashMap.newKeySet();
+
+        /**
+         * The chains of the outermost archives, to which the include filter applies.
+         */
+        private final Set<String> outermost = ConcurrentHashMap.newKeySet();
+
+        /**
+         * The processor of a published unpack (see {@link #publish(File)}), through which the deletion of
+         * files is deferred until the subscriber has moved past them, otherwise null.
+         */
+        private final ExploderPublisher.Delivery delivery;
+
+        /**
+         * The processor of a published unpack to which files are passed as each is extracted, otherwise null.
+         */
+        private ExploderFileProcessor publisher;
+
+        /**
+         * The unpack directories of the archives extracted by this call, and their virtual paths.
+         */
+        private final Map<File, VirtualPath> archivePaths = new ConcurrentHashMap<>();
+
+        /**
+         * The files passed to the processor as they were extracted, which the directory walk skips.
+         */
+        private final Set<File> published = ConcurrentHashMap.newKeySet();
+
+        /**
+         * The types of the files of this call, as {@link FileHandler#getType(File)} reads the header of each
+         * file. Only existing files are held, and a file is removed as it is written.
+         */
+        private final Map<File, FileType> types = new ConcurrentHashMap<>();
+
+        UnpackContext( File targetDirectory, boolean cleanup )
+        {
+            this( targetDirectory, cleanup, null );
+        }
+
+        UnpackContext( File targetDirectory, boolean cleanup, ExploderPublisher.Delivery delivery )
+        {
+            this.targetDirectory = targetDirectory;
+            this.cleanup = cleanup;
+            this.delivery = delivery;
+            this.deadline = timeout == null ? 0 : System.nanoTime() + timeout.toNanos();
+        }
+
+        void unpack( ExploderFileProcessor processor, URL url ) throws InternalException
+        {
+            try
+            {
+                File target = new File ( Files.createTempDirectory( "exploder-" + UUID.randomUUID() ).toFile(),
+                                         url.getFile().substring( url.getFile().lastIndexOf( '/' ) ) );
+
+                logger.debug( "Downloading URL {} to {} unpacking to {}", url, target, targetDirectory );
+                // JDownloader does not support file: protocols so just copy the file in those circumstances.
+                if ( url.getProtocol().equals( "file" ) )
+                {
+                    Files.copy( new File( url.getPath() ).toPath(), target.toPath() );
+                }
+                else
+                {
+                    new JDownloader( url ).partCount( 10 ).target( target.getAbsolutePath() ).execute();
+                }
+
+                directoryRoot = targetDirectory;
+
+                checkpointed_unpack( processor, target );
+            }
+            catch ( IOException | org.goots.jdownloader.utils.InternalException | URISyntaxException | InterruptedException e )
+            {
+                throw new InternalException( "Error downloading remote URL", e );
+            }
+            finally
+            {
+                release();
+                report();
+                cleanup();
+            }
+        }
+
+        void unpack( ExploderFileProcessor processor, File root ) throws InternalException
+        {
+            try
+            {
+                if ( targetDirectory == null )
+                {
+                    sharedRoot = ! root.isDirectory();
+                    targetDirectory = root.isDirectory() ? root : root.getParentFile();
+                }
+                else
+                {
+                    if ( ! targetDirectory.exists() )
+                    {
+                        targetDirectory.mkdirs();
+                    }
+                    if ( root.isDirectory() )
+                    {
+                        ExploderEvents.DirectoryCopy event = new ExploderEvents.DirectoryCopy();
+                        event.begin();
+                        FileUtils.copyDirectory( root, targetDirectory );
+                        event.record( root, targetDirectory );
+                        if ( footprint != null )
+                        {
+                            footprint.written( FileUtils.sizeOfDirectory( root ) );
+                        }
+                        copied = true;
+                        root = targetDirectory;
+                    }
+                    else if ( ! root.isFile() )
+                    {
+                        throw new InternalException(
+                                        "Target (" + root + ") is not directory or file ( exists: " + root.exists() + ')' );
+                    }
+                }
+
+                logger.debug( "Setting directory root to {} with target directory {}", root, targetDirectory.getAbsolutePath() );
+                directoryRoot = targetDirectory;
+
+                checkpointed_unpack( processor, root );
+            }
+            catch ( IOException e )
+            {
+                throw new InternalException( "Error setting up targetDirectory directory", e );
+            }
+            finally
+            {
+                release();
+                if ( delivery == null )
+                {
+                    report();
+                    cleanup();
+                }
+                else
+                {
+                    // The last files delivered may still be read until the subscriber has been signalled the end.
+                    delivery.whenReleased( this::report );
+                    delivery.whenReleased( this::cleanup );
+                }
+            }
+        }
+
+        /**
+         * Passes the disk footprint and final progress of this call to the listeners, if configured.
+         */
+        private void report()
+        {
+            if ( footprint != null )
+            {
+                logger.debug( "Unpack of {} finished with {}", directoryRoot, footprint );
+                footprintListener.accept( footprint );
+            }
+            if ( progress != null )
+            {
+                progress.finish();
+            }
+        }
+
+        /**
+         * Returns any entries staged by this call but left unprocessed (e.g. following an error) to the pool.
+         */
+        private void release()
+        {
+            if ( staged != null )
+            {
+                staged.releaseAll();
+            }
+        }
+
+        void unpackEntry( File archive, String entryName, File destination ) throws InternalException
+        {
+            FileType type = getType( archive );
+            String format = getIndexFormat( type );
+            if ( format == null || ! ArchiveStreamFactory.TAR.equals(
+                            getType( new File( type.getUncompressedFilename( archive ) ) ).getTypename() ) )
+            {
+                throw new InternalException( "Random access is only supported for .tar.gz and .tar.xz archives" );
+            }
+
+            try ( DecoderMemoryBudget.Reservation reservation = reserveDecoderMemory( archive, type ) )
+            {
+                File indexFile = indexCache == null ? null : ArchiveIndex.getIndexFile( indexCache, archive );
+                ArchiveIndex index = indexFile == null ? null : ArchiveIndex.load( indexFile, archive );
+
+                if ( index == null )
+                {
+                    logger.debug( "Building index for {}", archive );
+                    index = new ArchiveIndex( format, archive );
+
+                    try ( ArchiveInputStream tar = new TarArchiveInputStream( getCompressorStream( archive, type, index ) ) )
+                    {
+                        ArchiveEntry entry;
+                        while ( ( entry = tar.getNextEntry() ) != null )
+                        {
+                            checkCancelled();
+                            addIndexMember( index, tar, entry );
+                        }
+                    }
+                    if ( indexFile != null )
+                    {
+                        index.save( indexFile );
+                    }
+                }
+
+                long[] member = index.getMember( entryName );
+                if ( member == null )
+                {
+                    throw new InternalException( "Unable to find " + entryName + " in " + archive );
+                }
+                destination.getAbsoluteFile().getParentFile().mkdirs();
+
+                try ( InputStream input = new BoundedInputStream( index.open( member[0] ), member[1] );
+                      OutputStream output = Files.newOutputStream( destination.toPath() ) )
+                {
+                    copy( input, output );
+                }
+            }
+            catch ( CompressorException | ArchiveException | IOException e )
+            {
+                throw new InternalException( "Caught exception extracting " + entryName + " from " + archive, e );
+            }
+        }
+
+        /**
+         * Wraps {@link #internal_unpack(ExploderFileProcessor, File, File, VirtualPath)} with the loading, saving and
+         * removal of the checkpoint, if one has been configured.
+         *
+         * @param processor the optional FileProcessor
+         * @param root root file (or directory contents) to explode
+         * @throws InternalException if an error occurs.
+         */
+        private void checkpointed_unpack( ExploderFileProcessor processor, File root ) throws InternalException
+        {
+            staging = arena != null && processor != null && recurse;
+            // Staged entries are passed to the processor as their directory is walked.
+            publisher = delivery != null && recurse && ! staging ? processor : null;
+
+            if ( checkpointFile == null )
+            {
+                scheduled_unpack( processor, root );
+                return;
+            }
+
+            checkpoint = new Checkpoint( checkpointFile );
+            try
+            {
+                checkpoint.restore( directoryRoot, sharedRoot );
+                checkpoint.save();
+
+                scheduled_unpack( processor, root );
+
+                checkpoint.delete();
+            }
+            catch ( InternalException | RuntimeException e )
+            {
+                // Record whatever was completed since the last periodic save so a restart loses as little as possible.
+                checkpoint.save();
+                throw e;
+            }
+            finally
+            {
+                checkpoint = null;
+            }
+        }
+
+        /**
+         * Wraps {@link #internal_unpack(ExploderFileProcessor, File, File, VirtualPath)} so that, if multiple threads
+         * have been configured, nested archives are unpacked by an {@link UnpackScheduler} rather than
+         * recursively, and that any {@link WriteBehind} writer pool is shut down on completion.
+         *
+         * @param processor the optional FileProcessor
+         * @param root root file (or directory contents) to explode
+         * @throws InternalException if an error occurs.
+         */
+        private void scheduled_unpack( ExploderFileProcessor processor, File root ) throws InternalException
+        {
+            VirtualPath path = root.isDirectory() ? VirtualPath.ROOT : VirtualPath.ROOT.resolve( root.getName() );
+
+            if ( writers > 0 )
+            {
+                writeBehind = new WriteBehind( writers, writeCapacity );
+            }
+            try
+            {
+                if ( threads == 1 )
+                {
+                    internal_unpack( processor, root, targetDirectory, path );
+                    return;
+                }
+
+                scheduler = new UnpackScheduler( threads );
+                try
+                {
+                    internal_unpack( processor, root, targetDirectory, path );
+                    scheduler.await();
+                }
+                finally
+                {
+                    scheduler.shutdown();
+                    scheduler = null;
+                }
+            }
+            finally
+            {
+                if ( writeBehind != null )
+                {
+                    writeBehind.shutdown();
+                    writeBehind = null;
+                }
+            }
+        }
+
+        /**
+         * Unpacks the contents of the file/directory, decompressing and unarchiving recursively.
+         * It will use the specified ExploderFileProcessor on each target file. This is a internal
+         * method that will recurse correctly ; the wrapper unpack methods handle cleanup and working
+         * directory configuration.
+         *
+         * @param processor the optional FileProcessor
+         * @param root root file (or directory contents) to explode
+         * @param targetDirectory target directory to unpack to. Only used for first level unpack.
+         * @param path the virtual path of the root.
+         * @throws InternalException if an error occurs.
+         */
+        private void internal_unpack( ExploderFileProcessor processor, File root, File targetDirectory, VirtualPath path ) throws InternalException
+        {
+            if ( root.isDirectory() )
+            {
+                try ( DirectoryStream<Path> stream = Files.newDirectoryStream( root.toPath() ) )
+                {
+                    for ( Path entry : stream )
+                    {
+                        checkCancelled();
+                        File file = entry.toFile();
+                        VirtualPath child = path.resolve( file.getName() );
+
+                        if ( inPlace.contains( file ) || published.remove( file ) )
+                        {
+                            continue;
+                        }
+                        if ( scheduler != null && isNested( file ) )
+                        {
+                            scheduler.submit( file, child.getDepth(), () -> internal_unpack( processor, file, null, child ) );
+                        }
+                        else
+                        {
+                            internal_unpack( processor, file, null, child );
+                        }
+                    }
+                }
+                catch ( IOException e )
+                {
+                    throw new InternalException( "Unable to iterate through directory", e );
+                }
+                if ( staging )
+                {
+                    processStaged( processor, root, path );
+                }
+            }
+            else
+            {
+                FileType type = getType( root );
+                boolean unpacked = false;
+
+                // Check is type is supported for decompression / extraction or just move to processing.
+                if ( ! isExcluded( type, root ) )
+                {
+                    unpacked = type.isArchive() || type.isCompressed();
+
+                    if ( type.isArchive() )
+                    {
+                        logger.debug( "Unpacking {} and type {}", root, type.getTypename());
+
+                        unpackArchive( root, type, processor, targetDirectory, path );
+                    }
+                    else if ( type.isCompressed() )
+                    {
+                        logger.debug( "Decompressing {}", root );
+
+                        decompressFile ( root, type, processor, targetDirectory, path );
+                    }
+                    else
+                    {
+                        logger.debug( "Found standard file {} ", root );
+                    }
+                }
+                if ( processor != null )
+                {
+                    process( processor, root, path );
+                }
+                if ( minimizeFootprint && unpacked && isIntermediate( root, path ) )
+                {
+                    if ( delivery != null )
+                    {
+                        delivery.whenReleased( () -> deleteIntermediate( root ) );
+                    }
+                    else
+                    {
+                        deleteIntermediate( root );
+                    }
+                }
+            }
+        }
+
+        private void process( ExploderFileProcessor processor, File file, VirtualPath path ) throws InternalException
+        {
+            // Processors are not required to be thread safe.
+            synchronized ( processorLock )
+            {
+                ExploderEvents.Processor event = new ExploderEvents.Processor();
+                event.begin();
+                processor.processFile( directoryRoot, file, path );
+                event.record( this::getType, file, path, file.length(), false );
+            }
+        }
+
+        /**
+         * Passes a file of a published unpack to the processor as soon as it has been extracted, unless it is
+         * to be unpacked in turn or its location is not within an archive extracted by this call.
+         */
+        private void publish( ArchiveEntry entry, File file ) throws InternalException
+        {
+            FileType type = getType( file );
+            if ( ( type.isArchive() || type.isCompressed() ) && ! isExcluded( type, file ) )
+            {
+                return;
+            }
+            Deque<String> names = new ArrayDeque<>();
+            for ( File f = file; f != null; f = f.getParentFile() )
+            {
+                VirtualPath path = archivePaths.get( f );
+                if ( path != null )
+                {
+                    while ( ! names.isEmpty() )
+                    {
+                        path = path.resolve( names.pop() );
+                    }
+                    published.add( file );
+                    process( publisher, file, path );
+                    return;
+                }
+                names.push( f.getName() );
+            }
+            logger.debug( "Unable to locate the archive of {} ; it is processed as its directory is walked", entry.getName() );
+        }
+
+        /**
+         * @return whether the file was created by this unpack (rather than being, or being within, the input).
+         */
+        private boolean isIntermediate( File file, VirtualPath path )
+        {
+            return copied || ! path.getArchiveChain().isEmpty() || decompressed.contains( file );
+        }
+
+        /**
+         * @return the number of hardlinks to the file, or 1 if it cannot be determined.
+         */
+        private int getLinkCount( File file )
+        {
+            try
+            {
+                return (Integer) Files.getAttribute( file.toPath(), "unix:nlink" );
+            }
+            catch ( UnsupportedOperationException | IllegalArgumentException | IOException e )
+            {
+                return 1;
+            }
+        }
+
+        /**
+         * Deletes a nested archive or decompressed file whose contents have been extracted.
+         */
+        private void deleteIntermediate( File file ) throws InternalException
+        {
+            long length = file.length();
+            try
+            {
+                // Removing one of several links to a deduplicated file frees no space.
+                if ( footprint != null && getLinkCount( file ) > 1 )
+                {
+                    length = 0;
+                }
+                if ( Files.deleteIfExists( file.toPath() ) )
+                {
+                    logger.debug( "Deleted intermediate {}", file );
+                    decompressed.remove( file );
+                    if ( footprint != null )
+                    {
+                        footprint.deleted( length );
+                    }
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new InternalException( "Unable to delete intermediate " + file, e );
+            }
+        }
+
+        /**
+         * Passes the entries staged in memory for the directory to the processor, releasing their buffers.
+         */
+        private void processStaged( ExploderFileProcessor processor, File directory, VirtualPath path ) throws InternalException
+        {
+            List<StagingArena.Staged> entries = staged.take( directory );
+            try
+            {
+                for ( StagingArena.Staged s : entries )
+                {
+                    synchronized ( processorLock )
+                    {
+                        VirtualPath child = path.resolve( s.file.getName() );
+                        ExploderEvents.Processor event = new ExploderEvents.Processor();
+                        event.begin();
+                        processor.processStaged( directoryRoot, s.file, child, s.content.duplicate() );
+                        event.record( this::getType, s.file, child, s.content.remaining(), true );
+                    }
+                }
+            }
+            finally
+            {
+                entries.forEach( s -> arena.release( s.content ) );
+            }
+        }
+
+        /**
+         * @return whether the file is an archive or compressed file to be unpacked in turn.
+         */
+        private boolean isNested( File file )
+        {
+            if ( ! file.isFile() )
+            {
+                return false;
+            }
+            FileType type = getType( file );
+
+            return ( type.isArchive() || type.isCompressed() ) && ! isExcluded( type, file );
+        }
+
+        private FileType getType( File file )
+        {
+            FileType type = types.get( file );
+            if ( type == null )
+            {
+                type = fsh.getType( file );
+                if ( file.isFile() )
+                {
+                    types.put( file, type );
+                }
+            }
+            return type;
+        }
+
+        private boolean isExcluded( FileType type, File file )
+        {
+            return excludedSuffixes.contains( type.getTypename() ) ||
+                            excludedSuffixes.contains( FilenameUtils.getExtension( file.getName() ).toLowerCase() );
+        }
+
+        private void decompressFile( File root, FileType type, ExploderFileProcessor processor, File targetDirectory,
+                                     VirtualPath path ) throws InternalException
+        {
+            File destination;
+            if ( targetDirectory != null )
+            {
+                destination = new File( targetDirectory, type.getUncompressedFilename( new File ( root.getName() ) ) );
+            }
+            else
+            {
+                destination = new File( type.getUncompressedFilename( root ) );
+            }
+            ArchiveIndex index = createIndex( root, type, destination );
+            FileType inner = getType( destination );
+            addTotals( root, type );
+            // The decompressed file is a sibling of the compressed one.
+            VirtualPath destinationPath = path.getParent().resolve( destination.getName() );
+
+            if ( ! materialize && recurse && inner instanceof ArchiveFileType && ( (ArchiveFileType) inner ).isStreamable()
+                            && ! isExcluded( inner, destination ) )
+            {
+                unpackStacked( root, type, (ArchiveFileType) inner, destination, index, processor, destinationPath );
+                return;
+            }
+
+            try
+            {
+                String chain = getArchiveChain( root );
+                decompressed.add( destination );
+
+                if ( checkpoint != null && checkpoint.isComplete( chain ) && destination.exists() )
+                {
+                    logger.debug( "Skipping previously decompressed file {} ", destination );
+                }
+                else
+                {
+                    ExploderEvents.Decompress event = new ExploderEvents.Decompress();
+                    event.begin();
+                    // The memory is reserved before the decoder, which may allocate its dictionary, is opened.
+                    try ( DecoderMemoryBudget.Reservation reservation = reserveDecoderMemory( root, type );
+                          CompressorInputStream c = getCompressorStream( root, type, index );
+                          InputStream decoded = track( decode( c, index ) );
+                          OutputStream output = Files.newOutputStream( destination.toPath() ) )
+                    {
+                        long bytes = copy( decoded, output );
+                        types.remove( destination );
+                        event.record( type.getTypename(), path, root.length(), bytes );
+                        if ( footprint != null )
+                        {
+                            footprint.written( bytes );
+                        }
+                    }
+                    if ( checkpoint != null )
+                    {
+                        checkpoint.archiveCompleted( chain );
+                    }
+                    if ( index != null )
+                    {
+                        // The member offsets are recorded, and the index saved, as the tar is unpacked.
+                        pendingIndexes.put( getArchiveChain( destination ), index );
+                    }
+                }
+
+                logger.debug( "Now examining decompressed file {} ", destination );
+
+                if ( recurse )
+                {
+                    // Examine decompressed file - that in itself may be an ordinary file or an archive etc.
+                    internal_unpack( processor, destination, null, destinationPath );
+                }
+            }
+            catch ( CompressorException | ArchiveException | IOException e )
+            {
+                throw new InternalException( "Caught exception decompressing file", e );
+            }
+        }
+
+        /**
+         * Unpacks a compressed archive (e.g. {@code .tar.gz}) by chaining the decompressing stream into the
+         * archive stream so the intermediate archive is never written to disk. The layout of the unpacked
+         * content is the same as if the intermediate had been materialized.
+         */
+        private void unpackStacked( File root, FileType type, ArchiveFileType inner, File destination, ArchiveIndex index,
+                                    ExploderFileProcessor processor, VirtualPath path ) throws InternalException
+        {
+            File target = new File( destination.getParentFile(), destination.getName() + Exploder.ARCHIVE_UNPACK_SUFFIX );
+            String chain = getArchiveChain( destination );
+            addOutermost( chain, path );
+            archivePaths.put( target, path.asArchive() );
+
+            logger.debug( "Unpacking {} as {} in a single pass to {}", root, inner.getTypename(), target );
+            try
+            {
+                if ( checkpoint != null && checkpoint.isComplete( chain ) )
+                {
+                    logger.debug( "Skipping previously unpacked archive {}", destination );
+                }
+                else
+                {
+                    target.mkdirs();
+                    if ( index != null )
+                    {
+                        pendingIndexes.put( chain, index );
+                    }
+                    ExploderEvents.Decompress decompress = new ExploderEvents.Decompress();
+                    ExploderEvents.Archive event = new ExploderEvents.Archive();
+                    decompress.begin();
+                    event.begin();
+                    long extracted;
+                    long uncompressed;
+                    try ( DecoderMemoryBudget.Reservation reservation = reserveDecoderMemory( root, type );
+                          CompressorInputStream c = getCompressorStream( root, type, index );
+                          InputStream decoded = decode( c, index );
+                          ArchiveInputStream i = inner.getStream( decoded ) )
+                    {
+                        extracted = extract( i, target, chain );
+                        // Any decoder thread has been stopped by closing the stream, so the count is stable.
+                        decoded.close();
+                        uncompressed = c.getUncompressedCount();
+                    }
+                    event.record( inner.getTypename(), path, uncompressed, extracted );
+                    decompress.record( type.getTypename(), path.getParent().resolve( root.getName() ), root.length(),
+                                       uncompressed );
+                    if ( checkpoint != null )
+                    {
+                        checkpoint.archiveCompleted( chain );
+                    }
+                }
+            }
+            catch ( CompressorException | ArchiveException | IOException e )
+            {
+                throw new InternalException( "Caught exception unpacking compressed archive", e );
+            }
+
+            internal_unpack( processor, target, null, path.asArchive() );
+        }
+
+        /**
+         * Returns an index to be built while decompressing if an index cache has been configured and
+         * the file is a compressed tar supporting random access.
+         */
+        private ArchiveIndex createIndex( File root, FileType type, File destination )
+        {
+            String format = getIndexFormat( type );
+
+            if ( indexCache == null || format == null || ! ArchiveStreamFactory.TAR.equals( getType( destination ).getTypename() ) )
+            {
+                return null;
+            }
+            return new ArchiveIndex( format, root );
+        }
+
+        private String getIndexFormat( FileType type )
+        {
+            if ( type instanceof GZIPFileType )
+            {
+                return ArchiveIndex.GZIP;
+            }
+            else if ( type instanceof XZFileType )
+            {
+                return ArchiveIndex.XZ;
+            }
+            return null;
+        }
+
+        private CompressorInputStream getCompressorStream( File root, FileType type, ArchiveIndex index )
+                        throws IOException, CompressorException, ArchiveException, InternalException
+        {
+            if ( index != null && type instanceof GZIPFileType )
+            {
+                return new InflaterGzipInputStream( read( root ), index::addCheckpoint );
+            }
+            else if ( jdkInflater && type instanceof GZIPFileType )
+            {
+                return pipeline ? new InflaterGzipInputStream( read( root ) ) : ( (GZIPFileType) type ).getInflaterStream( root );
+            }
+            else if ( decoderMemory != null && ( type instanceof XZFileType || type instanceof LZMAFileType ) )
+            {
+                return ( (CompressedFileType) type ).getStream( read( root ), decoderMemory.getLimitInKb() );
+            }
+            else if ( pipeline && type instanceof CompressedFileType )
+            {
+                return ( (CompressedFileType) type ).getStream( read( root ) );
+            }
+            return type.getStream( root );
+        }
+
+        /**
+         * @return the file, read ahead by its own thread if pipelining.
+         */
+        private InputStream read( File root ) throws IOException
+        {
+            InputStream input = new FileInputStream( root );
+            return pipeline ? new PrefetchInputStream( input, "exploder-reader" ) : input;
+        }
+
+        /**
+         * Reserves the memory required by the decoder of an LZMA, XZ or 7z file from the budget, if one has
+         * been configured, waiting while other decoders hold it.
+         *
+         * @return the reservation, to be closed once decoding is complete, or null if none is required.
+         */
+        private DecoderMemoryBudget.Reservation reserveDecoderMemory( File root, FileType type )
+                        throws IOException, CancelledException
+        {
+            if ( decoderMemory == null )
+            {
+                return null;
+            }
+            if ( type instanceof XZFileType )
+            {
+                return reserveDecoderMemory( root, getXZMemory( root ) );
+            }
+            else if ( type instanceof LZMAFileType )
+            {
+                return reserveDecoderMemory( root, getLZMAMemory( root ) );
+            }
+            else if ( type instanceof SevenZFileType )
+            {
+                return reserveDecoderMemory( root, getSevenZMemory( root ) );
+            }
+            return null;
+        }
+
+        private DecoderMemoryBudget.Reservation reserveDecoderMemory( File root, long memory )
+                        throws IOException, CancelledException
+        {
+            if ( decoderMemory == null || memory == 0 )
+            {
+                return null;
+            }
+            logger.debug( "Reserving {}KB of decoder memory for {}", memory, root );
+            return decoderMemory.reserve( root, memory, this::checkCancelled );
+        }
+
+        private SevenZFile openSevenZ( File root ) throws IOException
+        {
+            return decoderMemory == null ? new SevenZFile( root ) :
+                            new SevenZFile( root, SevenZFileType.getOptions( decoderMemory.getLimitInKb() ) );
+        }
+
+        /**
+         * @return the memory in KB required by the decoder of the first block, found by opening it with
+         * no memory at all so that the block header is read but nothing is allocated.
+         */
+        private long getXZMemory( File root ) throws IOException
+        {
+            try ( XZInputStream xz = new XZInputStream( new BufferedInputStream( new FileInputStream( root ) ), 0 ) )
+            {
+                xz.read();
+                return 0;
+            }
+            catch ( org.tukaani.xz.MemoryLimitException e )
+            {
+                return e.getMemoryNeeded();
+            }
+        }
+
+        /**
+         * @return the memory in KB required by the decoder, given the properties and dictionary size in
+         * the header.
+         */
+        private long getLZMAMemory( File root ) throws IOException
+        {
+            byte[] header = new byte[5];
+            try ( InputStream input = new FileInputStream( root ) )
+            {
+                IOUtils.readFully( input, header );
+            }
+            int dictSize = ( header[1] & 0xFF ) | ( header[2] & 0xFF ) << 8 | ( header[3] & 0xFF ) << 16 | ( header[4] & 0xFF ) << 24;
+            return LZMAInputStream.getMemoryUsage( dictSize, header[0] );
+        }
+
+        /**
+         * @return the memory in KB required by the largest LZMA or LZMA2 decoder of the archive. Folders are
+         * decoded one at a time, so this is the most held at once by a reader.
+         */
+        private long getSevenZMemory( File root ) throws IOException
+        {
+            long memory = 0;
+            try ( SevenZFile sevenZ = openSevenZ( root ) )
+            {
+                for ( SevenZArchiveEntry entry : sevenZ.getEntries() )
+                {
+                    if ( entry.getContentMethods() == null )
+                    {
+                        continue;
+                    }
+                    for ( SevenZMethodConfiguration method : entry.getContentMethods() )
+                    {
+                        if ( method.getMethod() == SevenZMethod.LZMA2 && method.getOptions() instanceof Number )
+                        {
+                            memory = Math.max( memory, LZMA2InputStream.getMemoryUsage( ( (Number) method.getOptions() ).intValue() ) );
+                        }
+                        else if ( method.getMethod() == SevenZMethod.LZMA && method.getOptions() instanceof LZMA2Options )
+                        {
+                            LZMA2Options options = (LZMA2Options) method.getOptions();
+                            memory = Math.max( memory, LZMAInputStream.getMemoryUsage( options.getDictSize(), options.getLc(),
+                                                                                       options.getLp() ) );
+                        }
+                    }
+                }
+            }
+            return memory;
+        }
+
+        /**
+         * @return the stream, counting the bytes read from it if tracking progress.
+         */
+        private InputStream track( InputStream input )
+        {
+            return progress == null ? input : progress.track( input );
+        }
+
+        /**
+         * Adds the content of an archive or compressed file to the progress totals, if tracking progress.
+         * Zip and 7z list the sizes of their entries, and xz its uncompressed size, so these are read
+         * from the metadata. Gzip records its size modulo 4GB, so that is taken as a lower bound, and the
+         * content of the other formats is estimated from the size of the file.
+         */
+        private void addTotals( File root, FileType type )
+        {
+            if ( progress == null )
+            {
+                return;
+            }
+            String typename = type.getTypename();
+            long bytes = root.length();
+            long entries = 0;
+            boolean exact = false;
+
+            try
+            {
+                if ( ArchiveStreamFactory.ZIP.equals( typename ) || ArchiveStreamFactory.JAR.equals( typename ) )
+                {
+                    try ( ZipFile zipFile = new ZipFile( root ) )
+                    {
+                        bytes = 0;
+                        exact = true;
+                        for ( ZipArchiveEntry entry : Collections.list( zipFile.getEntries() ) )
+                        {
+                            bytes += Math.max( entry.getSize(), 0 );
+                            exact &= entry.getSize() >= 0;
+                            entries++;
+                        }
+                    }
+                }
+                else if ( type instanceof SevenZFileType )
+                {
+                    try ( SevenZFile sevenZ = new SevenZFile( root ) )
+                    {
+                        bytes = 0;
+                        exact = true;
+                        for ( SevenZArchiveEntry entry : sevenZ.getEntries() )
+                        {
+                            bytes += entry.getSize();
+                            entries++;
+                        }
+                    }
+                }
+                else if ( type instanceof XZFileType )
+                {
+                    try ( SeekableXZInputStream xz = new SeekableXZInputStream( new SeekableFileInputStream( root ) ) )
+                    {
+                        bytes = xz.length();
+                        exact = true;
+                    }
+                }
+                else if ( type instanceof GZIPFileType && bytes >= 4 )
+                {
+                    try ( RandomAccessFile file = new RandomAccessFile( root, "r" ) )
+                    {
+                        file.seek( bytes - 4 );
+                        long size = Integer.toUnsignedLong( Integer.reverseBytes( file.readInt() ) );
+                        bytes = Math.max( size, bytes );
+                    }
+                }
+                else if ( type.isCompressed() )
+                {
+                    bytes *= COMPRESSION_ESTIMATE;
+                }
+            }
+            catch ( IOException e )
+            {
+                logger.debug( "Unable to read the size of {} ; estimating from its length", root, e );
+            }
+            progress.archiveOpened( root, bytes, entries, exact );
+        }
+
+        /**
+         * Returns the decompressed stream, decoded ahead by its own thread if pipelining so that decoding
+         * overlaps the reading of the file and the writing of its content. When building an index the
+         * decoder records checkpoints that are saved by this thread, so it is not moved to another.
+         */
+        private InputStream decode( CompressorInputStream c, ArchiveIndex index )
+        {
+            return pipeline && index == null ? new PrefetchInputStream( c, "exploder-decoder" ) : c;
+        }
+
+        private void unpackArchive( File root, FileType type, ExploderFileProcessor processor, File targetDirectory,
+                                    VirtualPath path ) throws InternalException
+        {
+            try
+            {
+                File target;
+                if ( targetDirectory == null )
+                {
+                    target = new File( root.getParentFile(), root.getName() + Exploder.ARCHIVE_UNPACK_SUFFIX );
+                    target.mkdirs();
+                }
+                else
+                {
+                    target = targetDirectory;
+                }
+                String chain = getArchiveChain( root );
+                String typename = type.getTypename();
+                addOutermost( chain, path );
+                archivePaths.put( target, path.asArchive() );
+                addTotals( root, type );
+                boolean zip = ArchiveStreamFactory.ZIP.equals( typename ) || ArchiveStreamFactory.JAR.equals( typename );
+
+                if ( checkpoint != null && checkpoint.isComplete( chain ) )
+                {
+                    logger.debug( "Skipping previously unpacked archive {}", root );
+                }
+                else
+                {
+                    long resume = checkpoint == null ? 0 : checkpoint.getEntryIndex( chain );
+                    long extracted;
+                    ExploderEvents.Archive event = new ExploderEvents.Archive();
+                    event.begin();
+
+                    if ( type instanceof SevenZFileType && ( threads > 1 || getIncludeFilter( chain ) != null ) )
+                    {
+                        extracted = extract( root, target, chain );
+                    }
+                    else if ( zip && storedInPlace && recurse )
+                    {
+                        try ( FileChannel channel = FileChannel.open( root.toPath(), StandardOpenOption.READ ) )
+                        {
+                            extracted = extractInPlace( new BoundedSeekableByteChannel( channel, 0, channel.size() ), target,
+                                                        chain, resume, processor, path.asArchive() );
+                        }
+                    }
+                    else if ( zip && jdkInflater )
+                    {
+                        // The JDK ZipFile inflates deflated entries with the platform zlib. It only lists entries in
+                        // central directory order, so they are found by name in the physical order used by the other
+                        // modes, keeping checkpointed entry indices consistent.
+                        try ( ZipFile order = new ZipFile( root );
+                              java.util.zip.ZipFile zipFile = new java.util.zip.ZipFile( root ) )
+                        {
+                            extracted = extract( order.getEntriesInPhysicalOrder(), entry -> {
+                                ZipEntry jdkEntry = zipFile.getEntry( entry.getName() );
+                                if ( jdkEntry == null )
+                                {
+                                    throw new InternalException( "Unable to find entry " + entry.getName() );
+                                }
+                                return zipFile.getInputStream( jdkEntry );
+                            }, target, chain, resume, Collections.emptySet() );
+                        }
+                    }
+                    else if ( zip && ( resume > 0 || deduplicate ) )
+                    {
+                        // Zip files are seekable so rather than streaming past the completed entries jump straight to the first incomplete one.
+                        // The central directory also gives the size and CRC of entries written with a data descriptor
+                        // (as by the jar tool), which the stream does not know until the entry has been read.
+                        try ( ZipFile zipFile = new ZipFile( root ) )
+                        {
+                            extracted = extract( zipFile.getEntriesInPhysicalOrder(), entry -> {
+                                if ( ! zipFile.canReadEntryData( entry ) )
+                                {
+                                    throw new InternalException( "Unable to read data entry for " + entry.toString() );
+                                }
+                                return zipFile.getInputStream( entry );
+                            }, target, chain, resume, Collections.emptySet() );
+                        }
+                    }
+                    else if ( decoderMemory != null && type instanceof SevenZFileType )
+                    {
+                        try ( DecoderMemoryBudget.Reservation reservation = reserveDecoderMemory( root, type );
+                              ArchiveInputStream i = ( (SevenZFileType) type ).getStream( root, decoderMemory.getLimitInKb() ) )
+                        {
+                            extracted = extract( i, target, chain );
+                        }
+                    }
+                    else
+                    {
+                        try ( ArchiveInputStream i = type.getStream( root ) )
+                        {
+                            extracted = extract( i, target, chain );
+                        }
+                    }
+                    event.record( typename, path, root.length(), extracted );
+
+                    if ( checkpoint != null )
+                    {
+                        checkpoint.archiveCompleted( chain );
+                    }
+                }
+
+                if ( recurse )
+                {
+                    // Recurse into unpacked directory
+                    internal_unpack( processor, target, null, path.asArchive() );
+                }
+            }
+            catch ( CompressorException | ArchiveException | IOException e )
+            {
+                throw new InternalException( "Caught exception unpacking archive", e );
+            }
+        }
+
+        /**
+         * @return the number of bytes extracted.
+         */
+        private long extract( ArchiveInputStream input, File destination, String chain ) throws IOException, InternalException
+        {
+            long extracted = 0;
+            ArchiveIndex archiveIndex = pendingIndexes.remove( chain );
+            WriteBehind.Batch batch = writeBehind == null ? null : writeBehind.newBatch();
+            Predicate<String> filter = getIncludeFilter( chain );
+            long resume = checkpoint == null ? 0 : checkpoint.getEntryIndex( chain );
+            Checkpoint.Entries completion = checkpoint == null ? null : checkpoint.entries( chain );
+            long index = 0;
+            long bytes = 0;
+            ArchiveEntry entry;
+            while ( (entry = input.getNextEntry()) != null)
+            {
+                checkCancelled();
+                if ( ! input.canReadEntryData( entry ) )
+                {
+                    throw new InternalException( "Unable to read data entry for " + entry.toString() );
+                }
+                File file = new File(destination, entry.getName());
+
+                if ( archiveIndex != null )
+                {
+                    addIndexMember( archiveIndex, input, entry );
+                }
+                bytes += Math.max( entry.getSize(), 0 );
+                Runnable onWritten = getCompletion( completion, index, bytes );
+                if ( index < resume && isExtracted( entry, file ) )
+                {
+                    // The archive stream will skip over the unread entry data.
+                    logger.debug( "Skipping previously extracted entry {}", file );
+                    complete( onWritten );
+                }
+                else if ( filter != null && ! filter.test( entry.getName() ) )
+                {
+                    logger.debug( "Skipping excluded entry {}", entry.getName() );
+                    complete( onWritten );
+                }
+                else
+                {
+                    extracted += extractEntry( entry, input, file, chain, batch, onWritten );
+                }
+                index++;
+
+                if ( checkpoint != null )
+                {
+                    checkpoint.saveIfDue();
+                }
+            }
+            if ( batch != null )
+            {
+                batch.await();
+            }
+            if ( archiveIndex != null )
+            {
+                archiveIndex.save( ArchiveIndex.getIndexFile( indexCache, archiveIndex.getSource() ) );
+            }
+            return extracted;
+        }
+
+        /**
+         * Records the offset of the entry data within the uncompressed tar. Sparse entries are not
+         * contiguous and so are omitted.
+         */
+        private void addIndexMember( ArchiveIndex archiveIndex, ArchiveInputStream input, ArchiveEntry entry )
+        {
+            if ( ! entry.isDirectory() && ! ( entry instanceof TarArchiveEntry && ( (TarArchiveEntry) entry ).isSparse() ) )
+            {
+                archiveIndex.addMember( entry.getName(), input.getBytesRead(), entry.getSize() );
+            }
+        }
+
+        /**
+         * Extracts the entries of a zip read through the window. Rather than being written, each STORED
+         * nested zip is unpacked in place from a window over its data within the same file.
+         *
+         * @return the number of bytes extracted.
+         */
+        private long extractInPlace( BoundedSeekableByteChannel window, File destination, String chain, long resume,
+                                     ExploderFileProcessor processor, VirtualPath path ) throws IOException, InternalException
+        {
+            List<ZipArchiveEntry> nested = new ArrayList<>();
+            Set<Long> inPlace = new HashSet<>();
+            long extracted;
+
+            try ( ZipFile zipFile = new ZipFile( window ) )
+            {
+                Predicate<String> filter = getIncludeFilter( chain );
+                List<ZipArchiveEntry> entries = Collections.list( zipFile.getEntriesInPhysicalOrder() );
+                // Nested zips keep their index so that checkpointed entry indices match those of the other modes.
+                for ( int i = 0; i < entries.size(); i++ )
+                {
+                    ZipArchiveEntry entry = entries.get( i );
+                    if ( isStoredZip( zipFile, entry, new File( destination, entry.getName() ) )
+                                    && ( filter == null || filter.test( entry.getName() ) ) )
+                    {
+                        nested.add( entry );
+                        inPlace.add( (long) i );
+                    }
+                }
+                extracted = extract( Collections.enumeration( entries ), entry -> {
+                    if ( ! zipFile.canReadEntryData( entry ) )
+                    {
+                        throw new InternalException( "Unable to read data entry for " + entry.toString() );
+                    }
+                    return zipFile.getInputStream( entry );
+                }, destination, chain, resume, inPlace );
+            }
+            for ( ZipArchiveEntry entry : nested )
+            {
+                checkCancelled();
+                VirtualPath child = path;
+                for ( String segment : entry.getName().split( "/" ) )
+                {
+                    child = segment.isEmpty() ? child : child.resolve( segment );
+                }
+                unpackInPlace( window.slice( entry.getDataOffset(), entry.getSize() ), new File( destination, entry.getName() ),
+                               processor, child );
+            }
+            return extracted;
+        }
+
+        /**
+         * @return whether the entry is an uncompressed zip that may be mapped, and so read in place.
+         */
+        private boolean isStoredZip( ZipFile zipFile, ZipArchiveEntry entry, File file )
+        {
+            if ( entry.isDirectory() || entry.getMethod() != ZipEntry.STORED || entry.getSize() <= 0
+                            || entry.getSize() > Integer.MAX_VALUE || ! zipFile.canReadEntryData( entry ) )
+            {
+                return false;
+            }
+            FileType type = getType( file );
+            String typename = type.getTypename();
+
+            return ( ArchiveStreamFactory.ZIP.equals( typename ) || ArchiveStreamFactory.JAR.equals( typename ) )
+                            && ! isExcluded( type, file );
+        }
+
+        /**
+         * Unpacks a STORED nested zip from the window over its data, with the same layout, checkpoints and
+         * recursion as {@link #unpackArchive} had it been written. The processor is passed the nested zip
+         * as staged content mapped from the outer file.
+         */
+        private void unpackInPlace( BoundedSeekableByteChannel window, File file, ExploderFileProcessor processor,
+                                    VirtualPath path ) throws InternalException
+        {
+            File target = new File( file.getParentFile(), file.getName() + Exploder.ARCHIVE_UNPACK_SUFFIX );
+            String chain = getArchiveChain( file );
+
+            logger.debug( "Unpacking stored {} in place to {}", file, target );
+            inPlace.add( file );
+            inPlace.add( target );
+            archivePaths.put( target, path.asArchive() );
+            try
+            {
+                long size = window.size();
+                if ( progress != null )
+                {
+                    progress.archiveOpened( file, size, 0, false );
+                }
+                if ( checkpoint != null && checkpoint.isComplete( chain ) )
+                {
+                    logger.debug( "Skipping previously unpacked archive {}", file );
+                }
+                else
+                {
+                    target.mkdirs();
+                    long resume = checkpoint == null ? 0 : checkpoint.getEntryIndex( chain );
+                    ExploderEvents.Archive event = new ExploderEvents.Archive();
+                    event.begin();
+                    long extracted = extractInPlace( window, target, chain, resume, processor, path.asArchive() );
+                    event.record( getType( file ).getTypename(), path, size, extracted );
+
+                    if ( checkpoint != null )
+                    {
+                        checkpoint.archiveCompleted( chain );
+                    }
+                }
+
+                internal_unpack( processor, target, null, path.asArchive() );
+
+                if ( processor != null )
+                {
+                    synchronized ( processorLock )
+                    {
+                        ExploderEvents.Processor event = new ExploderEvents.Processor();
+                        event.begin();
+                        processor.processStaged( directoryRoot, file, path, window.map() );
+                        event.record( this::getType, file, path, size, true );
+                    }
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new InternalException( "Caught exception unpacking stored archive " + file, e );
+            }
+        }
+
+        /**
+         * Extracts the entries of a random access zip file, skipping without reading any entries before
+         * the resume index that were previously extracted.
+         *
+         * @param inPlace the indices of the entries that are unpacked in place rather than written.
+         * @return the number of bytes extracted.
+         */
+        private long extract( Enumeration<ZipArchiveEntry> entries, EntrySource source, File destination, String chain, long resume,
+                              Set<Long> inPlace ) throws IOException, InternalException
+        {
+            long extracted = 0;
+            WriteBehind.Batch batch = writeBehind == null ? null : writeBehind.newBatch();
+            Predicate<String> filter = getIncludeFilter( chain );
+            Checkpoint.Entries completion = checkpoint == null ? null : checkpoint.entries( chain );
+            long index = 0;
+            long bytes = 0;
+            while ( entries.hasMoreElements() )
+            {
+                ZipArchiveEntry entry = entries.nextElement();
+                checkCancelled();
+
+                File file = new File(destination, entry.getName());
+
+                bytes += Math.max( entry.getSize(), 0 );
+                Runnable onWritten = getCompletion( completion, index, bytes );
+                if ( inPlace.contains( index ) )
+                {
+                    // Unpacked in place by the caller, and checkpointed as an archive of its own.
+                    complete( onWritten );
+                }
+                else if ( index < resume && isExtracted( entry, file ) )
+                {
+                    logger.debug( "Skipping previously extracted entry {}", file );
+                    complete( onWritten );
+                }
+                else if ( filter != null && ! filter.test( entry.getName() ) )
+                {
+                    logger.debug( "Skipping excluded entry {}", entry.getName() );
+                    complete( onWritten );
+                }
+                else
+                {
+                    try ( InputStream input = source.getInputStream( entry ) )
+                    {
+                        extracted += extractEntry( entry, input, file, chain, batch, onWritten );
+                    }
+                }
+                index++;
+
+                if ( checkpoint != null )
+                {
+                    checkpoint.saveIfDue();
+                }
+            }
+            if ( batch != null )
+            {
+                batch.await();
+            }
+            return extracted;
+        }
+
+        /**
+         * Extracts a 7z archive using random access. The selected entries are split into contiguous,
+         * similarly sized, ranges of whole folders (solid blocks) each of which is decoded by its own
+         * {@link SevenZFile} on a separate thread. A folder can only be decoded from its start, so it is
+         * never divided between readers ; an archive of a single solid folder, or whose folders cannot
+         * be read, is extracted by one reader. As for the other formats, entries recorded as complete by
+         * a checkpoint are skipped if they have been extracted.
+         *
+         * @return the number of bytes extracted.
+         */
+        private long extract( File root, File destination, String chain ) throws IOException, InternalException
+        {
+            WriteBehind.Batch batch = writeBehind == null ? null : writeBehind.newBatch();
+            Predicate<String> filter = getIncludeFilter( chain );
+            List<Integer> selected = new ArrayList<>();
+            List<Long> sizes = new ArrayList<>();
+            List<Integer> folders = new ArrayList<>();
+            List<Runnable> completions = new ArrayList<>();
+            long resume = checkpoint == null ? 0 : checkpoint.getEntryIndex( chain );
+            Checkpoint.Entries completion = checkpoint == null ? null : checkpoint.entries( chain );
+            long total = 0;
+            long bytes = 0;
+
+            try ( SevenZFile sevenZ = openSevenZ( root ) )
+            {
+                int[] folderIndices = SevenZFileType.getFolderIndices( sevenZ );
+                int index = 0;
+                for ( SevenZArchiveEntry entry : sevenZ.getEntries() )
+                {
+                    File file = new File( destination, entry.getName() );
+                    bytes += entry.getSize();
+                    completions.add( getCompletion( completion, index, bytes ) );
+
+                    if ( index < resume && isExtracted( entry, file ) )
+                    {
+                        logger.debug( "Skipping previously extracted entry {}", file );
+                        complete( completions.get( index ) );
+                    }
+                    else if ( filter != null && ! filter.test( entry.getName() ) )
+                    {
+                        logger.debug( "Skipping excluded entry {}", entry.getName() );
+                        complete( completions.get( index ) );
+                    }
+                    else if ( entry.isDirectory() )
+                    {
+                        createDirectory( file );
+                        complete( completions.get( index ) );
+                    }
+                    else if ( ! entry.hasStream() )
+                    {
+                        createDirectory( file.getParentFile() );
+                        Files.newOutputStream( file.toPath() ).close();
+                        complete( completions.get( index ) );
+                    }
+                    else
+                    {
+                        selected.add( index );
+                        sizes.add( entry.getSize() );
+                        folders.add( folderIndices == null ? -1 : folderIndices[index] );
+                        total += entry.getSize();
+                    }
+                    index++;
+                }
+            }
+
+            // Entries may only be read through the SevenZFile instance that created them so the ranges are recorded as indices.
+            int readers = Math.min( threads, (int) folders.stream().distinct().count() );
+            List<List<Integer>> ranges = new ArrayList<>();
+            List<Integer> range = new ArrayList<>();
+            long accumulated = 0;
+            for ( int i = 0; i < selected.size(); i++ )
+            {
+                range.add( selected.get( i ) );
+                accumulated += sizes.get( i );
+                boolean folderEnd = i + 1 == selected.size() || ! folders.get( i + 1 ).equals( folders.get( i ) );
+                if ( folderEnd && accumulated >= total * ( ranges.size() + 1 ) / readers && ranges.size() < readers - 1 )
+                {
+                    ranges.add( range );
+                    range = new ArrayList<>();
+                }
+            }
+            if ( ! range.isEmpty() )
+            {
+                ranges.add( range );
+            }
+            logger.debug( "Extracting {} entries in {} folders of {} with {} readers", selected.size(),
+                          folders.stream().distinct().count(), root, ranges.size() );
+
+            long memory = decoderMemory == null ? 0 : getSevenZMemory( root );
+            LongAdder extracted = new LongAdder();
+            ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, ranges.size() ) );
+            try
+            {
+                List<Future<Void>> futures = new ArrayList<>();
+                for ( List<Integer> indices : ranges )
+                {
+                    futures.add( executor.submit( () -> {
+                        // Each reader holds its own decoder.
+                        try ( DecoderMemoryBudget.Reservation reservation = reserveDecoderMemory( root, memory );
+                              SevenZFile sevenZ = openSevenZ( root ) )
+                        {
+                            List<SevenZArchiveEntry> entries = new ArrayList<>();
+                            sevenZ.getEntries().forEach( entries::add );
+
+                            for ( int index : indices )
+                            {
+                                SevenZArchiveEntry entry = entries.get( index );
+                                checkCancelled();
+                                try ( InputStream input = sevenZ.getInputStream( entry ) )
+                                {
+                                    extracted.add( extractEntry( entry, input, new File( destination, entry.getName() ), chain,
+                                                                 batch, completions.get( index ) ) );
+                                }
+                                if ( checkpoint != null )
+                                {
+                                    checkpoint.saveIfDue();
+                                }
+                            }
+                        }
+                        return null;
+                    } ) );
+                }
+                for ( Future<Void> future : futures )
+                {
+                    future.get();
+                }
+                if ( batch != null )
+                {
+                    batch.await();
+                }
+                return extracted.sum();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new CancelledException( "Unpack was interrupted" );
+            }
+            catch ( ExecutionException e )
+            {
+                if ( e.getCause() instanceof InternalException )
+                {
+                    throw (InternalException) e.getCause();
+                }
+                else if ( e.getCause() instanceof IOException )
+                {
+                    throw (IOException) e.getCause();
+                }
+                throw new InternalException( "Caught exception extracting " + root, e );
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+
+        /**
+         * @param onWritten optional action to run once the entry has been written, which for an entry queued
+         *                  for write-behind is after this returns.
+         * @return the number of bytes extracted.
+         */
+        private long extractEntry( ArchiveEntry entry, InputStream source, File file, String chain, WriteBehind.Batch batch,
+                                   Runnable onWritten ) throws IOException, InternalException
+        {
+            // The archive is itself delivered after its entries, so this never waits for demand that is not needed.
+            if ( publisher != null && batch == null && ! entry.isDirectory() )
+            {
+                delivery.awaitDemand();
+            }
+            long bytes;
+            if ( progress == null )
+            {
+                bytes = extractEntryContent( entry, source, file, chain, batch, onWritten );
+            }
+            else
+            {
+                progress.entryStarted( chain, entry.getName() );
+                bytes = extractEntryContent( entry, progress.track( source ), file, chain, batch, onWritten );
+                progress.entryCompleted();
+
+                // A written behind entry may still be in progress, so its type is not held.
+                FileType type = entry.isDirectory() ? null : batch == null ? getType( file ) : fsh.getType( file );
+                if ( recurse && type != null && ( type.isArchive() || type.isCompressed() ) && ! isExcluded( type, file ) )
+                {
+                    progress.nestedFound( file, bytes );
+                }
+            }
+            // Written behind entries may not yet exist, so are processed as their directory is walked.
+            if ( publisher != null && batch == null && ! entry.isDirectory() && file.isFile() )
+            {
+                publish( entry, file );
+            }
+            return bytes;
+        }
+
+        private long extractEntryContent( ArchiveEntry entry, InputStream source, File file, String chain,
+                                          WriteBehind.Batch batch, Runnable onWritten ) throws IOException, CancelledException
+        {
+            if (entry.isDirectory())
+            {
+                createDirectory( file );
+                complete( onWritten );
+                return 0;
+            }
+            else
+            {
+                createDirectory( file.getParentFile() );
+                CountingInputStream counted = new CountingInputStream( source );
+                InputStream input = counted;
+
+                if ( staging )
+                {
+                    FileType type = getType( file );
+
+                    // Archives must be written so they may be unpacked in turn.
+                    if ( ! type.isArchive() && ! type.isCompressed() )
+                    {
+                        input = staged.stage( file, entry.getSize(), input );
+                        if ( input == null )
+                        {
+                            complete( onWritten );
+                            return counted.getByteCount();
+                        }
+                    }
+                }
+
+                types.remove( file );
+                String key = deduplicate ? getContentKey( entry ) : null;
+                File original = key == null ? null : written.get( key );
+                if ( original != null && minimizeFootprint && ! original.exists() )
+                {
+                    // The original was an intermediate that has since been deleted.
+                    written.remove( key, original );
+                    original = null;
+                }
+                if ( original != null )
+                {
+                    long copied = linkDuplicate( original, input, file );
+                    if ( footprint != null )
+                    {
+                        footprint.written( copied );
+                    }
+                    complete( onWritten );
+                    return counted.getByteCount();
+                }
+
+                ExploderEvents.EntryWrite event = new ExploderEvents.EntryWrite();
+                event.begin();
+
+                List<TarArchiveStructSparse> sparseMap = getSparseMap( entry );
+                boolean allocate = preallocate && sparseMap == null && entry.getSize() >= PREALLOCATION_THRESHOLD;
+
+                // Positioned writes, including those skipping zero blocks, are made directly rather than queued
+                // as a stream of bytes.
+                if ( batch != null && sparseMap == null && ! allocate && ! sparseFiles )
+                {
+                    input = batch.write( file, input, () -> {
+                        types.remove( file );
+                        if ( key != null )
+                        {
+                            written.putIfAbsent( key, file );
+                        }
+                        complete( onWritten );
+                    } );
+                }
+                if ( input != null )
+                {
+                    if ( sparseMap == null && ! allocate && ! sparseFiles )
+                    {
+                        try (FileOutputStream output = new FileOutputStream( file ))
+                        {
+                            copy( input, output );
+                        }
+                    }
+                    else
+                    {
+                        writeEntry( entry, sparseMap, allocate, input, file );
+                    }
+                    if ( key != null )
+                    {
+                        written.putIfAbsent( key, file );
+                    }
+                    complete( onWritten );
+                }
+                event.record( this::getType, file, chain, entry.getName(), counted.getByteCount() );
+                if ( footprint != null )
+                {
+                    footprint.written( counted.getByteCount() );
+                }
+
+                return counted.getByteCount();
+            }
+        }
+
+        /**
+         * @return the action recording the entry as written with the checkpoint, or null if there is none.
+         */
+        private Runnable getCompletion( Checkpoint.Entries completion, long index, long bytes )
+        {
+            return completion == null ? null : () -> completion.written( index, bytes );
+        }
+
+        private void complete( Runnable onWritten )
+        {
+            if ( onWritten != null )
+            {
+                onWritten.run();
+            }
+        }
+
+        /**
+         * @return the ordered segments of a sparse tar entry, whose holes the tar stream reads as zeros,
+         * or null if the entry is not sparse.
+         */
+        private List<TarArchiveStructSparse> getSparseMap( ArchiveEntry entry ) throws IOException
+        {
+            if ( entry instanceof TarArchiveEntry )
+            {
+                TarArchiveEntry tar = (TarArchiveEntry) entry;
+
+                // Star sparse entries are not expanded by the tar stream.
+                if ( tar.isOldGNUSparse() || tar.isPaxGNUSparse() || tar.isPaxGNU1XSparse() )
+                {
+                    return tar.getOrderedSparseHeaders();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Writes the entry through a file channel. A sparse tar entry only has its data segments written,
+         * leaving its holes unallocated ; otherwise the file is optionally preallocated to the size given
+         * by the archive by writing its final block and, with sparse files enabled, all-zero blocks are
+         * skipped. Finally the file is set to its true length, which truncates any excess preallocation and
+         * extends over a trailing hole.
+         */
+        private void writeEntry( ArchiveEntry entry, List<TarArchiveStructSparse> sparseMap, boolean allocate,
+                                 InputStream input, File file ) throws IOException, CancelledException
+        {
+            try ( RandomAccessFile output = new RandomAccessFile( file, "rw" ) )
+            {
+                FileChannel channel = output.getChannel();
+                long length = 0;
+
+                output.setLength( 0 );
+                if ( allocate )
+                {
+                    // Extending the length alone allocates nothing, so the final block is written to have the
+                    // filesystem reserve the end of the file now rather than as it is reached.
+                    long last = Math.max( 0, entry.getSize() - SPARSE_BLOCK_SIZE );
+                    ByteBuffer block = ByteBuffer.wrap( ZEROS, 0, (int) ( entry.getSize() - last ) );
+                    while ( block.hasRemaining() )
+                    {
+                        last += channel.write( block, last );
+                    }
+                }
+                if ( sparseMap != null )
+                {
+                    for ( TarArchiveStructSparse segment : sparseMap )
+                    {
+                        skip( input, segment.getOffset() - length );
+                        length = segment.getOffset() + write( new BoundedInputStream( input, segment.getNumbytes() ),
+                                                              channel, segment.getOffset() );
+                    }
+                    length = Math.max( length, ( (TarArchiveEntry) entry ).getRealSize() );
+                }
+                else
+                {
+                    length = write( input, channel, 0 );
+                }
+                output.setLength( length );
+            }
+        }
+
+        /**
+         * Writes the input to the channel from the position, skipping whole blocks of zeros if sparse
+         * files are enabled.
+         *
+         * @return the number of bytes read.
+         */
+        private long write( InputStream input, FileChannel channel, long position ) throws IOException, CancelledException
+        {
+            byte[] buffer = new byte[16 * SPARSE_BLOCK_SIZE];
+            long count = 0;
+            int n;
+            while ( ( n = IOUtils.read( input, buffer ) ) > 0 )
+            {
+                checkCancelled();
+                int start = 0;
+                while ( start < n )
+                {
+                    int end = n;
+                    if ( sparseFiles )
+                    {
+                        while ( isZeroBlock( buffer, start, n ) )
+                        {
+                            start += SPARSE_BLOCK_SIZE;
+                        }
+                        end = start;
+                        while ( end < n && ! isZeroBlock( buffer, end, n ) )
+                        {
+                            end = Math.min( n, end + SPARSE_BLOCK_SIZE );
+                        }
+                    }
+                    ByteBuffer data = ByteBuffer.wrap( buffer, start, end - start );
+                    long offset = position + count + start;
+                    while ( data.hasRemaining() )
+                    {
+                        offset += channel.write( data, offset );
+                    }
+                    start = end;
+                }
+                count += n;
+            }
+            return count;
+        }
+
+        private boolean isZeroBlock( byte[] buffer, int start, int length )
+        {
+            return start + SPARSE_BLOCK_SIZE <= length
+                            && Arrays.mismatch( buffer, start, start + SPARSE_BLOCK_SIZE, ZEROS, 0, SPARSE_BLOCK_SIZE ) == -1;
+        }
+
+        private void skip( InputStream input, long count ) throws IOException
+        {
+            while ( count > 0 )
+            {
+                long skipped = input.skip( count );
+                if ( skipped <= 0 )
+                {
+                    if ( input.read() == -1 )
+                    {
+                        throw new EOFException( "Truncated sparse entry" );
+                    }
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        /**
+         * Creates the directory, and any missing parents, unless already created by this unpack.
+         */
+        private void createDirectory( File directory )
+        {
+            directories.computeIfAbsent( directory, d -> d.mkdirs() || d.isDirectory() );
+        }
+
+        /**
+         * @return the size and CRC of the entry if recorded by the archive, otherwise null.
+         */
+        private String getContentKey( ArchiveEntry entry )
+        {
+            long crc = -1;
+
+            if ( entry instanceof ZipArchiveEntry )
+            {
+                crc = ( (ZipArchiveEntry) entry ).getCrc();
+            }
+            else if ( entry instanceof SevenZArchiveEntry && ( (SevenZArchiveEntry) entry ).getHasCrc() )
+            {
+                crc = ( (SevenZArchiveEntry) entry ).getCrcValue();
+            }
+            return crc == -1 || entry.getSize() <= 0 ? null : entry.getSize() + ":" + crc;
+        }
+
+        /**
+         * Compares the entry with the previously written file of the same size and CRC and, if identical,
+         * hardlinks it. Otherwise, as the bytes read so far match the original, the file is written from
+         * the matching prefix of the original followed by the remainder of the entry.
+         *
+         * @return the bytes written to disk, which are none if the file was linked.
+         */
+        private long linkDuplicate( File original, InputStream input, File file ) throws IOException, CancelledException
+        {
+            byte[] buffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
+            byte[] existing = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
+            long matched = 0;
+            int n = 0;
+            boolean identical;
+
+            try ( InputStream in = Files.newInputStream( original.toPath() ) )
+            {
+                while ( ( n = IOUtils.read( input, buffer ) ) > 0 )
+                {
+                    checkCancelled();
+                    if ( IOUtils.read( in, existing, 0, n ) != n
+                                    || ! ByteBuffer.wrap( buffer, 0, n ).equals( ByteBuffer.wrap( existing, 0, n ) ) )
+                    {
+                        break;
+                    }
+                    matched += n;
+                }
+                identical = n == 0 && in.read() == -1;
+            }
+
+            Files.deleteIfExists( file.toPath() );
+            if ( identical )
+            {
+                logger.debug( "Linking duplicate {} to {}", file, original );
+                try
+                {
+                    Files.createLink( file.toPath(), original.toPath() );
+                    return 0;
+                }
+                catch ( UnsupportedOperationException | IOException e )
+                {
+                    logger.debug( "Unable to link {} ({}) ; copying instead", file, e.toString() );
+                    Files.copy( original.toPath(), file.toPath() );
+                    return file.length();
+                }
+            }
+            else
+            {
+                try ( InputStream prefix = Files.newInputStream( original.toPath() );
+                      OutputStream output = new FileOutputStream( file ) )
+                {
+                    long count = copy( new BoundedInputStream( prefix, matched ), output );
+                    output.write( buffer, 0, Math.max( n, 0 ) );
+                    return count + Math.max( n, 0 ) + copy( input, output );
+                }
+            }
+        }
+
+        /**
+         * Equivalent to {@link IOUtils#copy(InputStream, OutputStream)} but checks for cancellation
+         * between each buffer.
+         */
+        private long copy( InputStream input, OutputStream output ) throws IOException, CancelledException
+        {
+            byte[] buffer = new byte[IOUtils.DEFAULT_BUFFER_SIZE];
+            long count = 0;
+            int n;
+            while ( ( n = input.read( buffer ) ) != -1 )
+            {
+                checkCancelled();
+                output.write( buffer, 0, n );
+                count += n;
+            }
+            return count;
+        }
+
+        /**
+         * Records the archive as outermost if it is not within another. The chain alone cannot tell, as
+         * an archive unpacked directly to the target directory does not appear in the chains of its entries.
+         */
+        private void addOutermost( String chain, VirtualPath path )
+        {
+            if ( includeFilter != null && path.getArchiveChain().isEmpty() )
+            {
+                outermost.add( chain );
+            }
+        }
+
+        /**
+         * The include filter only applies to the outermost archives.
+         */
+        private Predicate<String> getIncludeFilter( String chain )
+        {
+            return outermost.contains( chain ) ? includeFilter : null;
+        }
+
+        private void checkCancelled() throws CancelledException
+        {
+            if ( Thread.currentThread().isInterrupted() )
+            {
+                throw new CancelledException( "Unpack was interrupted" );
+            }
+            if ( cancellation != null && cancellation.isCancelled() )
+            {
+                throw new CancelledException( "Unpack was cancelled" );
+            }
+            if ( timeout != null && System.nanoTime() - deadline > 0 )
+            {
+                throw new CancelledException( "Unpack exceeded deadline of " + timeout );
+            }
+        }
+
+        /**
+         * Verifies whether an entry completed by a previous run is still present in the target.
+         */
+        private boolean isExtracted( ArchiveEntry entry, File file )
+        {
+            if ( entry.isDirectory() )
+            {
+                return file.isDirectory();
+            }
+            return file.isFile() && ( entry.getSize() < 0 || file.length() == entry.getSize() );
+        }
+
+        /**
+         * Returns the archive chain of the file relative to the directory root, with each unpack directory
+         * replaced by a {@code !} marker e.g. {@code app.ear!/lib/x.war}. This is stable across JVMs unlike
+         * the file path.
+         */
+        private String getArchiveChain( File file )
+        {
+            Path base = directoryRoot.getAbsoluteFile().toPath();
+            Path path = file.getAbsoluteFile().toPath();
+            String relative = path.startsWith( base ) ? base.relativize( path ).toString() : file.getName();
+
+            return FilenameUtils.separatorsToUnix( relative ).replace( Exploder.ARCHIVE_UNPACK_SUFFIX + '/', "!/" );
+        }
+
+        private void cleanup() throws InternalException
+        {
+            if ( cleanup )
+            {
+                try
+                {
+                    logger.debug( "Cleaning up temporary directory {} ", targetDirectory );
+                    ExploderEvents.Cleanup event = new ExploderEvents.Cleanup().start( targetDirectory );
+                    FileUtils.deleteDirectory( targetDirectory );
+                    event.record();
+                }
+                catch ( IOException e )
+                {
+                    throw new InternalException( "Error cleaning up working directory", e );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import org.apache.commons.io.FileUtils;
+import org.goots.exploder.types.FileType;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.util.function.Function;
+
+/**
+ * The Java Flight Recorder events emitted by {@link Exploder}, named {@code org.goots.exploder.*}. Each
+ * records the type, virtual path (e.g. {@code app.ear!/lib/x.war}), nesting depth and byte counts of the
+ * stage it covers. The fields are only populated once an event is known to be committed to a running
+ * recording so, with recording off, each costs little more than reading the clock.
+ */
+public final class ExploderEvents
+{
+    /**
+     * Entries smaller than this number of bytes are not recorded as {@link EntryWrite} events. Set by the
+     * {@code exploder.jfr.entryThreshold} system property ; the default is 1MB.
+     */
+    static final long ENTRY_THRESHOLD = Long.getLong( "exploder.jfr.entryThreshold", 1024 * 1024 );
+
+    private ExploderEvents()
+    {
+    }
+
+    @Category( "Exploder" )
+    abstract static class ExploderEvent extends Event
+    {
+        @Label( "Type" )
+        String type;
+
+        @Label( "Path" )
+        @Description( "The virtual path, with archive boundaries marked by !/" )
+        String path;
+
+        @Label( "Depth" )
+        @Description( "The number of archives the path is nested within" )
+        int depth;
+    }
+
+    @Name( "org.goots.exploder.Archive" )
+    @Label( "Archive Extract" )
+    @Description( "Opening an archive and extracting its entries" )
+    static class Archive extends ExploderEvent
+    {
+        @Label( "Archive Size" )
+        @DataAmount
+        long archiveBytes;
+
+        @Label( "Extracted Size" )
+        @DataAmount
+        long extractedBytes;
+
+        void record( String type, VirtualPath path, long archiveBytes, long extractedBytes )
+        {
+            end();
+            if ( shouldCommit() )
+            {
+                this.type = type;
+                this.path = path.toString();
+                this.depth = path.getDepth();
+                this.archiveBytes = archiveBytes;
+                this.extractedBytes = extractedBytes;
+                commit();
+            }
+        }
+    }
+
+    @Name( "org.goots.exploder.Decompress" )
+    @Label( "Decompress" )
+    @Description( "Decoding a compressed file, including any archive unpacked from it in the same pass" )
+    static class Decompress extends ExploderEvent
+    {
+        @Label( "Compressed Size" )
+        @DataAmount
+        long compressedBytes;
+
+        @Label( "Uncompressed Size" )
+        @DataAmount
+        long uncompressedBytes;
+
+        void record( String type, VirtualPath path, long compressedBytes, long uncompressedBytes )
+        {
+            end();
+            if ( shouldCommit() )
+            {
+                this.type = type;
+                this.path = path.toString();
+                this.depth = path.getDepth();
+                this.compressedBytes = compressedBytes;
+                this.uncompressedBytes = uncompressedBytes;
+                commit();
+            }
+        }
+    }
+
+    @Name( "org.goots.exploder.EntryWrite" )
+    @Label( "Entry Write" )
+    @Description( "Writing an extracted entry (or, with write-behind, handing it to the writers)" )
+    static class EntryWrite extends ExploderEvent
+    {
+        @Label( "Size" )
+        @DataAmount
+        long bytes;
+
+        void record( Function<File, FileType> types, File file, String chain, String name, long bytes )
+        {
+            end();
+            if ( bytes >= ENTRY_THRESHOLD && shouldCommit() )
+            {
+                this.type = types.apply( file ).getTypename();
+                this.path = chain + "!/" + name;
+                this.depth = chain.split( "!/", -1 ).length;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    @Name( "org.goots.exploder.Processor" )
+    @Label( "Processor" )
+    @Description( "Invoking the ExploderFileProcessor on a file" )
+    @Threshold( "1 ms" )
+    static class Processor extends ExploderEvent
+    {
+        @Label( "Size" )
+        @DataAmount
+        long bytes;
+
+        @Label( "Staged" )
+        @Description( "Whether the content was passed from memory" )
+        boolean staged;
+
+        void record( Function<File, FileType> types, File file, VirtualPath path, long bytes, boolean staged )
+        {
+            end();
+            if ( shouldCommit() )
+            {
+                this.type = types.apply( file ).getTypename();
+                this.path = path.toString();
+                this.depth = path.getDepth();
+                this.bytes = bytes;
+                this.staged = staged;
+                commit();
+            }
+        }
+    }
+
+    @Name( "org.goots.exploder.DirectoryCopy" )
+    @Label( "Directory Copy" )
+    @Description( "Copying a source directory to the target directory before unpacking" )
+    static class DirectoryCopy extends ExploderEvent
+    {
+        @Label( "Size" )
+        @DataAmount
+        long bytes;
+
+        void record( File source, File target )
+        {
+            end();
+            if ( shouldCommit() )
+            {
+                this.type = "directory";
+                this.path = source.getPath();
+                this.bytes = sizeOf( target );
+                commit();
+            }
+        }
+    }
+
+    @Name( "org.goots.exploder.Cleanup" )
+    @Label( "Cleanup" )
+    @Description( "Deleting the temporary directory" )
+    static class Cleanup extends ExploderEvent
+    {
+        @Label( "Size" )
+        @DataAmount
+        long bytes;
+
+        /**
+         * Must be called before the directory is deleted, as it measures the directory if the event is enabled.
+         */
+        Cleanup start( File directory )
+        {
+            if ( isEnabled() )
+            {
+                this.type = "directory";
+                this.path = directory.getPath();
+                this.bytes = sizeOf( directory );
+            }
+            begin();
+            return this;
+        }
+
+        void record()
+        {
+            end();
+            if ( shouldCommit() )
+            {
+                commit();
+            }
+        }
+    }
+
+    private static long sizeOf( File directory )
+    {
+        try
+        {
+            return FileUtils.sizeOfDirectory( directory );
+        }
+        catch ( IllegalArgumentException | UncheckedIOException e )
+        {
+            return -1;
+        }
+    }
+}
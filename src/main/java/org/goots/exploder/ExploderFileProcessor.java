@@ -18,6 +18,10 @@ package org.goots.exploder;
 import org.apache.commons.lang.StringUtils;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 public interface ExploderFileProcessor
 {
@@ -31,9 +35,54 @@ public interface ExploderFileProcessor
      */
     void processFile( File baseDir, File file ) throws InternalException;
 
+    /**
+     * Perform arbitrary processing upon a standard file after unpacking and decompression. This is the
+     * method called by {@link Exploder} ; by default it delegates to {@link #processFile(File, File)}.
+     *
+     * @param baseDir the base temporary folder from which the zip/jar/ear/war/etc was unzipped
+     * @param file file to process
+     * @param path the virtual path of the file, including the chain of archives it was found within
+     * @throws InternalException if the processing reports an error. This will <b>abort</b> the
+     *    unpackEntryPoint/decompress.
+     */
+    default void processFile( File baseDir, File file, VirtualPath path ) throws InternalException
+    {
+        processFile( baseDir, file );
+    }
+
+    /**
+     * Perform processing upon a small file that has been staged in memory rather than written
+     * (see {@link Exploder#useStaging(int, long)}). The content is only valid for the duration of
+     * the call. By default the file is written and passed to {@link #processFile(File, File, VirtualPath)} ;
+     * processors that can work from memory should override this to avoid creating the file.
+     *
+     * @param baseDir the base temporary folder from which the zip/jar/ear/war/etc was unzipped
+     * @param file the file the content would have been written to
+     * @param path the virtual path of the file
+     * @param content the file content
+     * @throws InternalException if the processing reports an error.
+     */
+    default void processStaged( File baseDir, File file, VirtualPath path, ByteBuffer content ) throws InternalException
+    {
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                      StandardOpenOption.TRUNCATE_EXISTING ) )
+        {
+            while ( content.hasRemaining() )
+            {
+                channel.write( content );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new InternalException( "Unable to write staged file " + file, e );
+        }
+        processFile( baseDir, file, path );
+    }
+
     /**
      * Return the virtual path from the top level to the target location removing any temporary 'unpacked' markers.
-     * This is not a valid file system path.
+     * This is not a valid file system path. The {@link VirtualPath} passed to
+     * {@link #processFile(File, File, VirtualPath)} provides the same without reconstructing it.
      *
      * @param baseDir the top level working directory
      * @param target the target file
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the files produced by an unpack as {@link ExplodedEntry} items. Each subscription runs its
+ * own unpack on a new thread. The unpack waits until the subscriber has requested an item before it
+ * extracts each entry and again before it passes the file on, so extraction pauses while the subscriber
+ * falls behind. Completion is signalled
+ * as soon as the unpack has finished, whether or not more items have been requested.
+ * <p>
+ * The unpack removes files (by {@link Exploder#minimizeFootprint()} or the cleanup of a temporary
+ * directory) through {@link Delivery#whenReleased(Action)}, which holds the removal until the subscriber
+ * has received the following item and then requested more, so a subscriber may look one item ahead
+ * (as the iterator of a {@link java.util.stream.Stream} does). Cancelling the subscription, or the return of
+ * {@code onComplete} or {@code onError}, releases all files. Cancelling also stops the unpack, which
+ * cleans up as for any other cancellation.
+ */
+class ExploderPublisher implements Flow.Publisher<ExplodedEntry>
+{
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final Unpack unpack;
+
+    ExploderPublisher( Unpack unpack )
+    {
+        this.unpack = unpack;
+    }
+
+    @Override
+    public void subscribe( Flow.Subscriber<? super ExplodedEntry> subscriber )
+    {
+        Objects.requireNonNull( subscriber );
+
+        EntrySubscription subscription = new EntrySubscription( subscriber );
+        subscriber.onSubscribe( subscription );
+        subscription.start();
+    }
+
+    /**
+     * The unpack to run for each subscription.
+     */
+    @FunctionalInterface
+    interface Unpack
+    {
+        void run( Delivery delivery ) throws InternalException;
+    }
+
+    /**
+     * The processor passed to the unpack of a subscription.
+     */
+    interface Delivery extends ExploderFileProcessor
+    {
+        /**
+         * Runs the action, which removes files that may have been delivered, once the subscriber has moved
+         * past the items delivered so far (see {@link ExploderPublisher}).
+         *
+         * @param action the action to run.
+         * @throws InternalException if the action, or another already released, fails.
+         */
+        void whenReleased( Action action ) throws InternalException;
+
+        /**
+         * Waits until the subscriber has requested an item not yet delivered, so that an entry to be delivered
+         * is not extracted ahead of demand.
+         *
+         * @throws CancelledException if the subscription is cancelled while waiting.
+         */
+        void awaitDemand() throws CancelledException;
+    }
+
+    @FunctionalInterface
+    interface Action
+    {
+        void run() throws InternalException;
+    }
+
+    /**
+     * The subscription to a published unpack.
+     */
+    interface Subscription extends Flow.Subscription
+    {
+        /**
+         * Waits until the unpack has ended and the files it held have been released.
+         *
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        void awaitTermination() throws InterruptedException;
+    }
+
+    private class EntrySubscription implements Subscription, Delivery
+    {
+        private final Flow.Subscriber<? super ExplodedEntry> subscriber;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        private final Thread thread = new Thread( this::run, "exploder-publisher" );
+
+        private final CountDownLatch terminated = new CountDownLatch( 1 );
+
+        /**
+         * The actions held until released, each with the number of items that must have been delivered
+         * before the subscriber next requests more, guarded by the subscription.
+         */
+        private final Deque<Map.Entry<Long, Action>> held = new ArrayDeque<>();
+
+        /**
+         * The number of items delivered, and the number delivered when the subscriber last requested more,
+         * guarded by the subscription.
+         */
+        private long delivered;
+
+        private long requestedAt;
+
+        private volatile boolean cancelled;
+
+        private volatile Throwable failure;
+
+        EntrySubscription( Flow.Subscriber<? super ExplodedEntry> subscriber )
+        {
+            this.subscriber = subscriber;
+            this.thread.setDaemon( true );
+        }
+
+        void start()
+        {
+            if ( ! cancelled )
+            {
+                thread.start();
+                return;
+            }
+            if ( failure != null )
+            {
+                subscriber.onError( failure );
+            }
+            terminated.countDown();
+        }
+
+        @Override
+        public void awaitTermination() throws InterruptedException
+        {
+            terminated.await();
+        }
+
+        @Override
+        public void request( long n )
+        {
+            if ( n <= 0 )
+            {
+                failure = new IllegalArgumentException( "Request must be positive: " + n );
+                cancel();
+                return;
+            }
+            synchronized ( this )
+            {
+                requestedAt = delivered;
+            }
+            demand.accumulateAndGet( n, ( current, added ) -> current + added < 0 ? Long.MAX_VALUE : current + added );
+            synchronized ( demand )
+            {
+                demand.notifyAll();
+            }
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+            synchronized ( demand )
+            {
+                demand.notifyAll();
+            }
+            // A cancellation from within onNext is seen once it returns ; any other also interrupts the copy loops.
+            if ( thread.isAlive() && Thread.currentThread() != thread )
+            {
+                thread.interrupt();
+            }
+        }
+
+        @Override
+        public void processFile( File baseDir, File file ) throws InternalException
+        {
+            processFile( baseDir, file, VirtualPath.of( baseDir, file ) );
+        }
+
+        @Override
+        public void processFile( File baseDir, File file, VirtualPath path ) throws InternalException
+        {
+            awaitDemand();
+            demand.decrementAndGet();
+            synchronized ( this )
+            {
+                delivered++;
+            }
+            runReleased( false );
+
+            subscriber.onNext( new ExplodedEntry( baseDir, file, path ) );
+        }
+
+        @Override
+        public void whenReleased( Action action ) throws InternalException
+        {
+            synchronized ( this )
+            {
+                held.add( new AbstractMap.SimpleImmutableEntry<>( delivered + 1, action ) );
+            }
+            runReleased( false );
+        }
+
+        /**
+         * Runs, in order, the held actions that have been released.
+         *
+         * @param all whether all actions are released, as the subscription has ended.
+         */
+        private void runReleased( boolean all ) throws InternalException
+        {
+            Action action;
+            while ( ( action = nextReleased( all ) ) != null )
+            {
+                action.run();
+            }
+        }
+
+        private synchronized Action nextReleased( boolean all )
+        {
+            Map.Entry<Long, Action> next = held.peek();
+            if ( next == null || ! ( all || cancelled || requestedAt >= next.getKey() ) )
+            {
+                return null;
+            }
+            return held.remove().getValue();
+        }
+
+        @Override
+        public void awaitDemand() throws CancelledException
+        {
+            synchronized ( demand )
+            {
+                while ( demand.get() == 0 && ! cancelled )
+                {
+                    try
+                    {
+                        demand.wait();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new CancelledException( "Unpack was interrupted" );
+                    }
+                }
+            }
+            if ( cancelled )
+            {
+                throw new CancelledException( "Subscription was cancelled" );
+            }
+        }
+
+        private void run()
+        {
+            Throwable result = null;
+            try
+            {
+                unpack.run( this );
+            }
+            catch ( InternalException | RuntimeException e )
+            {
+                result = e;
+            }
+            if ( cancelled )
+            {
+                logger.debug( "Unpack stopped following cancellation: {}", String.valueOf( result ) );
+            }
+            else if ( result == null )
+            {
+                subscriber.onComplete();
+            }
+            else
+            {
+                subscriber.onError( result );
+            }
+            if ( failure != null )
+            {
+                subscriber.onError( failure );
+            }
+
+            // The subscriber has now finished with the delivered files.
+            try
+            {
+                runReleased( true );
+            }
+            catch ( InternalException | RuntimeException e )
+            {
+                logger.warn( "Unable to clean up following the unpack", e );
+            }
+            finally
+            {
+                terminated.countDown();
+            }
+        }
+    }
+}
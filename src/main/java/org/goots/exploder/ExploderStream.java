@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import java.util.Spliterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Pulls entries from an {@link ExploderPublisher} one at a time as a {@link Stream}. The unpack
+ * starts on the first pull and only advances when the next entry is pulled, so a short-circuiting
+ * operation leaves the rest of the input (including any nested archives not yet reached) undecoded.
+ * Closing the stream cancels the unpack. An entry remains readable until the one after it has been
+ * pulled ; the last until the end of the stream has been reached. Reaching the end, or closing the
+ * stream, waits for the unpack to have removed any files it was to delete.
+ */
+class ExploderStream implements Spliterator<ExplodedEntry>, Flow.Subscriber<ExplodedEntry>
+{
+    private static final Object COMPLETE = new Object();
+
+    private final Flow.Publisher<ExplodedEntry> publisher;
+
+    /**
+     * Holds at most the one entry requested, followed by the completion or failure.
+     */
+    private final BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+
+    /**
+     * Released once the end has been pulled, or the stream closed, so that the files of the last entry are
+     * not removed while it is being consumed.
+     */
+    private final CountDownLatch ended = new CountDownLatch( 1 );
+
+    private volatile Flow.Subscription subscription;
+
+    private boolean finished;
+
+    private ExploderStream( Flow.Publisher<ExplodedEntry> publisher )
+    {
+        this.publisher = publisher;
+    }
+
+    static Stream<ExplodedEntry> of( Flow.Publisher<ExplodedEntry> publisher )
+    {
+        ExploderStream result = new ExploderStream( publisher );
+
+        return StreamSupport.stream( result, false ).onClose( result::close );
+    }
+
+    @Override
+    public boolean tryAdvance( Consumer<? super ExplodedEntry> action )
+    {
+        if ( finished )
+        {
+            return false;
+        }
+        if ( subscription == null )
+        {
+            publisher.subscribe( this );
+        }
+        subscription.request( 1 );
+
+        Object signal;
+        try
+        {
+            signal = signals.take();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            close();
+            throw new UncheckedInternalException( new CancelledException( "Interrupted waiting for entry" ) );
+        }
+
+        if ( signal instanceof ExplodedEntry )
+        {
+            action.accept( (ExplodedEntry) signal );
+            return true;
+        }
+        finished = true;
+        ended.countDown();
+        awaitTermination();
+        if ( signal instanceof InternalException )
+        {
+            throw new UncheckedInternalException( (InternalException) signal );
+        }
+        else if ( signal instanceof RuntimeException )
+        {
+            throw (RuntimeException) signal;
+        }
+        else if ( signal instanceof Error )
+        {
+            throw (Error) signal;
+        }
+        return false;
+    }
+
+    @Override
+    public Spliterator<ExplodedEntry> trySplit()
+    {
+        return null;
+    }
+
+    @Override
+    public long estimateSize()
+    {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics()
+    {
+        return NONNULL;
+    }
+
+    @Override
+    public void onSubscribe( Flow.Subscription subscription )
+    {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext( ExplodedEntry item )
+    {
+        signals.add( item );
+    }
+
+    @Override
+    public void onError( Throwable throwable )
+    {
+        signals.add( throwable );
+        awaitEnd();
+    }
+
+    @Override
+    public void onComplete()
+    {
+        signals.add( COMPLETE );
+        awaitEnd();
+    }
+
+    private void awaitEnd()
+    {
+        try
+        {
+            ended.await();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for the unpack to end, if the publisher supports it.
+     */
+    private void awaitTermination()
+    {
+        if ( subscription instanceof ExploderPublisher.Subscription )
+        {
+            try
+            {
+                ( (ExploderPublisher.Subscription) subscription ).awaitTermination();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void close()
+    {
+        finished = true;
+        ended.countDown();
+        if ( subscription != null )
+        {
+            subscription.cancel();
+            awaitTermination();
+        }
+    }
+}
@@ -15,128 +15,116 @@
  */
 package org.goots.exploder;
 
-import org.apache.commons.compress.archivers.ArchiveStreamFactory;
-import org.apache.commons.compress.compressors.CompressorStreamFactory;
-import org.apache.commons.compress.compressors.bzip2.BZip2Utils;
-import org.apache.commons.compress.compressors.gzip.GzipUtils;
-import org.apache.commons.compress.compressors.lzma.LZMAUtils;
-import org.apache.commons.compress.compressors.xz.XZUtils;
-import org.goots.exploder.types.ARFileType;
-import org.goots.exploder.types.BZIP2FileType;
-import org.goots.exploder.types.CpioFileType;
-import org.goots.exploder.types.DumpFileType;
+import org.apache.commons.io.IOUtils;
 import org.goots.exploder.types.FileType;
-import org.goots.exploder.types.GZIPFileType;
-import org.goots.exploder.types.JavaFileType;
-import org.goots.exploder.types.LZMAFileType;
-import org.goots.exploder.types.SevenZFileType;
 import org.goots.exploder.types.StandardFileType;
-import org.goots.exploder.types.TarFileType;
-import org.goots.exploder.types.XZFileType;
-import org.goots.exploder.types.ZipFileType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ServiceLoader;
 import java.util.Set;
 
 /**
  * Encapsulates all possible supported archive and compression formats. Utilises commons-compress.
+ * The formats are discovered as {@link FileType} services ; see {@link ServiceLoader}.
  */
-class FileHandler
+public class FileHandler
 {
-    private static final String WAR = "war";
+    /**
+     * The file types hold no state so a single handler may be shared by all threads.
+     */
+    private static final FileHandler DEFAULT = new FileHandler();
 
-    private static final String EAR = "ear";
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
 
-    private static final String FILE = "file";
+    private final FileType standard = new StandardFileType();
 
-    private final HashMap<String,FileType> fileTypes = new HashMap<>(  );
+    private final List<FileType> fileTypes = new ArrayList<>(  );
+
+    private final Set<String> suffixes = new HashSet<>(  );
 
 
     public FileHandler()
     {
-        fileTypes.put( CompressorStreamFactory.BZIP2, new BZIP2FileType() );
-        fileTypes.put( CompressorStreamFactory.LZMA, new LZMAFileType() );
-        fileTypes.put( CompressorStreamFactory.XZ, new XZFileType() );
-        fileTypes.put( CompressorStreamFactory.GZIP, new GZIPFileType() );
-        fileTypes.put( ArchiveStreamFactory.TAR, new TarFileType() );
-        fileTypes.put( ArchiveStreamFactory.ZIP, new ZipFileType() );
-        fileTypes.put( ArchiveStreamFactory.JAR, new JavaFileType() );
-        fileTypes.put( WAR, new JavaFileType() );
-        fileTypes.put( EAR, new JavaFileType() );
-        fileTypes.put( FILE, new StandardFileType() );
-        fileTypes.put( ArchiveStreamFactory.AR, new ARFileType() );
-        fileTypes.put( ArchiveStreamFactory.CPIO, new CpioFileType() );
-        fileTypes.put( ArchiveStreamFactory.SEVEN_Z, new SevenZFileType() );
-        fileTypes.put( ArchiveStreamFactory.DUMP, new DumpFileType() );
+        for ( FileType type : ServiceLoader.load( FileType.class, FileHandler.class.getClassLoader() ) )
+        {
+            if ( type.isAvailable() )
+            {
+                fileTypes.add( type );
+                suffixes.add( type.getTypename() );
+                suffixes.addAll( type.getSuffixes() );
+            }
+            else
+            {
+                logger.debug( "Ignoring unavailable file type {}", type );
+            }
+        }
+        // Stable sort so equal priorities retain their registration order.
+        fileTypes.sort( Comparator.comparingInt( FileType::getPriority ).reversed() );
+        suffixes.add( standard.getTypename() );
+    }
+
+
+    /**
+     * @return a handler for the discovered file types, shared rather than discovering them again.
+     */
+    public static FileHandler getDefault()
+    {
+        return DEFAULT;
     }
 
 
     Set<String> getSupportedSuffixes ()
     {
-        return Collections.unmodifiableSet( fileTypes.keySet() );
+        return Collections.unmodifiableSet( suffixes );
     }
 
 
     public FileType getType ( File source )
     {
-        if ( GzipUtils.isCompressedFilename( source.getName() ) )
-        {
-            return fileTypes.get( CompressorStreamFactory.GZIP );
-        }
-        else if ( LZMAUtils.isCompressedFilename( source.getName() ) )
-        {
-            return fileTypes.get( CompressorStreamFactory.LZMA );
-        }
-        else if ( XZUtils.isCompressedFilename( source.getName() ) )
-        {
-            return fileTypes.get( CompressorStreamFactory.XZ );
-        }
-        else if ( BZip2Utils.isCompressedFilename( source.getName() ) )
-        {
-            return fileTypes.get( CompressorStreamFactory.BZIP2 );
-        }
-        // Now check archive types.
-        else if ( source.getName().endsWith( ".tar" ) )
-        {
-            return fileTypes.get( ArchiveStreamFactory.TAR );
-        }
-        else if ( source.getName().endsWith( ".zip" ) )
-        {
-            return fileTypes.get( ArchiveStreamFactory.TAR );
-        }
-        else if ( source.getName().endsWith( ".jar" ) )
-        {
-            return fileTypes.get( ArchiveStreamFactory.JAR );
-        }
-        else if ( source.getName().endsWith( ".war" ) )
-        {
-            return fileTypes.get( WAR );
-        }
-        else if ( source.getName().endsWith( ".ear" ) )
-        {
-            return fileTypes.get( EAR );
-        }
-        else if ( source.getName().endsWith( ".ar" ) )
-        {
-            return fileTypes.get( ArchiveStreamFactory.AR );
-        }
-        else if ( source.getName().endsWith( ".cpio" ) )
+        for ( FileType type : fileTypes )
         {
-            return fileTypes.get( ArchiveStreamFactory.CPIO );
+            if ( type.isSupportedFilename( source.getName() ) && matchesMagic( type, source ) )
+            {
+                return type;
+            }
         }
-        else if ( source.getName().endsWith( ".7z" ) )
+        return standard;
+    }
+
+    /**
+     * Confirms the file starts with the magic bytes of the type (if it has any). Files that do not
+     * exist yet or are too short to tell are assumed to match.
+     */
+    private boolean matchesMagic( FileType type, File source )
+    {
+        byte[] magic = type.getMagic();
+
+        if ( magic == null || ! source.isFile() || source.length() < magic.length )
         {
-            return fileTypes.get( ArchiveStreamFactory.SEVEN_Z );
+            return true;
         }
-        else if ( source.getName().endsWith( ".dump" ) )
+
+        byte[] header = new byte[magic.length];
+        try ( InputStream input = Files.newInputStream( source.toPath() ) )
         {
-            return fileTypes.get( ArchiveStreamFactory.DUMP );
+            IOUtils.readFully( input, header );
         }
-        else
+        catch ( IOException e )
         {
-            return fileTypes.get( FILE );
+            logger.debug( "Unable to read header of {}", source, e );
+            return true;
         }
+        return Arrays.equals( magic, header );
     }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A stream read ahead by its own thread into a pair of buffers, so that one stage of the unpack
+ * pipeline (reading the file, or decoding it) fills one buffer while the next stage drains the other.
+ * The stream is not thread safe ; it is read by a single consumer, and closing it stops the thread
+ * and closes the source.
+ */
+class PrefetchInputStream extends InputStream
+{
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final Chunk END = new Chunk( null, 0, null );
+
+    private final InputStream source;
+
+    /**
+     * Holds at most the two filled buffers and the final end or failure chunk, so is never full.
+     */
+    private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>( 3 );
+
+    private final BlockingQueue<byte[]> empty = new ArrayBlockingQueue<>( 2 );
+
+    private final Thread thread;
+
+    private Chunk current;
+
+    private int position;
+
+    private volatile boolean closed;
+
+    /**
+     * @param source the stream to read ahead.
+     * @param name the name of the reading thread.
+     */
+    PrefetchInputStream( InputStream source, String name )
+    {
+        this.source = source;
+        empty.add( new byte[BUFFER_SIZE] );
+        empty.add( new byte[BUFFER_SIZE] );
+
+        thread = new Thread( this::prefetch, name );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    private void prefetch()
+    {
+        try
+        {
+            while ( ! closed )
+            {
+                byte[] buffer = empty.take();
+                int n = IOUtils.read( source, buffer );
+                if ( n > 0 )
+                {
+                    filled.add( new Chunk( buffer, n, null ) );
+                }
+                if ( n < buffer.length )
+                {
+                    filled.add( END );
+                    return;
+                }
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            // Closed by the consumer.
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            filled.add( new Chunk( null, 0, e ) );
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if ( ! fill() )
+        {
+            return -1;
+        }
+        return current.buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        if ( len == 0 )
+        {
+            return 0;
+        }
+        if ( ! fill() )
+        {
+            return -1;
+        }
+        int n = Math.min( len, current.length - position );
+        System.arraycopy( current.buffer, position, b, off, n );
+        position += n;
+
+        return n;
+    }
+
+    @Override
+    public int available()
+    {
+        return current == null || current.buffer == null ? 0 : current.length - position;
+    }
+
+    /**
+     * @return whether there are bytes to read, recycling the drained buffer to the reading thread.
+     */
+    private boolean fill() throws IOException
+    {
+        if ( closed )
+        {
+            throw new IOException( "Stream closed" );
+        }
+        if ( current != null )
+        {
+            if ( current.failure != null )
+            {
+                if ( current.failure instanceof IOException )
+                {
+                    throw (IOException) current.failure;
+                }
+                throw (RuntimeException) current.failure;
+            }
+            if ( current == END )
+            {
+                return false;
+            }
+            if ( position < current.length )
+            {
+                return true;
+            }
+            empty.add( current.buffer );
+        }
+        try
+        {
+            current = filled.take();
+            position = 0;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            current = null;
+            throw new InterruptedIOException( "Interrupted waiting for " + thread.getName() );
+        }
+        return fill();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if ( closed )
+        {
+            return;
+        }
+        closed = true;
+        thread.interrupt();
+        try
+        {
+            thread.join();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        source.close();
+    }
+
+    private static class Chunk
+    {
+        private final byte[] buffer;
+
+        private final int length;
+
+        private final Exception failure;
+
+        private Chunk( byte[] buffer, int length, Exception failure )
+        {
+            this.buffer = buffer;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
+}
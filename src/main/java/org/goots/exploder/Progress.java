@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import java.time.Duration;
+
+/**
+ * A snapshot of the progress of an unpack call, as passed to the listener configured by
+ * {@link Exploder#useProgressListener}. Bytes are those decompressed or extracted at every level of
+ * nesting, so the totals grow as nested archives are opened: each nested archive is counted at an
+ * estimate of its own size until it is opened and its metadata (e.g. a zip central directory) read.
+ */
+public final class Progress
+{
+    private final long bytesCompleted;
+
+    private final long bytesTotal;
+
+    private final long entriesCompleted;
+
+    private final long entriesTotal;
+
+    private final boolean estimated;
+
+    private final String currentPath;
+
+    private final Duration elapsed;
+
+    private final double throughput;
+
+    private final double averageThroughput;
+
+    private final boolean complete;
+
+    Progress( long bytesCompleted, long bytesTotal, long entriesCompleted, long entriesTotal, boolean estimated,
+              String currentPath, Duration elapsed, double throughput, double averageThroughput, boolean complete )
+    {
+        this.bytesCompleted = bytesCompleted;
+        this.bytesTotal = bytesTotal;
+        this.entriesCompleted = entriesCompleted;
+        this.entriesTotal = entriesTotal;
+        this.estimated = estimated;
+        this.currentPath = currentPath;
+        this.elapsed = elapsed;
+        this.throughput = throughput;
+        this.averageThroughput = averageThroughput;
+        this.complete = complete;
+    }
+
+    public long getBytesCompleted()
+    {
+        return bytesCompleted;
+    }
+
+    /**
+     * @return the total bytes known so far, which may be an estimate (see {@link #isEstimated()}).
+     */
+    public long getBytesTotal()
+    {
+        return bytesTotal;
+    }
+
+    public long getEntriesCompleted()
+    {
+        return entriesCompleted;
+    }
+
+    /**
+     * @return the total entries of the archives opened so far whose metadata lists them (zip and 7z) ;
+     * archives such as tar are only counted as their entries are read.
+     */
+    public long getEntriesTotal()
+    {
+        return entriesTotal;
+    }
+
+    /**
+     * @return whether the totals include estimates, e.g. of nested archives not yet opened or of
+     * formats whose uncompressed size is not recorded.
+     */
+    public boolean isEstimated()
+    {
+        return estimated;
+    }
+
+    /**
+     * @return the entry currently being extracted, with archive boundaries marked by {@code !/}.
+     */
+    public String getCurrentPath()
+    {
+        return currentPath;
+    }
+
+    public Duration getElapsed()
+    {
+        return elapsed;
+    }
+
+    /**
+     * @return the bytes per second since the previous update.
+     */
+    public double getThroughput()
+    {
+        return throughput;
+    }
+
+    /**
+     * @return the bytes per second since the unpack started.
+     */
+    public double getAverageThroughput()
+    {
+        return averageThroughput;
+    }
+
+    /**
+     * @return the estimated time remaining at the average throughput, or null if it cannot be estimated.
+     */
+    public Duration getEta()
+    {
+        if ( complete )
+        {
+            return Duration.ZERO;
+        }
+        if ( averageThroughput <= 0 || bytesTotal <= bytesCompleted )
+        {
+            return null;
+        }
+        return Duration.ofMillis( (long) ( ( bytesTotal - bytesCompleted ) / averageThroughput * 1000 ) );
+    }
+
+    /**
+     * @return whether this is the final update of the unpack call (whether or not it succeeded).
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    @Override
+    public String toString()
+    {
+        return bytesCompleted + "/" + bytesTotal + ( estimated ? "~" : "" ) + " bytes, " + entriesCompleted + " entries, "
+                        + (long) averageThroughput + " bytes/s, eta " + getEta() + " at " + currentPath;
+    }
+}
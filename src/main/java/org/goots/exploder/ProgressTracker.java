@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import org.apache.commons.io.input.ProxyInputStream;
+
+import java.io.File;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Accumulates the {@link Progress} of an unpack call. The counters are updated by the unpacking threads
+ * with little more than an addition ; only once the interval has elapsed does one of them (chosen by
+ * compare and set) build a snapshot and pass it to the listener.
+ */
+class ProgressTracker
+{
+    private final Consumer<Progress> listener;
+
+    private final long interval;
+
+    private final long start = System.nanoTime();
+
+    private final AtomicLong due;
+
+    private final LongAdder bytes = new LongAdder();
+
+    private final LongAdder entries = new LongAdder();
+
+    private final AtomicLong bytesTotal = new AtomicLong();
+
+    private final AtomicLong entriesTotal = new AtomicLong();
+
+    /**
+     * The estimated size of each nested archive found but not yet opened.
+     */
+    private final Map<File, Long> pending = new ConcurrentHashMap<>();
+
+    private volatile boolean estimated;
+
+    private volatile String chain = "";
+
+    private volatile String name = "";
+
+    private long lastTime = start;
+
+    private long lastBytes;
+
+    ProgressTracker( Consumer<Progress> listener, Duration interval )
+    {
+        this.listener = listener;
+        this.interval = interval.toNanos();
+        this.due = new AtomicLong( start + this.interval );
+    }
+
+    /**
+     * Adds the content of an archive or compressed file, replacing any estimate made when it was found.
+     *
+     * @param file the archive.
+     * @param bytes its total uncompressed size.
+     * @param entries its number of entries, or 0 if not recorded.
+     * @param exact whether the size is recorded by the archive rather than estimated.
+     */
+    void archiveOpened( File file, long bytes, long entries, boolean exact )
+    {
+        Long estimate = pending.remove( file );
+        bytesTotal.addAndGet( bytes - ( estimate == null ? 0 : estimate ) );
+        entriesTotal.addAndGet( entries );
+        if ( ! exact )
+        {
+            estimated = true;
+        }
+    }
+
+    /**
+     * Estimates the content of a nested archive, which will be unpacked in turn, as its own size.
+     */
+    void nestedFound( File file, long size )
+    {
+        if ( size > 0 && pending.putIfAbsent( file, size ) == null )
+        {
+            bytesTotal.addAndGet( size );
+            estimated = true;
+        }
+    }
+
+    void entryStarted( String chain, String name )
+    {
+        this.chain = chain;
+        this.name = name;
+        update();
+    }
+
+    void entryCompleted()
+    {
+        entries.increment();
+    }
+
+    /**
+     * @return the stream, counting the bytes read from it.
+     */
+    InputStream track( InputStream input )
+    {
+        return new ProxyInputStream( input )
+        {
+            @Override
+            protected void afterRead( int n )
+            {
+                if ( n > 0 )
+                {
+                    bytes.add( n );
+                    update();
+                }
+            }
+        };
+    }
+
+    private void update()
+    {
+        long now = System.nanoTime();
+        long next = due.get();
+
+        if ( now - next >= 0 && due.compareAndSet( next, now + interval ) )
+        {
+            report( now, false );
+        }
+    }
+
+    /**
+     * Passes the final update to the listener.
+     */
+    void finish()
+    {
+        report( System.nanoTime(), true );
+    }
+
+    private synchronized void report( long now, boolean complete )
+    {
+        long completed = bytes.sum();
+        double seconds = ( now - lastTime ) / 1e9;
+        double elapsed = ( now - start ) / 1e9;
+        double throughput = seconds > 0 ? ( completed - lastBytes ) / seconds : 0;
+        double average = elapsed > 0 ? completed / elapsed : 0;
+        String current = chain.isEmpty() ? name : chain + "!/" + name;
+
+        lastTime = now;
+        lastBytes = completed;
+        listener.accept( new Progress( completed, Math.max( bytesTotal.get(), completed ), entries.sum(), entriesTotal.get(),
+                                       estimated, current, Duration.ofNanos( now - start ), throughput, average,
+                                       complete ) );
+    }
+}
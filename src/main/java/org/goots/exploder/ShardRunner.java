@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Executes a {@link WorkPlan.Shard}, typically in its own JVM, and merges the outputs of the shards of a
+ * plan. Each shard unpacks its share of the input's entries (and everything nested within them) into the
+ * {@code content} directory of its output, and on success writes a {@code manifest} listing the virtual
+ * path, location and size of every file it processed.
+ * <p>
+ * Usage: {@code java org.goots.exploder.ShardRunner <shard file> <output directory> [processor class]}
+ * where the optional processor has a public no-argument constructor.
+ */
+public final class ShardRunner
+{
+    static final String CONTENT = "content";
+
+    static final String MANIFEST = "manifest";
+
+    private static final Logger logger = LoggerFactory.getLogger( ShardRunner.class );
+
+    private ShardRunner()
+    {
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        if ( args.length < 2 )
+        {
+            System.err.println( "Usage: ShardRunner <shard file> <output directory> [processor class]" );
+            System.exit( 2 );
+        }
+        ExploderFileProcessor processor = null;
+        if ( args.length > 2 )
+        {
+            processor = (ExploderFileProcessor) Class.forName( args[2] ).getConstructor().newInstance();
+        }
+        run( WorkPlan.Shard.load( new File( args[0] ) ), new File( args[1] ), processor );
+    }
+
+    /**
+     * Unpacks the entries of the shard, and everything nested within them, to the output directory.
+     *
+     * @param shard the shard.
+     * @param output the output directory of this shard.
+     * @param processor the optional processor, called on each file as for {@link Exploder#unpack(ExploderFileProcessor, File)}.
+     * @throws InternalException if an error occurs.
+     */
+    public static void run( WorkPlan.Shard shard, File output, ExploderFileProcessor processor ) throws InternalException
+    {
+        File content = new File( output, CONTENT );
+        List<String> manifest = new ArrayList<>();
+
+        logger.info( "Executing {}", shard );
+        new Exploder().useTargetDirectory( content ).includeEntries( shard::contains ).unpack( new ExploderFileProcessor()
+        {
+            @Override
+            public void processFile( File baseDir, File file ) throws InternalException
+            {
+                processFile( baseDir, file, VirtualPath.of( baseDir, file ) );
+            }
+
+            @Override
+            public void processFile( File baseDir, File file, VirtualPath path ) throws InternalException
+            {
+                manifest.add( path + "\t" + getLocation( content, file ) + '\t' + file.length() );
+                if ( processor != null )
+                {
+                    processor.processFile( baseDir, file, path );
+                }
+            }
+        }, shard.getInput() );
+
+        File file = new File( output, MANIFEST );
+        File temporary = new File( output, MANIFEST + ".tmp" );
+        try
+        {
+            Files.write( temporary.toPath(), manifest, StandardCharsets.UTF_8 );
+            Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException e )
+        {
+            throw new InternalException( "Unable to write manifest " + file, e );
+        }
+    }
+
+    /**
+     * Combines the outputs of the shards of a plan. Files processed by several shards (such as the input
+     * itself) are listed once.
+     *
+     * @param outputs the output directories of the shards.
+     * @param manifest the optional file to write the combined manifest to.
+     * @return every file processed by the shards, ordered by virtual path, so that a processor may be run
+     * over the combined output.
+     * @throws InternalException if a shard has not completed or an error occurs.
+     */
+    public static List<ExplodedEntry> merge( List<File> outputs, File manifest ) throws InternalException
+    {
+        Map<String, ExplodedEntry> entries = new TreeMap<>();
+        Map<String, String> lines = new TreeMap<>();
+
+        for ( File output : outputs )
+        {
+            File content = new File( output, CONTENT );
+            File file = new File( output, MANIFEST );
+            if ( ! file.exists() )
+            {
+                throw new InternalException( "Shard output " + output + " has not completed" );
+            }
+            try ( BufferedReader reader = Files.newBufferedReader( file.toPath(), StandardCharsets.UTF_8 ) )
+            {
+                String line;
+                while ( ( line = reader.readLine() ) != null )
+                {
+                    String[] fields = line.split( "\t" );
+                    File location = new File( fields[1] ).isAbsolute() ? new File( fields[1] ) : new File( content, fields[1] );
+                    if ( entries.putIfAbsent( fields[0], new ExplodedEntry( content, location, VirtualPath.parse( fields[0] ) ) ) == null )
+                    {
+                        lines.put( fields[0], fields[0] + '\t' + location.getPath() + '\t' + fields[2] );
+                    }
+                }
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                throw new InternalException( "Unable to read manifest " + file, e );
+            }
+        }
+        if ( manifest != null )
+        {
+            try
+            {
+                Files.write( manifest.toPath(), lines.values(), StandardCharsets.UTF_8 );
+            }
+            catch ( IOException e )
+            {
+                throw new InternalException( "Unable to write manifest " + manifest, e );
+            }
+        }
+        return new ArrayList<>( entries.values() );
+    }
+
+    /**
+     * @return the file relative to the content directory or, if outside it (e.g. the input), its absolute path.
+     */
+    private static String getLocation( File content, File file )
+    {
+        Path base = content.getAbsoluteFile().toPath();
+        Path path = file.getAbsoluteFile().toPath();
+
+        return path.startsWith( base ) ? FilenameUtils.separatorsToUnix( base.relativize( path ).toString() ) : path.toString();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds small extracted entries in pooled direct buffers rather than creating a file for each.
+ * Buffers are allocated in power of two size classes and returned to the pool once the entry
+ * has been processed. The total direct memory held (in use or pooled) is capped ; once the cap
+ * is reached entries are not staged and the caller spills them to disk instead. The pool may be
+ * shared by concurrent unpacks, each of which stages its entries through its own {@link Session}.
+ */
+class StagingArena
+{
+    private static final int MINIMUM_BUFFER = 4096;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final int threshold;
+
+    private final long capacity;
+
+    private final AtomicLong reserved = new AtomicLong();
+
+    private final Map<Integer, Queue<ByteBuffer>> pool = new ConcurrentHashMap<>();
+
+    StagingArena( int threshold, long capacity )
+    {
+        this.threshold = threshold;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return a new session, whose staged entries are kept apart from those of any other.
+     */
+    Session newSession()
+    {
+        return new Session();
+    }
+
+    /**
+     * @return a buffer from the pool able to hold the size, or null if the arena is full.
+     */
+    private ByteBuffer acquire( int size, File file )
+    {
+        int sizeClass = getSizeClass( size );
+        ByteBuffer buffer = pool.computeIfAbsent( sizeClass, k -> new ConcurrentLinkedQueue<>() ).poll();
+
+        if ( buffer == null )
+        {
+            if ( reserved.addAndGet( sizeClass ) > capacity )
+            {
+                reserved.addAndGet( -sizeClass );
+                logger.debug( "Staging arena is full, spilling {} to disk", file );
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect( sizeClass );
+        }
+        return buffer;
+    }
+
+    private static int getSizeClass( int size )
+    {
+        return Math.max( MINIMUM_BUFFER, Integer.highestOneBit( Math.max( 1, size - 1 ) ) << 1 );
+    }
+
+    void release( ByteBuffer buffer )
+    {
+        buffer.clear();
+        pool.get( buffer.capacity() ).offer( buffer );
+    }
+
+    /**
+     * The entries staged by a single unpack.
+     */
+    class Session
+    {
+        /**
+         * Staged entries keyed by the directory they would have been written to.
+         */
+        private final Map<Path, List<Staged>> staged = new ConcurrentHashMap<>();
+
+        /**
+         * Reads the entry into a staging buffer. Where the size of the entry is not known in advance
+         * (e.g. streamed zip entries with data descriptors) up to the threshold is read into a pooled
+         * buffer of the largest size class ; if the entry proves to be larger those bytes are replayed
+         * by the returned stream, which returns the buffer to the pool once they have been read.
+         *
+         * @param file the file the entry would have been written to.
+         * @param size the size of the entry, or -1 if unknown.
+         * @param input the entry content.
+         * @return null if the entry was staged, otherwise the stream from which to write the entry.
+         * @throws IOException if an error occurs.
+         */
+        InputStream stage( File file, long size, InputStream input ) throws IOException
+        {
+            if ( size > threshold )
+            {
+                return input;
+            }
+
+            ByteBuffer buffer;
+            if ( size < 0 )
+            {
+                ByteBuffer content = acquire( threshold + 1, file );
+                if ( content == null )
+                {
+                    return input;
+                }
+                content.limit( threshold + 1 );
+                try
+                {
+                    IOUtils.read( Channels.newChannel( input ), content );
+                }
+                catch ( IOException e )
+                {
+                    release( content );
+                    throw e;
+                }
+                content.flip();
+                if ( content.remaining() > threshold )
+                {
+                    return new SequenceInputStream( new ReplayInputStream( content ), input );
+                }
+
+                // Move the entry to a buffer of its own size class, freeing the larger one for the next entry.
+                buffer = getSizeClass( content.remaining() ) == content.capacity() ? content : acquire( content.remaining(), file );
+                if ( buffer == null )
+                {
+                    return new ReplayInputStream( content );
+                }
+                else if ( buffer != content )
+                {
+                    buffer.put( content ).flip();
+                    release( content );
+                }
+            }
+            else
+            {
+                buffer = acquire( (int) size, file );
+                if ( buffer == null )
+                {
+                    return input;
+                }
+                buffer.limit( (int) size );
+                try
+                {
+                    IOUtils.readFully( Channels.newChannel( input ), buffer );
+                }
+                catch ( IOException e )
+                {
+                    release( buffer );
+                    throw e;
+                }
+                buffer.flip();
+            }
+
+            staged.computeIfAbsent( file.getParentFile().toPath().toAbsolutePath().normalize(),
+                                    k -> Collections.synchronizedList( new ArrayList<>() ) ).add( new Staged( file, buffer ) );
+            return null;
+        }
+
+        /**
+         * Removes the entries staged for the directory. Each must be passed to {@link StagingArena#release(ByteBuffer)}
+         * once processed.
+         *
+         * @param directory the directory.
+         * @return the staged entries, or an empty list.
+         */
+        List<Staged> take( File directory )
+        {
+            List<Staged> result = staged.remove( directory.toPath().toAbsolutePath().normalize() );
+
+            return result == null ? Collections.emptyList() : result;
+        }
+
+        /**
+         * Returns the entries staged by this session but not taken (e.g. following an error) to the pool.
+         */
+        void releaseAll()
+        {
+            for ( Path directory : staged.keySet() )
+            {
+                List<Staged> entries = staged.remove( directory );
+                if ( entries != null )
+                {
+                    entries.forEach( e -> release( e.content ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Replays the content of a pooled buffer, returning it to the pool once read or closed.
+     */
+    private class ReplayInputStream extends InputStream
+    {
+        private ByteBuffer content;
+
+        ReplayInputStream( ByteBuffer content )
+        {
+            this.content = content;
+        }
+
+        @Override
+        public int read()
+        {
+            byte[] single = new byte[1];
+
+            return read( single, 0, 1 ) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len )
+        {
+            if ( content == null || ! content.hasRemaining() )
+            {
+                close();
+                return -1;
+            }
+            len = Math.min( len, content.remaining() );
+            content.get( b, off, len );
+            return len;
+        }
+
+        @Override
+        public int available()
+        {
+            return content == null ? 0 : content.remaining();
+        }
+
+        @Override
+        public void close()
+        {
+            if ( content != null )
+            {
+                release( content );
+                content = null;
+            }
+        }
+    }
+
+    static class Staged
+    {
+        final File file;
+
+        final ByteBuffer content;
+
+        Staged( File file, ByteBuffer content )
+        {
+            this.file = file;
+            this.content = content;
+        }
+    }
+}
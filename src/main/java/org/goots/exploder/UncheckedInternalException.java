@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+/**
+ * Wraps an {@link InternalException} where it must cross an API that does not allow checked
+ * exceptions, e.g. the {@link java.util.stream.Stream} returned by {@link Exploder#stream(java.io.File)}.
+ */
+public class UncheckedInternalException extends RuntimeException
+{
+    public UncheckedInternalException( InternalException cause )
+    {
+        super( cause.getMessage(), cause );
+    }
+
+    @Override
+    public synchronized InternalException getCause()
+    {
+        return (InternalException) super.getCause();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the unpacking of nested archives on a pool of threads, largest first, so that a large
+ * archive found late does not set the wall time for the whole job. The size of each archive is
+ * weighted by its nesting depth so that, for equally sized work, deeper archives (completing a
+ * subtree already started) are preferred over widening the set of partially unpacked archives.
+ */
+class UnpackScheduler
+{
+    /**
+     * The weighting applied per level of nesting ; an archive at depth 4 is treated as twice its size.
+     */
+    static final double DEPTH_WEIGHT = 0.25;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Object lock = new Object();
+
+    private int outstanding;
+
+    private Exception failure;
+
+    UnpackScheduler( int threads )
+    {
+        executor = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>() );
+        // Otherwise the first submissions would be handed directly to newly created threads, bypassing the queue.
+        executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Queues the unpacking of a nested archive.
+     *
+     * @param file the archive.
+     * @param depth its nesting depth.
+     * @param work the unpacking to run.
+     */
+    void submit( File file, int depth, Work work )
+    {
+        synchronized ( lock )
+        {
+            if ( failure != null )
+            {
+                return;
+            }
+            outstanding++;
+        }
+        executor.execute( new Task( file, depth, work ) );
+    }
+
+    /**
+     * Waits until all submitted work, including that submitted by other work, has completed.
+     *
+     * @throws InternalException if any work failed.
+     */
+    void await() throws InternalException
+    {
+        synchronized ( lock )
+        {
+            try
+            {
+                while ( outstanding > 0 && failure == null )
+                {
+                    lock.wait();
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new CancelledException( "Interrupted waiting for nested archives" );
+            }
+
+            if ( failure instanceof InternalException )
+            {
+                throw (InternalException) failure;
+            }
+            else if ( failure != null )
+            {
+                throw (RuntimeException) failure;
+            }
+        }
+    }
+
+    /**
+     * Cancels any queued or running work and waits for the running work to stop.
+     */
+    void shutdown()
+    {
+        executor.shutdownNow();
+        try
+        {
+            while ( ! executor.awaitTermination( 1, TimeUnit.SECONDS ) )
+            {
+                logger.debug( "Waiting for nested archive unpacking to stop" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @FunctionalInterface
+    interface Work
+    {
+        void run() throws InternalException;
+    }
+
+    private class Task implements Runnable, Comparable<Task>
+    {
+        private final File file;
+
+        private final int depth;
+
+        private final Work work;
+
+        private final long size;
+
+        private final long priority;
+
+        private final long order = sequence.getAndIncrement();
+
+        Task( File file, int depth, Work work )
+        {
+            this.file = file;
+            this.depth = depth;
+            this.work = work;
+            this.size = file.length();
+            this.priority = (long) ( size * ( 1 + DEPTH_WEIGHT * depth ) );
+        }
+
+        @Override
+        public int compareTo( Task other )
+        {
+            int result = Long.compare( other.priority, priority );
+
+            return result == 0 ? Long.compare( order, other.order ) : result;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                logger.debug( "Scheduling {} ({} bytes at depth {}, priority {}) with {} queued", file, size, depth,
+                              priority, executor.getQueue().size() );
+                work.run();
+            }
+            catch ( InternalException | RuntimeException e )
+            {
+                synchronized ( lock )
+                {
+                    if ( failure == null )
+                    {
+                        failure = e;
+                    }
+                }
+            }
+            finally
+            {
+                synchronized ( lock )
+                {
+                    outstanding--;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The location of an unpacked file in terms of the archives it was found within, e.g.
+ * {@code app.ear!/lib/x.war!/WEB-INF/lib/y.jar!/META-INF/MANIFEST.MF}. Each path holds a
+ * single (interned) name segment and a reference to its parent, so paths are built as the
+ * unpack recurses without string manipulation, and share their prefixes.
+ */
+public final class VirtualPath
+{
+    /**
+     * The root of the unpacked tree.
+     */
+    public static final VirtualPath ROOT = new VirtualPath( null, "", false );
+
+    private final VirtualPath parent;
+
+    private final String name;
+
+    private final boolean archive;
+
+    private final int depth;
+
+    private VirtualPath( VirtualPath parent, String name, boolean archive )
+    {
+        this.parent = parent;
+        this.name = name;
+        this.archive = archive;
+        this.depth = parent == null ? 0 : parent.depth + ( parent.archive ? 1 : 0 );
+    }
+
+    /**
+     * @param path a full path as returned by {@link #toString()} e.g. {@code app.ear!/lib/x.war!/WEB-INF/web.xml}.
+     * @return the virtual path.
+     */
+    public static VirtualPath parse( String path )
+    {
+        VirtualPath result = ROOT;
+        String[] archives = path.split( "!/", -1 );
+
+        for ( int i = 0; i < archives.length; i++ )
+        {
+            if ( i > 0 )
+            {
+                result = result.asArchive();
+            }
+            for ( String segment : archives[i].split( "/" ) )
+            {
+                if ( ! segment.isEmpty() )
+                {
+                    result = result.resolve( segment );
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Derives the virtual path of a file from its location, for callers only given the file (see
+     * {@link ExploderFileProcessor#processFile(File, File)}). Each unpack directory within the base
+     * folder is taken as the archive it was unpacked from.
+     *
+     * @param baseDir the base folder the unpack was written to.
+     * @param file a file within it.
+     * @return the virtual path.
+     */
+    static VirtualPath of( File baseDir, File file )
+    {
+        VirtualPath result = ROOT;
+
+        for ( Path segment : baseDir.toPath().relativize( file.toPath() ) )
+        {
+            String name = segment.toString();
+            if ( name.endsWith( Exploder.ARCHIVE_UNPACK_SUFFIX ) )
+            {
+                result = result.resolve( name.substring( 0, name.length() - Exploder.ARCHIVE_UNPACK_SUFFIX.length() ) )
+                               .asArchive();
+            }
+            else if ( ! name.isEmpty() )
+            {
+                result = result.resolve( name );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param name the name of a file or directory within this path.
+     * @return the child path.
+     */
+    public VirtualPath resolve( String name )
+    {
+        return new VirtualPath( this, name.intern(), false );
+    }
+
+    /**
+     * @return this path marked as an archive, whose children are its entries.
+     */
+    public VirtualPath asArchive()
+    {
+        return archive ? this : new VirtualPath( parent, name, true );
+    }
+
+    /**
+     * @return whether this path is an archive whose children are its entries.
+     */
+    public boolean isArchive()
+    {
+        return archive;
+    }
+
+    /**
+     * @return the final name segment.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return the parent path or null for the root.
+     */
+    public VirtualPath getParent()
+    {
+        return parent;
+    }
+
+    /**
+     * @return the number of archives this path is nested within.
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * @return the path within the innermost enclosing archive e.g. {@code META-INF/MANIFEST.MF}. This
+     * is equivalent to {@link ExploderFileProcessor#getVirtualPath(java.io.File, java.io.File)}.
+     */
+    public String getPath()
+    {
+        StringBuilder result = new StringBuilder();
+
+        for ( VirtualPath p = this; p.parent != null; p = p.parent )
+        {
+            result.insert( 0, p.name );
+            if ( p.parent.archive || p.parent.parent == null )
+            {
+                break;
+            }
+            result.insert( 0, '/' );
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return the enclosing archives, outermost first, each as its path within its own enclosing
+     * archive e.g. {@code [app.ear, lib/x.war, WEB-INF/lib/y.jar]}.
+     */
+    public List<String> getArchiveChain()
+    {
+        List<String> result = new ArrayList<>( depth );
+
+        for ( VirtualPath p = parent; p != null; p = p.parent )
+        {
+            if ( p.archive )
+            {
+                result.add( p.getPath() );
+            }
+        }
+        Collections.reverse( result );
+
+        return result;
+    }
+
+    @Override
+    public boolean equals( Object other )
+    {
+        if ( this == other )
+        {
+            return true;
+        }
+        if ( ! ( other instanceof VirtualPath ) )
+        {
+            return false;
+        }
+        VirtualPath o = (VirtualPath) other;
+
+        return archive == o.archive && name.equals( o.name ) && ( parent == null ? o.parent == null : parent.equals( o.parent ) );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return ( parent == null ? 0 : parent.hashCode() * 31 ) + name.hashCode() + ( archive ? 1 : 0 );
+    }
+
+    /**
+     * @return the full path with archive boundaries marked by {@code !/} e.g.
+     * {@code app.ear!/lib/x.war!/WEB-INF/web.xml}.
+     */
+    @Override
+    public String toString()
+    {
+        if ( parent == null || parent.parent == null )
+        {
+            return name;
+        }
+        return parent.toString() + ( parent.archive ? "!/" : "/" ) + name;
+    }
+}
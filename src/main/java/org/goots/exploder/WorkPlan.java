@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * The top level entries of an archive, with their sizes, as created by {@link ExploderEngine#plan(File)}.
+ * A plan is split into balanced {@link Shard}s, each of which may be saved and executed by a separate
+ * process (see {@link ShardRunner}) sharing the input, with the outputs combined by
+ * {@link ShardRunner#merge(List, File)}.
+ */
+public final class WorkPlan
+{
+    private final File input;
+
+    private final List<Unit> units;
+
+    WorkPlan( File input, List<Unit> units )
+    {
+        this.input = input;
+        this.units = Collections.unmodifiableList( units );
+    }
+
+    public File getInput()
+    {
+        return input;
+    }
+
+    public List<Unit> getUnits()
+    {
+        return units;
+    }
+
+    /**
+     * @return the total uncompressed size of the entries.
+     */
+    public long getSize()
+    {
+        return units.stream().mapToLong( Unit::getSize ).sum();
+    }
+
+    /**
+     * Splits the plan into shards of roughly equal size, assigning each entry, largest first, to the
+     * smallest shard so far. The split is deterministic, so every process computing it from the same
+     * plan agrees on the assignment.
+     *
+     * @param count the number of shards.
+     * @return the shards, some of which may be empty if there are fewer entries than shards.
+     */
+    public List<Shard> split( int count )
+    {
+        if ( count < 1 )
+        {
+            throw new IllegalArgumentException( "Shard count must be positive" );
+        }
+        List<Unit> sorted = new ArrayList<>( units );
+        sorted.sort( Comparator.comparingLong( Unit::getSize ).reversed().thenComparing( Unit::getName ) );
+
+        List<Shard> result = new ArrayList<>( count );
+        PriorityQueue<Shard> smallest = new PriorityQueue<>(
+                        Comparator.comparingLong( Shard::getSize ).thenComparingInt( Shard::getIndex ) );
+        for ( int i = 0; i < count; i++ )
+        {
+            Shard shard = new Shard( input, i, count, new ArrayList<>() );
+            result.add( shard );
+            smallest.add( shard );
+        }
+        for ( Unit unit : sorted )
+        {
+            Shard shard = smallest.remove();
+            shard.add( unit );
+            smallest.add( shard );
+        }
+        return result;
+    }
+
+    /**
+     * A top level entry of the input.
+     */
+    public static final class Unit
+    {
+        private final String name;
+
+        private final long size;
+
+        private final boolean nested;
+
+        Unit( String name, long size, boolean nested )
+        {
+            this.name = name;
+            this.size = size;
+            this.nested = nested;
+        }
+
+        /**
+         * @return the entry name within the input.
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * @return the uncompressed size of the entry.
+         */
+        public long getSize()
+        {
+            return size;
+        }
+
+        /**
+         * @return whether the entry is itself an archive or compressed file, to be unpacked in turn.
+         */
+        public boolean isNested()
+        {
+            return nested;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + " (" + size + ')';
+        }
+    }
+
+    /**
+     * The share of a plan executed by one process. A shard is saved as a text file listing the input
+     * and the size and name of each of its entries.
+     */
+    public static final class Shard
+    {
+        private final File input;
+
+        private final int index;
+
+        private final int count;
+
+        private final List<Unit> units;
+
+        private final Set<String> names = new HashSet<>();
+
+        private long size;
+
+        Shard( File input, int index, int count, List<Unit> units )
+        {
+            this.input = input;
+            this.index = index;
+            this.count = count;
+            this.units = units;
+            units.forEach( u -> {
+                names.add( u.getName() );
+                size += u.getSize();
+            } );
+        }
+
+        private void add( Unit unit )
+        {
+            units.add( unit );
+            names.add( unit.getName() );
+            size += unit.getSize();
+        }
+
+        public File getInput()
+        {
+            return input;
+        }
+
+        public int getIndex()
+        {
+            return index;
+        }
+
+        /**
+         * @return the number of shards the plan was split into.
+         */
+        public int getCount()
+        {
+            return count;
+        }
+
+        public List<Unit> getUnits()
+        {
+            return Collections.unmodifiableList( units );
+        }
+
+        /**
+         * @return the total uncompressed size of the entries of this shard.
+         */
+        public long getSize()
+        {
+            return size;
+        }
+
+        /**
+         * @param name the entry name.
+         * @return whether the entry belongs to this shard.
+         */
+        public boolean contains( String name )
+        {
+            return names.contains( name );
+        }
+
+        /**
+         * Atomically writes the shard so that it may be executed by another process.
+         *
+         * @param file the shard file.
+         * @throws InternalException if an error occurs.
+         */
+        public void save( File file ) throws InternalException
+        {
+            File temporary = new File( file.getPath() + ".tmp" );
+
+            try
+            {
+                try ( PrintWriter writer = new PrintWriter( Files.newBufferedWriter( temporary.toPath(), StandardCharsets.UTF_8 ) ) )
+                {
+                    writer.println( "input " + input.getAbsolutePath() );
+                    writer.println( "shard " + index + ' ' + count );
+                    for ( Unit unit : units )
+                    {
+                        writer.println( "unit " + unit.getSize() + ' ' + ( unit.isNested() ? 1 : 0 ) + ' ' + unit.getName() );
+                    }
+                }
+                Files.move( temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE );
+            }
+            catch ( IOException e )
+            {
+                throw new InternalException( "Unable to write shard " + file, e );
+            }
+        }
+
+        /**
+         * @param file the shard file.
+         * @return the shard.
+         * @throws InternalException if the file cannot be read or is not a shard.
+         */
+        public static Shard load( File file ) throws InternalException
+        {
+            File input = null;
+            int index = 0;
+            int count = 1;
+            List<Unit> units = new ArrayList<>();
+
+            try ( BufferedReader reader = Files.newBufferedReader( file.toPath(), StandardCharsets.UTF_8 ) )
+            {
+                String line;
+                while ( ( line = reader.readLine() ) != null )
+                {
+                    String[] fields = line.split( " ", 4 );
+                    if ( "input".equals( fields[0] ) )
+                    {
+                        input = new File( line.substring( fields[0].length() + 1 ) );
+                    }
+                    else if ( "shard".equals( fields[0] ) )
+                    {
+                        index = Integer.parseInt( fields[1] );
+                        count = Integer.parseInt( fields[2] );
+                    }
+                    else if ( "unit".equals( fields[0] ) )
+                    {
+                        units.add( new Unit( fields[3], Long.parseLong( fields[1] ), "1".equals( fields[2] ) ) );
+                    }
+                }
+            }
+            catch ( IOException | RuntimeException e )
+            {
+                throw new InternalException( "Unable to read shard " + file, e );
+            }
+            if ( input == null )
+            {
+                throw new InternalException( "Shard " + file + " does not name its input" );
+            }
+            return new Shard( input, index, count, units );
+        }
+
+        @Override
+        public String toString()
+        {
+            return "shard " + index + '/' + count + " of " + input + " (" + units.size() + " entries, " + size + " bytes)";
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes extracted entries on a pool of writer threads so that the thread decoding an archive is
+ * not stalled by slow file systems. The decoder reads each entry into memory and hands it to the
+ * pool ; the memory held by entries waiting to be written is bounded by the capacity. An entry
+ * that does not fit within the memory available is instead returned to be written by the decoder.
+ */
+class WriteBehind
+{
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final ExecutorService executor;
+
+    private final Semaphore inFlight;
+
+    /**
+     * The size of the chunks read, no larger than the capacity so that each is counted in full.
+     */
+    private final int chunkSize;
+
+    WriteBehind( int writers, int capacity )
+    {
+        this.executor = Executors.newFixedThreadPool( writers );
+        this.inFlight = new Semaphore( capacity );
+        this.chunkSize = Math.min( CHUNK_SIZE, capacity );
+    }
+
+    /**
+     * @return a new batch, whose writes may be waited for independently of any other.
+     */
+    Batch newBatch()
+    {
+        return new Batch();
+    }
+
+    /**
+     * Cancels any queued or running writes and waits for the running writes to stop.
+     */
+    void shutdown()
+    {
+        executor.shutdownNow();
+        try
+        {
+            while ( ! executor.awaitTermination( 1, TimeUnit.SECONDS ) )
+            {
+                logger.debug( "Waiting for writes to stop" );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The writes for a single archive.
+     */
+    class Batch
+    {
+        private final Queue<Future<Void>> pending = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Reads the content and queues it to be written to the file.
+         *
+         * @param file the file to write.
+         * @param input the content.
+         * @param written optional action to run once the file has been written.
+         * @return null if the content was queued, otherwise the stream (including any bytes already
+         *    read) that the caller must write itself.
+         * @throws IOException if an error occurs reading the content.
+         * @throws CancelledException if interrupted waiting for memory.
+         */
+        InputStream write( File file, InputStream input, Runnable written ) throws IOException, CancelledException
+        {
+            List<byte[]> chunks = new ArrayList<>();
+            int held = 0;
+            try
+            {
+                byte[] buffer = new byte[chunkSize];
+                int n;
+                while ( ( n = IOUtils.read( input, buffer ) ) > 0 )
+                {
+                    byte[] chunk = n == chunkSize ? buffer : Arrays.copyOf( buffer, n );
+
+                    // Only wait for memory while holding none, so decoders can never wait on each other.
+                    if ( held == 0 )
+                    {
+                        inFlight.acquire( n );
+                    }
+                    else if ( ! inFlight.tryAcquire( n ) )
+                    {
+                        logger.debug( "Writing {} directly as it exceeds the memory available", file );
+                        inFlight.release( held );
+                        chunks.add( chunk );
+                        return replay( chunks, input );
+                    }
+                    held += n;
+                    chunks.add( chunk );
+
+                    if ( n < chunkSize )
+                    {
+                        break;
+                    }
+                    buffer = new byte[chunkSize];
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                inFlight.release( held );
+                Thread.currentThread().interrupt();
+                throw new CancelledException( "Interrupted waiting to write " + file );
+            }
+            catch ( IOException e )
+            {
+                inFlight.release( held );
+                throw e;
+            }
+
+            int permits = held;
+            pending.add( executor.submit( () -> {
+                try ( OutputStream output = new FileOutputStream( file ) )
+                {
+                    for ( byte[] chunk : chunks )
+                    {
+                        output.write( chunk );
+                    }
+                }
+                finally
+                {
+                    inFlight.release( permits );
+                }
+                if ( written != null )
+                {
+                    written.run();
+                }
+                return null;
+            } ) );
+            return null;
+        }
+
+        /**
+         * Waits until all the writes queued by this batch have completed.
+         *
+         * @throws IOException if any write failed.
+         * @throws InternalException if interrupted or any write failed unexpectedly.
+         */
+        void await() throws IOException, InternalException
+        {
+            Future<Void> future;
+            while ( ( future = pending.poll() ) != null )
+            {
+                try
+                {
+                    future.get();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new CancelledException( "Interrupted waiting for writes" );
+                }
+                catch ( ExecutionException e )
+                {
+                    if ( e.getCause() instanceof IOException )
+                    {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new InternalException( "Caught exception writing entry", e );
+                }
+            }
+        }
+
+        /**
+         * @return the chunks already read followed by the remainder of the input.
+         */
+        private InputStream replay( List<byte[]> chunks, InputStream input )
+        {
+            List<InputStream> streams = new ArrayList<>();
+
+            chunks.forEach( c -> streams.add( new ByteArrayInputStream( c ) ) );
+            streams.add( input );
+
+            return new SequenceInputStream( Collections.enumeration( streams ) );
+        }
+    }
+}
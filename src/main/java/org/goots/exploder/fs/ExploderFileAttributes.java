@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.fs;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The basic attributes of an archive entry. Nested archives are reported as directories, with the
+ * size of the archive itself.
+ */
+class ExploderFileAttributes implements BasicFileAttributes
+{
+    private final NestedArchive.Entry entry;
+
+    private final boolean directory;
+
+    ExploderFileAttributes( NestedArchive.Entry entry, boolean directory )
+    {
+        this.entry = entry;
+        this.directory = directory;
+    }
+
+    @Override
+    public FileTime lastModifiedTime()
+    {
+        return FileTime.fromMillis( entry.lastModified );
+    }
+
+    @Override
+    public FileTime lastAccessTime()
+    {
+        return lastModifiedTime();
+    }
+
+    @Override
+    public FileTime creationTime()
+    {
+        return lastModifiedTime();
+    }
+
+    @Override
+    public boolean isRegularFile()
+    {
+        return ! directory;
+    }
+
+    @Override
+    public boolean isDirectory()
+    {
+        return directory;
+    }
+
+    @Override
+    public boolean isSymbolicLink()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isOther()
+    {
+        return false;
+    }
+
+    @Override
+    public long size()
+    {
+        return Math.max( 0, entry.size );
+    }
+
+    @Override
+    public Object fileKey()
+    {
+        return null;
+    }
+
+    /**
+     * @return the attributes by name, as read by {@link java.nio.file.Files#readAttributes(java.nio.file.Path, String, java.nio.file.LinkOption...)}.
+     */
+    Map<String, Object> toMap()
+    {
+        Map<String, Object> result = new HashMap<>();
+
+        result.put( "lastModifiedTime", lastModifiedTime() );
+        result.put( "lastAccessTime", lastAccessTime() );
+        result.put( "creationTime", creationTime() );
+        result.put( "size", size() );
+        result.put( "isRegularFile", isRegularFile() );
+        result.put( "isDirectory", isDirectory() );
+        result.put( "isSymbolicLink", isSymbolicLink() );
+        result.put( "isOther", isOther() );
+        result.put( "fileKey", fileKey() );
+
+        return result;
+    }
+}
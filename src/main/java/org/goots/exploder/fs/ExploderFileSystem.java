@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.fs;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.goots.exploder.FileHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A read only view of an archive as a tree, in which nested archives appear as directories. Nested
+ * archives are only decoded when a path within them is accessed ; they are then held in memory in
+ * an LRU cache bounded by {@link #CACHE_SIZE} bytes. Nested archives larger than {@link #SPILL_SIZE}
+ * bytes are instead decoded to a temporary file, deleted once the archive is evicted. The entries of 7z
+ * archives, which are decoded before being read, likewise spill to a temporary file deleted once closed.
+ */
+public class ExploderFileSystem extends FileSystem
+{
+    /**
+     * Environment key for the maximum number of bytes of decoded nested archives to cache.
+     */
+    public static final String CACHE_SIZE = "cacheSize";
+
+    /**
+     * Environment key for the size above which a decoded nested archive (or 7z entry) is written to a
+     * temporary file rather than held in memory.
+     */
+    public static final String SPILL_SIZE = "spillSize";
+
+    private static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+
+    private static final int DEFAULT_SPILL_SIZE = 16 * 1024 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final FileHandler fsh = FileHandler.getDefault();
+
+    private final ExploderFileSystemProvider provider;
+
+    private final Path archive;
+
+    private final NestedArchive root;
+
+    private final long cacheSize;
+
+    private final int spillSize;
+
+    /**
+     * Decoded nested archives keyed by archive chain, in access order.
+     */
+    private final LinkedHashMap<String, NestedArchive> cache = new LinkedHashMap<>( 16, 0.75f, true );
+
+    private long cached;
+
+    private volatile boolean open = true;
+
+    ExploderFileSystem( ExploderFileSystemProvider provider, Path archive, Map<String, ?> env ) throws IOException
+    {
+        this.provider = provider;
+        this.archive = archive;
+
+        Object size = env.get( CACHE_SIZE );
+        this.cacheSize = size == null ? DEFAULT_CACHE_SIZE : Long.parseLong( size.toString() );
+        Object spill = env.get( SPILL_SIZE );
+        // Arrays are limited to 2GB, so larger archives are always written to a file.
+        this.spillSize = spill == null ? DEFAULT_SPILL_SIZE : (int) Math.min( Long.parseLong( spill.toString() ), Integer.MAX_VALUE - 8 );
+        this.root = NestedArchive.open( fsh, archive.getFileName().toString(), NestedArchive.Source.of( archive ), spillSize );
+
+        if ( root == null )
+        {
+            throw new UnsupportedOperationException( archive + " is not a supported archive" );
+        }
+    }
+
+    /**
+     * @return the archive presented by this file system.
+     */
+    public Path getArchive()
+    {
+        return archive;
+    }
+
+    @Override
+    public ExploderFileSystemProvider provider()
+    {
+        return provider;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if ( open )
+        {
+            open = false;
+            provider.removeFileSystem( archive );
+            synchronized ( cache )
+            {
+                for ( NestedArchive nested : cache.values() )
+                {
+                    nested.close();
+                    nested.source.delete();
+                }
+                cache.clear();
+                cached = 0;
+            }
+            root.close();
+        }
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly()
+    {
+        return true;
+    }
+
+    @Override
+    public String getSeparator()
+    {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories()
+    {
+        return Collections.singletonList( new ExploderPath( this, "/" ) );
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores()
+    {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews()
+    {
+        return Collections.singleton( "basic" );
+    }
+
+    @Override
+    public Path getPath( String first, String... more )
+    {
+        StringBuilder result = new StringBuilder( first );
+
+        for ( String segment : more )
+        {
+            if ( ! segment.isEmpty() )
+            {
+                result.append( '/' ).append( segment );
+            }
+        }
+        return new ExploderPath( this, result.toString() );
+    }
+
+    @Override
+    public PathMatcher getPathMatcher( String syntaxAndPattern )
+    {
+        int colon = syntaxAndPattern.indexOf( ':' );
+        if ( colon <= 0 )
+        {
+            throw new IllegalArgumentException( "Invalid syntax and pattern " + syntaxAndPattern );
+        }
+        String syntax = syntaxAndPattern.substring( 0, colon );
+        String pattern = syntaxAndPattern.substring( colon + 1 );
+
+        Pattern regex;
+        if ( "regex".equalsIgnoreCase( syntax ) )
+        {
+            regex = Pattern.compile( pattern );
+        }
+        else if ( "glob".equalsIgnoreCase( syntax ) )
+        {
+            regex = Pattern.compile( toRegex( pattern ) );
+        }
+        else
+        {
+            throw new UnsupportedOperationException( "Unsupported syntax " + syntax );
+        }
+        return path -> regex.matcher( path.toString() ).matches();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService()
+    {
+        throw new UnsupportedOperationException( "Principals are not supported" );
+    }
+
+    @Override
+    public WatchService newWatchService()
+    {
+        throw new UnsupportedOperationException( "Watching is not supported" );
+    }
+
+    InputStream newInputStream( ExploderPath path ) throws IOException
+    {
+        while ( true )
+        {
+            Location location = locate( path, false );
+
+            if ( location.entry.directory )
+            {
+                throw new FileSystemException( path.toString(), null, "Is a directory" );
+            }
+            InputStream result = location.archive.read( location.entry );
+            if ( result != null )
+            {
+                return result;
+            }
+            // The nested archive was evicted and closed since it was located, so decode it again.
+        }
+    }
+
+    List<Path> list( ExploderPath directory ) throws IOException
+    {
+        Location location = locate( directory, true );
+
+        if ( ! location.entry.directory )
+        {
+            throw new NotDirectoryException( directory.toString() );
+        }
+
+        List<Path> result = new ArrayList<>();
+        for ( String name : location.archive.list( location.entry.name ) )
+        {
+            result.add( directory.resolve( name ) );
+        }
+        return result;
+    }
+
+    BasicFileAttributes getAttributes( ExploderPath path ) throws IOException
+    {
+        Location location = locate( path, false );
+
+        return new ExploderFileAttributes( location.entry,
+                                           location.entry.directory || NestedArchive.isArchive( fsh, location.entry.name ) );
+    }
+
+    /**
+     * Finds the archive holding the path, decoding any nested archives along the way.
+     *
+     * @param path the path.
+     * @param enter whether, if the path denotes a nested archive, to return the root of that archive rather than
+     *              its entry within the parent.
+     * @return the location of the path.
+     * @throws IOException if the path does not exist or an error occurs.
+     */
+    private Location locate( ExploderPath path, boolean enter ) throws IOException
+    {
+        if ( ! open )
+        {
+            throw new ClosedFileSystemException();
+        }
+
+        String[] names = ( (ExploderPath) path.toAbsolutePath().normalize() ).getNames();
+
+        while ( true )
+        {
+            Location result = locate( path, names, enter );
+            if ( result != null )
+            {
+                return result;
+            }
+            logger.debug( "Nested archive containing {} was evicted while it was located ; retrying", path );
+        }
+    }
+
+    /**
+     * @return the location, or null if a nested archive on the path was evicted and closed before it could be read.
+     */
+    private Location locate( ExploderPath path, String[] names, boolean enter ) throws IOException
+    {
+        NestedArchive current = root;
+        StringBuilder chain = new StringBuilder();
+        String name = "";
+        NestedArchive.Entry entry = current.getEntry( name );
+
+        for ( int i = 0; i < names.length; i++ )
+        {
+            name = name.isEmpty() ? names[i] : name + '/' + names[i];
+            entry = current.getEntry( name );
+
+            if ( entry == null )
+            {
+                throw new NoSuchFileException( path.toString() );
+            }
+            if ( ! entry.directory && ( i < names.length - 1 || enter ) && NestedArchive.isArchive( fsh, name ) )
+            {
+                chain.append( name ).append( "!/" );
+                current = getNested( chain.toString(), current, entry );
+                if ( current == null )
+                {
+                    return null;
+                }
+                name = "";
+                entry = current.getEntry( name );
+            }
+        }
+        return new Location( current, entry );
+    }
+
+    private NestedArchive getNested( String chain, NestedArchive parent, NestedArchive.Entry entry ) throws IOException
+    {
+        synchronized ( cache )
+        {
+            NestedArchive result = cache.get( chain );
+            if ( result != null )
+            {
+                return result;
+            }
+        }
+
+        logger.debug( "Decoding nested archive {}", chain );
+        DeferredFileOutputStream content = new DeferredFileOutputStream( spillSize, "exploder-", ".nested", null );
+        try ( InputStream input = parent.read( entry ) )
+        {
+            if ( input == null )
+            {
+                // The parent was evicted and closed since it was located.
+                return null;
+            }
+            try ( OutputStream output = content )
+            {
+                IOUtils.copy( input, output );
+            }
+        }
+        catch ( IOException e )
+        {
+            if ( ! content.isInMemory() )
+            {
+                Files.deleteIfExists( content.getFile().toPath() );
+            }
+            throw e;
+        }
+        NestedArchive.Source source = NestedArchive.Source.of( content, entry.lastModified );
+
+        NestedArchive result = null;
+        try
+        {
+            result = NestedArchive.open( fsh, entry.name, source, spillSize );
+        }
+        finally
+        {
+            if ( result == null )
+            {
+                source.delete();
+            }
+        }
+        if ( result == null )
+        {
+            throw new FileSystemException( chain, null, "Unsupported nested archive" );
+        }
+
+        synchronized ( cache )
+        {
+            NestedArchive existing = cache.putIfAbsent( chain, result );
+            if ( existing != null )
+            {
+                // Decoded concurrently by another thread.
+                result.release();
+                result = existing;
+            }
+            else
+            {
+                cached += result.source.footprint();
+            }
+
+            // Evict the least recently used archives, always retaining the one just decoded. Evicted archives
+            // are closed once any streams still reading from them are closed.
+            Iterator<Map.Entry<String, NestedArchive>> i = cache.entrySet().iterator();
+            while ( cached > cacheSize && cache.size() > 1 && i.hasNext() )
+            {
+                Map.Entry<String, NestedArchive> eldest = i.next();
+                if ( eldest.getValue() != result )
+                {
+                    logger.debug( "Evicting nested archive {}", eldest.getKey() );
+                    cached -= eldest.getValue().source.footprint();
+                    eldest.getValue().release();
+                    i.remove();
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Converts a glob to a regular expression, supporting {@code *}, {@code **}, {@code ?},
+     * {@code [...]} and {@code {a,b}}.
+     */
+    private static String toRegex( String glob )
+    {
+        StringBuilder regex = new StringBuilder();
+        boolean group = false;
+
+        for ( int i = 0; i < glob.length(); i++ )
+        {
+            char c = glob.charAt( i );
+            switch ( c )
+            {
+                case '*':
+                    if ( i + 1 < glob.length() && glob.charAt( i + 1 ) == '*' )
+                    {
+                        regex.append( ".*" );
+                        i++;
+                    }
+                    else
+                    {
+                        regex.append( "[^/]*" );
+                    }
+                    break;
+                case '?':
+                    regex.append( "[^/]" );
+                    break;
+                case '[':
+                case ']':
+                    regex.append( c );
+                    break;
+                case '{':
+                    regex.append( "(?:" );
+                    group = true;
+                    break;
+                case '}':
+                    regex.append( ')' );
+                    group = false;
+                    break;
+                case ',':
+                    regex.append( group ? "|" : "," );
+                    break;
+                default:
+                    regex.append( Pattern.quote( String.valueOf( c ) ) );
+            }
+        }
+        return regex.toString();
+    }
+
+    private static final class Location
+    {
+        final NestedArchive archive;
+
+        final NestedArchive.Entry entry;
+
+        Location( NestedArchive archive, NestedArchive.Entry entry )
+        {
+            this.archive = archive;
+            this.entry = entry;
+        }
+    }
+}
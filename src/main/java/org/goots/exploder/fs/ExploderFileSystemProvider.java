@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.fs;
+
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Provides read only, lazily decoded access to the contents of an archive (and any archives nested
+ * within it) as an {@link ExploderFileSystem}. File systems are identified by URIs of the form
+ * {@code exploder:file:///path/app.ear} and paths within them by e.g.
+ * {@code exploder:file:///path/app.ear!/lib/x.war!/WEB-INF/web.xml}. For example:
+ * <pre>
+ * try ( FileSystem fs = FileSystems.newFileSystem( URI.create( "exploder:" + ear.toUri() ), Collections.emptyMap() ) )
+ * {
+ *     Files.readAllBytes( fs.getPath( "/lib/x.war!/WEB-INF/lib/y.jar!/META-INF/MANIFEST.MF" ) );
+ * }
+ * </pre>
+ */
+public class ExploderFileSystemProvider extends FileSystemProvider
+{
+    public static final String SCHEME = "exploder";
+
+    private final Map<Path, ExploderFileSystem> fileSystems = new HashMap<>();
+
+    @Override
+    public String getScheme()
+    {
+        return SCHEME;
+    }
+
+    @Override
+    public FileSystem newFileSystem( URI uri, Map<String, ?> env ) throws IOException
+    {
+        Path archive = getArchive( uri ).toRealPath();
+
+        synchronized ( fileSystems )
+        {
+            if ( fileSystems.containsKey( archive ) )
+            {
+                throw new FileSystemAlreadyExistsException( archive.toString() );
+            }
+            ExploderFileSystem result = new ExploderFileSystem( this, archive, env );
+            fileSystems.put( archive, result );
+            return result;
+        }
+    }
+
+    @Override
+    public FileSystem newFileSystem( Path path, Map<String, ?> env ) throws IOException
+    {
+        // Not registered as the file system may be opened multiple times by path.
+        return new ExploderFileSystem( this, path.toRealPath(), env );
+    }
+
+    @Override
+    public FileSystem getFileSystem( URI uri )
+    {
+        try
+        {
+            Path archive = getArchive( uri ).toRealPath();
+
+            synchronized ( fileSystems )
+            {
+                ExploderFileSystem result = fileSystems.get( archive );
+                if ( result == null )
+                {
+                    throw new FileSystemNotFoundException( uri.toString() );
+                }
+                return result;
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new FileSystemNotFoundException( uri.toString() );
+        }
+    }
+
+    @Override
+    public Path getPath( URI uri )
+    {
+        String ssp = uri.getRawSchemeSpecificPart();
+        int separator = ssp.indexOf( "!/" );
+
+        return getFileSystem( uri ).getPath( separator < 0 ? "/" : URI.create( ssp.substring( separator + 1 ) ).getPath() );
+    }
+
+    void removeFileSystem( Path archive )
+    {
+        synchronized ( fileSystems )
+        {
+            fileSystems.remove( archive );
+        }
+    }
+
+    @Override
+    public InputStream newInputStream( Path path, OpenOption... options ) throws IOException
+    {
+        checkReadOnly( options );
+
+        return checkPath( path ).getFileSystem().newInputStream( checkPath( path ) );
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel( Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs )
+                    throws IOException
+    {
+        checkReadOnly( options.toArray( new OpenOption[0] ) );
+
+        try ( InputStream input = newInputStream( path ) )
+        {
+            return new SeekableInMemoryByteChannel( IOUtils.toByteArray( input ) );
+        }
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream( Path dir, DirectoryStream.Filter<? super Path> filter )
+                    throws IOException
+    {
+        List<Path> entries = checkPath( dir ).getFileSystem().list( checkPath( dir ) );
+        List<Path> accepted = entries.stream().filter( p -> {
+            try
+            {
+                return filter == null || filter.accept( p );
+            }
+            catch ( IOException e )
+            {
+                throw new UncheckedIOException( e );
+            }
+        } ).collect( Collectors.toList() );
+
+        return new DirectoryStream<Path>()
+        {
+            @Override
+            public Iterator<Path> iterator()
+            {
+                return accepted.iterator();
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory( Path dir, FileAttribute<?>... attrs )
+    {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete( Path path )
+    {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy( Path source, Path target, CopyOption... options )
+    {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move( Path source, Path target, CopyOption... options )
+    {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile( Path path, Path path2 ) throws IOException
+    {
+        return path.equals( path2 ) || path.toRealPath().equals( path2.toRealPath() );
+    }
+
+    @Override
+    public boolean isHidden( Path path )
+    {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore( Path path )
+    {
+        throw new UnsupportedOperationException( "File stores are not supported" );
+    }
+
+    @Override
+    public void checkAccess( Path path, AccessMode... modes ) throws IOException
+    {
+        for ( AccessMode mode : modes )
+        {
+            if ( mode != AccessMode.READ )
+            {
+                throw new AccessDeniedException( path.toString(), null, "Read only file system" );
+            }
+        }
+        checkPath( path ).getFileSystem().getAttributes( checkPath( path ) );
+    }
+
+    @Override
+    @SuppressWarnings( "unchecked" )
+    public <V extends FileAttributeView> V getFileAttributeView( Path path, Class<V> type, LinkOption... options )
+    {
+        if ( type != BasicFileAttributeView.class )
+        {
+            return null;
+        }
+        return (V) new BasicFileAttributeView()
+        {
+            @Override
+            public String name()
+            {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException
+            {
+                return checkPath( path ).getFileSystem().getAttributes( checkPath( path ) );
+            }
+
+            @Override
+            public void setTimes( FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime )
+            {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings( "unchecked" )
+    public <A extends BasicFileAttributes> A readAttributes( Path path, Class<A> type, LinkOption... options )
+                    throws IOException
+    {
+        if ( type != BasicFileAttributes.class )
+        {
+            throw new UnsupportedOperationException( "Unsupported attributes " + type );
+        }
+        return (A) checkPath( path ).getFileSystem().getAttributes( checkPath( path ) );
+    }
+
+    @Override
+    public Map<String, Object> readAttributes( Path path, String attributes, LinkOption... options ) throws IOException
+    {
+        int colon = attributes.indexOf( ':' );
+        if ( colon >= 0 && ! "basic".equals( attributes.substring( 0, colon ) ) )
+        {
+            throw new UnsupportedOperationException( "Unsupported attribute view " + attributes );
+        }
+
+        Map<String, Object> all =
+                        ( (ExploderFileAttributes) readAttributes( path, BasicFileAttributes.class ) ).toMap();
+        Map<String, Object> result = new HashMap<>();
+
+        for ( String name : attributes.substring( colon + 1 ).split( "," ) )
+        {
+            if ( "*".equals( name ) )
+            {
+                result.putAll( all );
+            }
+            else if ( all.containsKey( name ) )
+            {
+                result.put( name, all.get( name ) );
+            }
+            else
+            {
+                throw new IllegalArgumentException( "Unknown attribute " + name );
+            }
+        }
+        return Collections.unmodifiableMap( result );
+    }
+
+    @Override
+    public void setAttribute( Path path, String attribute, Object value, LinkOption... options )
+    {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    private static Path getArchive( URI uri )
+    {
+        if ( ! SCHEME.equalsIgnoreCase( uri.getScheme() ) )
+        {
+            throw new IllegalArgumentException( "URI scheme is not " + SCHEME + ": " + uri );
+        }
+        String ssp = uri.getRawSchemeSpecificPart();
+        int separator = ssp.indexOf( "!/" );
+
+        return Paths.get( URI.create( separator < 0 ? ssp : ssp.substring( 0, separator ) ) );
+    }
+
+    private static void checkReadOnly( OpenOption... options )
+    {
+        for ( OpenOption option : options )
+        {
+            if ( option != StandardOpenOption.READ && option != LinkOption.NOFOLLOW_LINKS )
+            {
+                throw new ReadOnlyFileSystemException();
+            }
+        }
+    }
+
+    private static ExploderPath checkPath( Path path )
+    {
+        if ( ! ( path instanceof ExploderPath ) )
+        {
+            throw new ProviderMismatchException();
+        }
+        return (ExploderPath) path;
+    }
+}
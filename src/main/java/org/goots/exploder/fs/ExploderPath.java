@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A path within an {@link ExploderFileSystem}. Nested archives are directories so the {@code !/}
+ * separator conventionally used for nested archive paths (e.g. {@code lib/x.war!/WEB-INF}) is
+ * normalised to {@code /}.
+ */
+class ExploderPath implements Path
+{
+    private final ExploderFileSystem fileSystem;
+
+    private final String path;
+
+    private final String[] names;
+
+    ExploderPath( ExploderFileSystem fileSystem, String path )
+    {
+        this.fileSystem = fileSystem;
+        this.path = normalise( path );
+        this.names = this.path.isEmpty() || this.path.equals( "/" ) ?
+                        new String[0] :
+                        ( isAbsolute() ? this.path.substring( 1 ) : this.path ).split( "/" );
+    }
+
+    private static String normalise( String path )
+    {
+        path = path.replace( "!/", "/" ).replace( '\\', '/' );
+        while ( path.contains( "//" ) )
+        {
+            path = path.replace( "//", "/" );
+        }
+        if ( path.length() > 1 && path.endsWith( "/" ) )
+        {
+            path = path.substring( 0, path.length() - 1 );
+        }
+        return path;
+    }
+
+    String[] getNames()
+    {
+        return names;
+    }
+
+    @Override
+    public ExploderFileSystem getFileSystem()
+    {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute()
+    {
+        return path.startsWith( "/" );
+    }
+
+    @Override
+    public Path getRoot()
+    {
+        return isAbsolute() ? new ExploderPath( fileSystem, "/" ) : null;
+    }
+
+    @Override
+    public Path getFileName()
+    {
+        return names.length == 0 ? null : new ExploderPath( fileSystem, names[names.length - 1] );
+    }
+
+    @Override
+    public Path getParent()
+    {
+        if ( names.length == 0 )
+        {
+            return null;
+        }
+        else if ( names.length == 1 )
+        {
+            return getRoot();
+        }
+        return new ExploderPath( fileSystem, join( isAbsolute(), 0, names.length - 1 ) );
+    }
+
+    @Override
+    public int getNameCount()
+    {
+        return names.length;
+    }
+
+    @Override
+    public Path getName( int index )
+    {
+        if ( index < 0 || index >= names.length )
+        {
+            throw new IllegalArgumentException( "Invalid name index " + index );
+        }
+        return new ExploderPath( fileSystem, names[index] );
+    }
+
+    @Override
+    public Path subpath( int beginIndex, int endIndex )
+    {
+        if ( beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex )
+        {
+            throw new IllegalArgumentException( "Invalid subpath " + beginIndex + " to " + endIndex );
+        }
+        return new ExploderPath( fileSystem, join( false, beginIndex, endIndex ) );
+    }
+
+    @Override
+    public boolean startsWith( Path other )
+    {
+        ExploderPath o = checkPath( other );
+
+        return o.isAbsolute() == isAbsolute() && o.names.length <= names.length
+                        && Arrays.asList( names ).subList( 0, o.names.length ).equals( Arrays.asList( o.names ) );
+    }
+
+    @Override
+    public boolean startsWith( String other )
+    {
+        return startsWith( fileSystem.getPath( other ) );
+    }
+
+    @Override
+    public boolean endsWith( Path other )
+    {
+        ExploderPath o = checkPath( other );
+
+        if ( o.isAbsolute() )
+        {
+            return equals( o );
+        }
+        return o.names.length <= names.length && Arrays.asList( names )
+                                                       .subList( names.length - o.names.length, names.length )
+                                                       .equals( Arrays.asList( o.names ) );
+    }
+
+    @Override
+    public boolean endsWith( String other )
+    {
+        return endsWith( fileSystem.getPath( other ) );
+    }
+
+    @Override
+    public Path normalize()
+    {
+        List<String> result = new ArrayList<>();
+
+        for ( String name : names )
+        {
+            if ( name.equals( ".." ) && ! result.isEmpty() && ! result.get( result.size() - 1 ).equals( ".." ) )
+            {
+                result.remove( result.size() - 1 );
+            }
+            else if ( name.equals( ".." ) && isAbsolute() )
+            {
+                // The parent of the root is the root.
+            }
+            else if ( ! name.equals( "." ) )
+            {
+                result.add( name );
+            }
+        }
+        return new ExploderPath( fileSystem, ( isAbsolute() ? "/" : "" ) + String.join( "/", result ) );
+    }
+
+    @Override
+    public Path resolve( Path other )
+    {
+        ExploderPath o = checkPath( other );
+
+        if ( o.isAbsolute() )
+        {
+            return o;
+        }
+        else if ( o.path.isEmpty() )
+        {
+            return this;
+        }
+        else if ( path.isEmpty() )
+        {
+            return o;
+        }
+        return new ExploderPath( fileSystem, path + '/' + o.path );
+    }
+
+    @Override
+    public Path resolve( String other )
+    {
+        return resolve( fileSystem.getPath( other ) );
+    }
+
+    @Override
+    public Path resolveSibling( Path other )
+    {
+        Path parent = getParent();
+
+        return parent == null ? other : parent.resolve( other );
+    }
+
+    @Override
+    public Path resolveSibling( String other )
+    {
+        return resolveSibling( fileSystem.getPath( other ) );
+    }
+
+    @Override
+    public Path relativize( Path other )
+    {
+        ExploderPath o = checkPath( other );
+
+        if ( o.isAbsolute() != isAbsolute() )
+        {
+            throw new IllegalArgumentException( "Unable to relativize " + other + " against " + this );
+        }
+
+        int common = 0;
+        while ( common < names.length && common < o.names.length && names[common].equals( o.names[common] ) )
+        {
+            common++;
+        }
+
+        List<String> result = new ArrayList<>();
+        for ( int i = common; i < names.length; i++ )
+        {
+            result.add( ".." );
+        }
+        result.addAll( Arrays.asList( o.names ).subList( common, o.names.length ) );
+
+        return new ExploderPath( fileSystem, String.join( "/", result ) );
+    }
+
+    @Override
+    public URI toUri()
+    {
+        try
+        {
+            String encoded = new URI( null, null, toAbsolutePath().toString(), null ).getRawPath();
+
+            return new URI( ExploderFileSystemProvider.SCHEME + ':' + fileSystem.getArchive().toUri() + '!' + encoded );
+        }
+        catch ( URISyntaxException e )
+        {
+            throw new IllegalStateException( "Unable to create URI for " + this, e );
+        }
+    }
+
+    @Override
+    public Path toAbsolutePath()
+    {
+        return isAbsolute() ? this : new ExploderPath( fileSystem, '/' + path );
+    }
+
+    @Override
+    public Path toRealPath( LinkOption... options ) throws IOException
+    {
+        Path result = toAbsolutePath().normalize();
+
+        fileSystem.provider().checkAccess( result );
+
+        return result;
+    }
+
+    @Override
+    public File toFile()
+    {
+        throw new UnsupportedOperationException( "Exploder paths do not denote files" );
+    }
+
+    @Override
+    public WatchKey register( WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers )
+    {
+        throw new UnsupportedOperationException( "Watching is not supported" );
+    }
+
+    @Override
+    public WatchKey register( WatchService watcher, WatchEvent.Kind<?>... events )
+    {
+        throw new UnsupportedOperationException( "Watching is not supported" );
+    }
+
+    @Override
+    public Iterator<Path> iterator()
+    {
+        List<Path> result = new ArrayList<>();
+
+        for ( String name : names )
+        {
+            result.add( new ExploderPath( fileSystem, name ) );
+        }
+        return result.iterator();
+    }
+
+    @Override
+    public int compareTo( Path other )
+    {
+        return path.compareTo( checkPath( other ).path );
+    }
+
+    @Override
+    public boolean equals( Object other )
+    {
+        return other instanceof ExploderPath && ( (ExploderPath) other ).fileSystem == fileSystem
+                        && ( (ExploderPath) other ).path.equals( path );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return path;
+    }
+
+    private String join( boolean absolute, int begin, int end )
+    {
+        return ( absolute ? "/" : "" ) + String.join( "/", Arrays.asList( names ).subList( begin, end ) );
+    }
+
+    private ExploderPath checkPath( Path other )
+    {
+        if ( ! ( other instanceof ExploderPath ) )
+        {
+            throw new ProviderMismatchException();
+        }
+        return (ExploderPath) other;
+    }
+}
@@ -0,0 +1,566 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.fs;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.goots.exploder.FileHandler;
+import org.goots.exploder.types.ArchiveFileType;
+import org.goots.exploder.types.CompressedFileType;
+import org.goots.exploder.types.FileType;
+import org.goots.exploder.types.SevenZFileType;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The listing of an archive, held either on disk or (for nested archives) in memory or a temporary file, with access to
+ * the content of its entries. Zip and 7z archives are read randomly ; other formats (including
+ * compressed archives such as {@code .tar.gz}) are rescanned from the start for each entry opened.
+ */
+abstract class NestedArchive implements Closeable
+{
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private final Map<String, Set<String>> children = new HashMap<>();
+
+    final Source source;
+
+    private int readers;
+
+    private boolean released;
+
+    private boolean closed;
+
+    NestedArchive( Source source )
+    {
+        this.source = source;
+        entries.put( "", new Entry( "", source.size(), source.lastModified(), true ) );
+    }
+
+    /**
+     * Opens the archive, returning null if the name does not denote a supported archive.
+     *
+     * @param fsh the file handler.
+     * @param name the archive name.
+     * @param source the archive content.
+     * @param spillSize the size above which content read up front is written to a temporary file.
+     * @return the archive or null.
+     * @throws IOException if an error occurs.
+     */
+    static NestedArchive open( FileHandler fsh, String name, Source source, int spillSize ) throws IOException
+    {
+        FileType type = fsh.getType( new File( name ) );
+        CompressedFileType compressor = null;
+
+        if ( type instanceof CompressedFileType )
+        {
+            compressor = (CompressedFileType) type;
+            type = fsh.getType( new File( type.getUncompressedFilename( new File( name ) ) ) );
+        }
+
+        try
+        {
+            if ( compressor == null && type instanceof SevenZFileType )
+            {
+                return new SevenZArchive( source, spillSize );
+            }
+            else if ( compressor == null && ( ArchiveStreamFactory.ZIP.equals( type.getTypename() )
+                            || ArchiveStreamFactory.JAR.equals( type.getTypename() ) ) )
+            {
+                return new ZipArchive( source );
+            }
+            else if ( type instanceof ArchiveFileType && ( (ArchiveFileType) type ).isStreamable() )
+            {
+                return new StreamArchive( source, compressor, (ArchiveFileType) type );
+            }
+        }
+        catch ( ArchiveException | CompressorException e )
+        {
+            throw new IOException( "Unable to read archive " + name, e );
+        }
+        return null;
+    }
+
+    /**
+     * @param fsh the file handler.
+     * @param name the file name.
+     * @return whether the file would be opened as an archive and so presented as a directory.
+     */
+    static boolean isArchive( FileHandler fsh, String name )
+    {
+        FileType type = fsh.getType( new File( name ) );
+
+        if ( type instanceof CompressedFileType )
+        {
+            type = fsh.getType( new File( type.getUncompressedFilename( new File( name ) ) ) );
+
+            return type instanceof ArchiveFileType && ( (ArchiveFileType) type ).isStreamable();
+        }
+        return type.isArchive();
+    }
+
+    /**
+     * @param name the normalised entry name ("" for the archive root).
+     * @return the entry or null if there is none.
+     */
+    Entry getEntry( String name )
+    {
+        return entries.get( name );
+    }
+
+    /**
+     * @param directory the normalised directory name.
+     * @return the names of the immediate children of the directory.
+     */
+    Set<String> list( String directory )
+    {
+        Set<String> result = children.get( directory );
+
+        return result == null ? Collections.emptySet() : result;
+    }
+
+    abstract InputStream open( Entry entry ) throws IOException;
+
+    /**
+     * Opens the content of the entry, tracking the stream so that a released archive is only closed
+     * once all its streams have been closed.
+     *
+     * @param entry the entry.
+     * @return the content or null if the archive has been released and closed.
+     * @throws IOException if an error occurs.
+     */
+    final synchronized InputStream read( Entry entry ) throws IOException
+    {
+        if ( closed )
+        {
+            return null;
+        }
+        InputStream result = new FilterInputStream( open( entry ) )
+        {
+            private boolean open = true;
+
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    if ( open )
+                    {
+                        open = false;
+                        readerClosed();
+                    }
+                }
+            }
+        };
+        readers++;
+        return result;
+    }
+
+    /**
+     * Closes the archive once no streams opened by {@link #read(Entry)} remain open.
+     *
+     * @throws IOException if an error occurs.
+     */
+    final synchronized void release() throws IOException
+    {
+        released = true;
+        if ( readers == 0 && ! closed )
+        {
+            closed = true;
+            try
+            {
+                close();
+            }
+            finally
+            {
+                source.delete();
+            }
+        }
+    }
+
+    private synchronized void readerClosed() throws IOException
+    {
+        readers--;
+        if ( released )
+        {
+            release();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+    }
+
+    void add( String name, long size, Date lastModified, boolean directory )
+    {
+        name = normalise( name );
+        if ( name.isEmpty() )
+        {
+            return;
+        }
+        long time = lastModified == null ? source.lastModified() : lastModified.getTime();
+        entries.put( name, new Entry( name, size, time, directory ) );
+
+        // Register the entry with its parent, creating any parent directories not listed by the archive.
+        while ( ! name.isEmpty() )
+        {
+            int slash = name.lastIndexOf( '/' );
+            String parent = slash < 0 ? "" : name.substring( 0, slash );
+
+            children.computeIfAbsent( parent, k -> new TreeSet<>() ).add( name.substring( slash + 1 ) );
+            if ( entries.containsKey( parent ) )
+            {
+                break;
+            }
+            entries.put( parent, new Entry( parent, 0, time, true ) );
+            name = parent;
+        }
+    }
+
+    static String normalise( String name )
+    {
+        name = name.replace( '\\', '/' );
+        while ( name.startsWith( "./" ) || name.startsWith( "/" ) )
+        {
+            name = name.substring( name.indexOf( '/' ) + 1 );
+        }
+        while ( name.endsWith( "/" ) )
+        {
+            name = name.substring( 0, name.length() - 1 );
+        }
+        return name;
+    }
+
+    static final class Entry
+    {
+        final String name;
+
+        final long size;
+
+        final long lastModified;
+
+        final boolean directory;
+
+        Entry( String name, long size, long lastModified, boolean directory )
+        {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * The content of an archive, either a file or a nested archive decoded into memory or, if too large, a
+     * temporary file.
+     */
+    static final class Source
+    {
+        private final Path path;
+
+        private final byte[] content;
+
+        private final long lastModified;
+
+        private final boolean temporary;
+
+        private Source( Path path, byte[] content, long lastModified, boolean temporary )
+        {
+            this.path = path;
+            this.content = content;
+            this.lastModified = lastModified;
+            this.temporary = temporary;
+        }
+
+        static Source of( Path path ) throws IOException
+        {
+            return new Source( path, null, Files.getLastModifiedTime( path ).toMillis(), false );
+        }
+
+        static Source of( byte[] content, long lastModified )
+        {
+            return new Source( null, content, lastModified, false );
+        }
+
+        /**
+         * @param content the closed output the nested archive was decoded to.
+         * @param lastModified the time the archive was last modified.
+         * @return the source, which owns any temporary file written.
+         */
+        static Source of( DeferredFileOutputStream content, long lastModified )
+        {
+            return content.isInMemory() ? of( content.getData(), lastModified )
+                            : new Source( content.getFile().toPath(), null, lastModified, true );
+        }
+
+        /**
+         * Deletes the temporary file holding the content, if any.
+         */
+        void delete()
+        {
+            if ( temporary )
+            {
+                try
+                {
+                    Files.deleteIfExists( path );
+                }
+                catch ( IOException e )
+                {
+                    path.toFile().deleteOnExit();
+                }
+            }
+        }
+
+        InputStream newInputStream() throws IOException
+        {
+            return path == null ? new ByteArrayInputStream( content ) : Files.newInputStream( path );
+        }
+
+        SeekableByteChannel newChannel() throws IOException
+        {
+            return path == null ? new SeekableInMemoryByteChannel( content ) : Files.newByteChannel( path );
+        }
+
+        long size()
+        {
+            try
+            {
+                return path == null ? content.length : Files.size( path );
+            }
+            catch ( IOException e )
+            {
+                return 0;
+            }
+        }
+
+        long lastModified()
+        {
+            return lastModified;
+        }
+
+        /**
+         * @return the number of bytes held in memory.
+         */
+        long footprint()
+        {
+            return content == null ? 0 : content.length;
+        }
+    }
+
+    private static class ZipArchive extends NestedArchive
+    {
+        private final ZipFile zipFile;
+
+        ZipArchive( Source source ) throws IOException
+        {
+            super( source );
+            zipFile = new ZipFile( source.newChannel() );
+
+            for ( ZipArchiveEntry entry : Collections.list( zipFile.getEntries() ) )
+            {
+                add( entry.getName(), entry.getSize(), entry.getLastModifiedDate(), entry.isDirectory() );
+            }
+        }
+
+        @Override
+        InputStream open( Entry entry ) throws IOException
+        {
+            for ( ZipArchiveEntry e : zipFile.getEntries( entry.name ) )
+            {
+                return getInputStream( e );
+            }
+            // The name may have been normalised from that held by the archive.
+            for ( ZipArchiveEntry e : Collections.list( zipFile.getEntries() ) )
+            {
+                if ( normalise( e.getName() ).equals( entry.name ) )
+                {
+                    return getInputStream( e );
+                }
+            }
+            throw new IOException( "Unable to find " + entry.name );
+        }
+
+        private InputStream getInputStream( ZipArchiveEntry entry ) throws IOException
+        {
+            if ( ! zipFile.canReadEntryData( entry ) )
+            {
+                throw new IOException( "Unable to read data entry for " + entry.getName() );
+            }
+            return zipFile.getInputStream( entry );
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            zipFile.close();
+        }
+    }
+
+    private static class SevenZArchive extends NestedArchive
+    {
+        private final SevenZFile sevenZFile;
+
+        private final int spillSize;
+
+        SevenZArchive( Source source, int spillSize ) throws IOException
+        {
+            super( source );
+            this.spillSize = spillSize;
+            sevenZFile = new SevenZFile( source.newChannel() );
+
+            for ( SevenZArchiveEntry entry : sevenZFile.getEntries() )
+            {
+                add( entry.getName(), entry.getSize(), entry.getHasLastModifiedDate() ? entry.getLastModifiedDate() : null,
+                     entry.isDirectory() );
+            }
+        }
+
+        @Override
+        synchronized InputStream open( Entry entry ) throws IOException
+        {
+            for ( SevenZArchiveEntry e : sevenZFile.getEntries() )
+            {
+                if ( normalise( e.getName() ).equals( entry.name ) )
+                {
+                    // SevenZFile can only decode one entry at a time so the content is read up front, spilling
+                    // to a temporary file (removed once the stream is closed) as for nested archives.
+                    DeferredFileOutputStream content = new DeferredFileOutputStream( spillSize, "exploder-", ".entry", null );
+                    try ( InputStream input = sevenZFile.getInputStream( e );
+                          OutputStream output = content )
+                    {
+                        IOUtils.copy( input, output );
+                    }
+                    catch ( IOException ex )
+                    {
+                        if ( ! content.isInMemory() )
+                        {
+                            Files.deleteIfExists( content.getFile().toPath() );
+                        }
+                        throw ex;
+                    }
+                    return content.isInMemory() ? new ByteArrayInputStream( content.getData() )
+                                    : Files.newInputStream( content.getFile().toPath(), StandardOpenOption.DELETE_ON_CLOSE );
+                }
+            }
+            throw new IOException( "Unable to find " + entry.name );
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            sevenZFile.close();
+        }
+    }
+
+    private static class StreamArchive extends NestedArchive
+    {
+        private final CompressedFileType compressor;
+
+        private final ArchiveFileType type;
+
+        StreamArchive( Source source, CompressedFileType compressor, ArchiveFileType type )
+                        throws IOException, ArchiveException, CompressorException
+        {
+            super( source );
+            this.compressor = compressor;
+            this.type = type;
+
+            try ( ArchiveInputStream input = newStream() )
+            {
+                ArchiveEntry entry;
+                while ( ( entry = input.getNextEntry() ) != null )
+                {
+                    add( entry.getName(), entry.getSize(), entry.getLastModifiedDate(), entry.isDirectory() );
+                }
+            }
+        }
+
+        private ArchiveInputStream newStream() throws IOException, ArchiveException, CompressorException
+        {
+            InputStream input = source.newInputStream();
+
+            return type.getStream( compressor == null ? input : compressor.getStream( input ) );
+        }
+
+        @Override
+        InputStream open( Entry entry ) throws IOException
+        {
+            ArchiveInputStream input;
+            try
+            {
+                input = newStream();
+            }
+            catch ( ArchiveException | CompressorException e )
+            {
+                throw new IOException( "Unable to read " + entry.name, e );
+            }
+
+            boolean found = false;
+            try
+            {
+                ArchiveEntry e;
+                while ( ( e = input.getNextEntry() ) != null )
+                {
+                    if ( normalise( e.getName() ).equals( entry.name ) )
+                    {
+                        // Reading the archive stream returns the content of the current entry.
+                        found = true;
+                        return input;
+                    }
+                }
+            }
+            finally
+            {
+                if ( ! found )
+                {
+                    input.close();
+                }
+            }
+            throw new IOException( "Unable to find " + entry.name );
+        }
+    }
+}
@@ -22,6 +22,8 @@ import java.io.File;
 public class ARFileType
                 extends ArchiveFileType
 {
+    private static final byte[] MAGIC = { (byte) 0x21, (byte) 0x3c, (byte) 0x61, (byte) 0x72, (byte) 0x63, (byte) 0x68, (byte) 0x3e, (byte) 0x0a };
+
     @Override
     public String getUncompressedFilename( File source )
     {
@@ -33,4 +35,10 @@ public class ARFileType
     {
         return ArchiveStreamFactory.AR;
     }
+
+    @Override
+    public byte[] getMagic()
+    {
+        return MAGIC;
+    }
 }
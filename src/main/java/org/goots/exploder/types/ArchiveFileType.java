@@ -16,6 +16,7 @@
 package org.goots.exploder.types;
 
 import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.goots.exploder.InternalException;
 
@@ -38,6 +39,27 @@ public abstract class ArchiveFileType
         return (T) archiveStreamFactory.createArchiveInputStream ( new BufferedInputStream( new FileInputStream( source)) );
     }
 
+    /**
+     * Returns a stream unarchiving the supplied stream (e.g. the output of a decompressor) rather than
+     * a file, so that compressed archives may be unpacked in a single pass.
+     *
+     * @param source the archive content.
+     * @return the unarchiving stream.
+     * @throws ArchiveException if an error occurs.
+     */
+    public ArchiveInputStream getStream( InputStream source ) throws ArchiveException
+    {
+        return archiveStreamFactory.createArchiveInputStream( new BufferedInputStream( source ) );
+    }
+
+    /**
+     * @return whether this archive may be read sequentially via {@link #getStream(InputStream)}.
+     */
+    public boolean isStreamable()
+    {
+        return true;
+    }
+
     @Override
     public String toString ()
     {
@@ -19,10 +19,17 @@ import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.commons.compress.compressors.bzip2.BZip2Utils;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 public class BZIP2FileType
                 extends CompressedFileType
 {
+    private static final Set<String> SUFFIXES = new HashSet<>( Arrays.asList( "bz2", "tbz2", "tbz", "bz" ) );
+
+    private static final byte[] MAGIC = { (byte) 0x42, (byte) 0x5a, (byte) 0x68 };
+
     @Override
     public String getUncompressedFilename( File source )
     {
@@ -34,4 +41,22 @@ public class BZIP2FileType
     {
         return CompressorStreamFactory.BZIP2;
     }
+
+    @Override
+    public Set<String> getSuffixes()
+    {
+        return SUFFIXES;
+    }
+
+    @Override
+    public boolean isSupportedFilename( String filename )
+    {
+        return BZip2Utils.isCompressedFilename( filename );
+    }
+
+    @Override
+    public byte[] getMagic()
+    {
+        return MAGIC;
+    }
 }
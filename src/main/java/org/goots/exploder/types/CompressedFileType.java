@@ -16,6 +16,7 @@
 package org.goots.exploder.types;
 
 import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorInputStream;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
 
 import java.io.BufferedInputStream;
@@ -32,7 +33,34 @@ public abstract class CompressedFileType implements FileType
     @SuppressWarnings({"unchecked"})
     public <T extends InputStream> T getStream( File source) throws FileNotFoundException, CompressorException
     {
-        return (T)compressorStreamFactory.createCompressorInputStream( new BufferedInputStream( new FileInputStream( source)) );
+        return (T)compressorStreamFactory.createCompressorInputStream( getTypename(), new BufferedInputStream( new FileInputStream( source)) );
+    }
+
+    /**
+     * Returns a stream decompressing the supplied stream rather than a file.
+     *
+     * @param source the compressed content.
+     * @return the decompressing stream.
+     * @throws CompressorException if an error occurs.
+     */
+    public CompressorInputStream getStream( InputStream source ) throws CompressorException
+    {
+        return compressorStreamFactory.createCompressorInputStream( getTypename(), new BufferedInputStream( source ) );
+    }
+
+    /**
+     * Returns a stream decompressing the supplied stream whose decoder fails, rather than allocating, if
+     * it requires more than the limit. This applies to the LZMA, XZ and Z formats.
+     *
+     * @param source the compressed content.
+     * @param memoryLimitInKb the memory limit.
+     * @return the decompressing stream.
+     * @throws CompressorException if an error occurs.
+     */
+    public CompressorInputStream getStream( InputStream source, int memoryLimitInKb ) throws CompressorException
+    {
+        return new CompressorStreamFactory( false, memoryLimitInKb )
+                        .createCompressorInputStream( getTypename(), new BufferedInputStream( source ) );
     }
 
     @Override
@@ -22,7 +22,15 @@ import org.goots.exploder.InternalException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
 
+/**
+ * Represents a supported archive or compression format. Implementations are discovered through
+ * {@link java.util.ServiceLoader} so additional formats may be supplied by registering them in
+ * {@code META-INF/services/org.goots.exploder.types.FileType}.
+ */
 public interface FileType
 {
     <T extends InputStream> T getStream( File source)
@@ -35,4 +43,49 @@ public interface FileType
     boolean isCompressed();
 
     String getTypename ();
+
+    /**
+     * @return the filename suffixes (without the leading period) handled by this type.
+     */
+    default Set<String> getSuffixes()
+    {
+        return Collections.singleton( getTypename() );
+    }
+
+    /**
+     * @param filename the name of the file.
+     * @return whether the filename denotes this type.
+     */
+    default boolean isSupportedFilename( String filename )
+    {
+        String lower = filename.toLowerCase( Locale.ENGLISH );
+
+        return getSuffixes().stream().anyMatch( s -> lower.endsWith( '.' + s ) );
+    }
+
+    /**
+     * @return the leading magic bytes of this type or null if it does not have any.
+     */
+    default byte[] getMagic()
+    {
+        return null;
+    }
+
+    /**
+     * Where several types support a filename those with a higher priority are considered first.
+     *
+     * @return the priority of this type.
+     */
+    default int getPriority()
+    {
+        return 0;
+    }
+
+    /**
+     * @return whether this type is usable e.g. any optional libraries it requires are present.
+     */
+    default boolean isAvailable()
+    {
+        return true;
+    }
 }
@@ -15,13 +15,23 @@
  */
 package org.goots.exploder.types;
 
+import org.apache.commons.compress.compressors.CompressorInputStream;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.commons.compress.compressors.gzip.GzipUtils;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 public class GZIPFileType extends CompressedFileType
 {
+    private static final Set<String> SUFFIXES = new HashSet<>( Arrays.asList( "gz", "tgz", "taz", "svgz", "cpgz", "wmz", "emz", "z" ) );
+
+    private static final byte[] MAGIC = { (byte) 0x1f, (byte) 0x8b };
+
     @Override
     public String getUncompressedFilename( File source )
     {
@@ -33,4 +43,35 @@ public class GZIPFileType extends CompressedFileType
     {
         return CompressorStreamFactory.GZIP;
     }
+
+    @Override
+    public Set<String> getSuffixes()
+    {
+        return SUFFIXES;
+    }
+
+    @Override
+    public boolean isSupportedFilename( String filename )
+    {
+        return GzipUtils.isCompressedFilename( filename );
+    }
+
+    @Override
+    public byte[] getMagic()
+    {
+        return MAGIC;
+    }
+
+    /**
+     * Returns a stream decoding the source with the JDK {@link java.util.zip.Inflater} rather than
+     * commons-compress.
+     *
+     * @param source the compressed file.
+     * @return the decompressing stream.
+     * @throws IOException if an error occurs.
+     */
+    public CompressorInputStream getInflaterStream( File source ) throws IOException
+    {
+        return new InflaterGzipInputStream( new FileInputStream( source ) );
+    }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.types;
+
+import org.apache.commons.compress.compressors.CompressorInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes (possibly multi-member) gzip data by driving the JDK {@link Inflater}, which is backed by
+ * the platform zlib, directly from a large input buffer. This avoids the small internal buffers and
+ * per-byte header handling of the commons-compress implementation.
+ */
+public class InflaterGzipInputStream
+                extends CompressorInputStream
+{
+    /**
+     * The input is read into a heap array rather than a direct buffer: although the ByteBuffer methods of
+     * the Inflater are available since Java 11, an InputStream can only be read into an array, so a direct
+     * buffer would add a copy rather than remove one.
+     */
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final int FHCRC = 0x02;
+
+    private static final int FEXTRA = 0x04;
+
+    private static final int FNAME = 0x08;
+
+    private static final int FCOMMENT = 0x10;
+
+    private final InputStream in;
+
+    private final MemberListener listener;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private final Inflater inflater = new Inflater( true );
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] single = new byte[1];
+
+    private long bufferOffset;
+
+    private int position;
+
+    private int limit;
+
+    private long memberSize;
+
+    private boolean eof;
+
+    public InflaterGzipInputStream( InputStream in ) throws IOException
+    {
+        this( in, null );
+    }
+
+    /**
+     * @param in the compressed input.
+     * @param listener optional listener notified at the start of each gzip member.
+     * @throws IOException if an error occurs.
+     */
+    public InflaterGzipInputStream( InputStream in, MemberListener listener ) throws IOException
+    {
+        this.in = in;
+        this.listener = listener;
+
+        if ( ! readHeader() )
+        {
+            throw new IOException( "Input is not in the gzip format" );
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        return read( single, 0, 1 ) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException
+    {
+        if ( len == 0 )
+        {
+            return 0;
+        }
+        while ( ! eof )
+        {
+            int n;
+            try
+            {
+                if ( inflater.needsInput() )
+                {
+                    if ( position == limit && ! fill() )
+                    {
+                        throw new EOFException( "Unexpected end of gzip input" );
+                    }
+                    inflater.setInput( buffer, position, limit - position );
+                }
+                n = inflater.inflate( b, off, len );
+            }
+            catch ( DataFormatException e )
+            {
+                throw new IOException( "Corrupt gzip input", e );
+            }
+            position = limit - inflater.getRemaining();
+
+            if ( n > 0 )
+            {
+                crc.update( b, off, n );
+                memberSize += n;
+                count( n );
+                return n;
+            }
+            if ( inflater.finished() )
+            {
+                readTrailer();
+                // Concatenated members are decoded as a single stream ; anything else trailing is ignored.
+                eof = ! readHeader();
+            }
+            else if ( inflater.needsDictionary() )
+            {
+                throw new IOException( "Corrupt gzip input" );
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        inflater.end();
+        in.close();
+    }
+
+    private boolean readHeader() throws IOException
+    {
+        if ( position == limit && ! fill() )
+        {
+            return false;
+        }
+        long start = bufferOffset + position;
+        if ( readByte() != 0x1f || readByte() != 0x8b )
+        {
+            return false;
+        }
+        if ( readByte() != 8 )
+        {
+            throw new IOException( "Unsupported gzip compression method" );
+        }
+        int flags = readByte();
+        // Modification time, extra flags and operating system.
+        skipBytes( 6 );
+        if ( ( flags & FEXTRA ) != 0 )
+        {
+            skipBytes( readByte() | readByte() << 8 );
+        }
+        if ( ( flags & FNAME ) != 0 )
+        {
+            skipString();
+        }
+        if ( ( flags & FCOMMENT ) != 0 )
+        {
+            skipString();
+        }
+        if ( ( flags & FHCRC ) != 0 )
+        {
+            skipBytes( 2 );
+        }
+        inflater.reset();
+        crc.reset();
+        memberSize = 0;
+
+        if ( listener != null )
+        {
+            listener.memberStarted( start, getBytesRead() );
+        }
+        return true;
+    }
+
+    private void readTrailer() throws IOException
+    {
+        long expectedCrc = readInt();
+        long expectedSize = readInt();
+
+        if ( expectedCrc != crc.getValue() )
+        {
+            throw new IOException( "Gzip member CRC mismatch" );
+        }
+        if ( expectedSize != ( memberSize & 0xffffffffL ) )
+        {
+            throw new IOException( "Gzip member size mismatch" );
+        }
+    }
+
+    private boolean fill() throws IOException
+    {
+        int n = in.read( buffer, 0, buffer.length );
+        if ( n <= 0 )
+        {
+            return false;
+        }
+        bufferOffset += limit;
+        position = 0;
+        limit = n;
+
+        return true;
+    }
+
+    private int readByte() throws IOException
+    {
+        if ( position == limit && ! fill() )
+        {
+            throw new EOFException( "Unexpected end of gzip input" );
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    private long readInt() throws IOException
+    {
+        return readByte() | readByte() << 8 | readByte() << 16 | (long) readByte() << 24;
+    }
+
+    private void skipBytes( int n ) throws IOException
+    {
+        for ( int i = 0; i < n; i++ )
+        {
+            readByte();
+        }
+    }
+
+    private void skipString() throws IOException
+    {
+        //noinspection StatementWithEmptyBody
+        while ( readByte() != 0 )
+        {
+        }
+    }
+
+    /**
+     * Notified at the start of each gzip member. As each member is an independent deflate stream
+     * decoding may later be restarted at any of these points.
+     */
+    @FunctionalInterface
+    public interface MemberListener
+    {
+        /**
+         * @param compressedOffset the offset of the member header within the compressed input.
+         * @param uncompressedOffset the offset of the member's data within the decompressed output.
+         */
+        void memberStarted( long compressedOffset, long uncompressedOffset );
+    }
+}
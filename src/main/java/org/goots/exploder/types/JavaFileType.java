@@ -18,10 +18,17 @@ package org.goots.exploder.types;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 public class JavaFileType
                 extends ArchiveFileType
 {
+    private static final Set<String> SUFFIXES = new HashSet<>( Arrays.asList( "jar", "war", "ear" ) );
+
+    private static final byte[] MAGIC = { (byte) 0x50, (byte) 0x4b };
+
     @Override
     public String getUncompressedFilename( File source )
     {
@@ -33,4 +40,16 @@ public class JavaFileType
     {
         return ArchiveStreamFactory.JAR;
     }
+
+    @Override
+    public Set<String> getSuffixes()
+    {
+        return SUFFIXES;
+    }
+
+    @Override
+    public byte[] getMagic()
+    {
+        return MAGIC;
+    }
 }
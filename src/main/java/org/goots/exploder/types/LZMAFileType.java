@@ -19,10 +19,14 @@ import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.commons.compress.compressors.lzma.LZMAUtils;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.Set;
 
 public class LZMAFileType
                 extends CompressedFileType
 {
+    private static final Set<String> SUFFIXES = Collections.singleton( "lzma" );
+
     @Override
     public String getUncompressedFilename( File source )
     {
@@ -34,4 +38,22 @@ public class LZMAFileType
     {
         return CompressorStreamFactory.LZMA;
     }
+
+    @Override
+    public Set<String> getSuffixes()
+    {
+        return SUFFIXES;
+    }
+
+    @Override
+    public boolean isSupportedFilename( String filename )
+    {
+        return LZMAUtils.isCompressedFilename( filename );
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        return LZMAUtils.isLZMACompressionAvailable();
+    }
 }
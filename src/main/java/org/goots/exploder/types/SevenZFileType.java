@@ -18,15 +18,23 @@ package org.goots.exploder.types;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+import org.apache.commons.compress.archivers.sevenz.SevenZFileOptions;
 import org.goots.exploder.InternalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
 
 public class SevenZFileType
                 extends ArchiveFileType
 {
+    private static final byte[] MAGIC = { (byte) 0x37, (byte) 0x7a, (byte) 0xbc, (byte) 0xaf, (byte) 0x27, (byte) 0x1c };
+
+    private static final Logger logger = LoggerFactory.getLogger( SevenZFileType.class );
+
     @Override
     public String getUncompressedFilename( File source )
     {
@@ -39,6 +47,19 @@ public class SevenZFileType
         return ArchiveStreamFactory.SEVEN_Z;
     }
 
+    @Override
+    public byte[] getMagic()
+    {
+        return MAGIC;
+    }
+
+    @Override
+    public boolean isStreamable()
+    {
+        // The 7z header is at the end of the file.
+        return false;
+    }
+
     @Override
     @SuppressWarnings({"unchecked"})
     public <T extends InputStream> T getStream( File source) throws InternalException
@@ -53,6 +74,70 @@ public class SevenZFileType
         }
     }
 
+    /**
+     * Returns the archive as a stream whose decoders fail, rather than allocating, if they require more
+     * than the limit.
+     *
+     * @param source the archive.
+     * @param memoryLimitInKb the memory limit.
+     * @return the stream.
+     * @throws InternalException if an error occurs.
+     */
+    public ArchiveInputStream getStream( File source, int memoryLimitInKb ) throws InternalException
+    {
+        try
+        {
+            return new SevenZInputStream( new SevenZFile( source, getOptions( memoryLimitInKb ) ) );
+        }
+        catch ( IOException e )
+        {
+            throw new InternalException( "Exception unarchiving SeverZFile", e );
+        }
+    }
+
+    /**
+     * @param memoryLimitInKb the memory limit.
+     * @return the options limiting the memory of the decoders.
+     */
+    public static SevenZFileOptions getOptions( int memoryLimitInKb )
+    {
+        return SevenZFileOptions.builder().withMaxMemoryLimitInKb( memoryLimitInKb ).build();
+    }
+
+    /**
+     * Returns the folder (the unit of compression, holding all the entries of a solid block) of each
+     * entry. Commons Compress does not expose folders, and the public entry order does not show where
+     * one folder ends and the next begins, so they are read from its stream map. This depends upon the
+     * internals of the commons-compress version pinned by the build.
+     *
+     * @param file the archive.
+     * @return the folder of each entry, in the order of {@link SevenZFile#getEntries()} and -1 for entries
+     * without content, or null if the folders could not be read.
+     */
+    public static int[] getFolderIndices( SevenZFile file )
+    {
+        try
+        {
+            Object archive = readField( file, "archive" );
+            Object streamMap = readField( archive, "streamMap" );
+
+            return ( (int[]) readField( streamMap, "fileFolderIndex" ) ).clone();
+        }
+        catch ( ReflectiveOperationException | RuntimeException e )
+        {
+            logger.warn( "Unable to read the folders of {} ; extracting with a single reader", file, e );
+            return null;
+        }
+    }
+
+    private static Object readField( Object source, String name ) throws ReflectiveOperationException
+    {
+        Field field = source.getClass().getDeclaredField( name );
+        field.setAccessible( true );
+
+        return field.get( source );
+    }
+
     /**
      * Wraps a SevenZFile to make it usable as an ArchiveInputStream.
      */
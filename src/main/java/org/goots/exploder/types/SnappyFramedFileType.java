@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.types;
+
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.FileNameUtil;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Snappy framing format compressed files.
+ */
+public class SnappyFramedFileType
+                extends CompressedFileType
+{
+    private static final Set<String> SUFFIXES = Collections.singleton( "sz" );
+
+    private static final byte[] MAGIC = { (byte) 0xff, (byte) 0x06, (byte) 0x00, (byte) 0x00, (byte) 0x73, (byte) 0x4e,
+                                          (byte) 0x61, (byte) 0x50, (byte) 0x70, (byte) 0x59 };
+
+    private static final FileNameUtil FILE_NAME_UTIL = new FileNameUtil( Collections.singletonMap( ".sz", "" ), ".sz" );
+
+    @Override
+    public String getUncompressedFilename( File source )
+    {
+        return FILE_NAME_UTIL.getUncompressedFilename( source.getPath() );
+    }
+
+    @Override
+    public String getTypename()
+    {
+        return CompressorStreamFactory.SNAPPY_FRAMED;
+    }
+
+    @Override
+    public Set<String> getSuffixes()
+    {
+        return SUFFIXES;
+    }
+
+    @Override
+    public byte[] getMagic()
+    {
+        return MAGIC;
+    }
+}
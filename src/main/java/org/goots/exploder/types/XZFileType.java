@@ -19,10 +19,17 @@ import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.apache.commons.compress.compressors.xz.XZUtils;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 public class XZFileType
                 extends CompressedFileType
 {
+    private static final Set<String> SUFFIXES = new HashSet<>( Arrays.asList( "xz", "txz" ) );
+
+    private static final byte[] MAGIC = { (byte) 0xfd, (byte) 0x37, (byte) 0x7a, (byte) 0x58, (byte) 0x5a, (byte) 0x00 };
+
     @Override
     public String getUncompressedFilename( File source )
     {
@@ -34,4 +41,28 @@ public class XZFileType
     {
         return CompressorStreamFactory.XZ;
     }
+
+    @Override
+    public Set<String> getSuffixes()
+    {
+        return SUFFIXES;
+    }
+
+    @Override
+    public boolean isSupportedFilename( String filename )
+    {
+        return XZUtils.isCompressedFilename( filename );
+    }
+
+    @Override
+    public byte[] getMagic()
+    {
+        return MAGIC;
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        return XZUtils.isXZCompressionAvailable();
+    }
 }
@@ -22,6 +22,8 @@ import java.io.File;
 public class ZipFileType
                 extends ArchiveFileType
 {
+    private static final byte[] MAGIC = { (byte) 0x50, (byte) 0x4b };
+
     @Override
     public String getUncompressedFilename( File source )
     {
@@ -33,4 +35,10 @@ public class ZipFileType
     {
         return ArchiveStreamFactory.ZIP;
     }
+
+    @Override
+    public byte[] getMagic()
+    {
+        return MAGIC;
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.types;
+
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.FileNameUtil;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Zstandard compressed files. Requires the optional zstd-jni library.
+ */
+public class ZstdFileType
+                extends CompressedFileType
+{
+    private static final Set<String> SUFFIXES = new HashSet<>( Arrays.asList( "zst", "tzst" ) );
+
+    private static final byte[] MAGIC = { (byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd };
+
+    private static final FileNameUtil FILE_NAME_UTIL;
+
+    static
+    {
+        Map<String, String> uncompressSuffix = new LinkedHashMap<>();
+        uncompressSuffix.put( ".tzst", ".tar" );
+        uncompressSuffix.put( ".zst", "" );
+        FILE_NAME_UTIL = new FileNameUtil( uncompressSuffix, ".zst" );
+    }
+
+    @Override
+    public String getUncompressedFilename( File source )
+    {
+        return FILE_NAME_UTIL.getUncompressedFilename( source.getPath() );
+    }
+
+    @Override
+    public String getTypename()
+    {
+        return CompressorStreamFactory.ZSTANDARD;
+    }
+
+    @Override
+    public Set<String> getSuffixes()
+    {
+        return SUFFIXES;
+    }
+
+    @Override
+    public byte[] getMagic()
+    {
+        return MAGIC;
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        return ZstdUtils.isZstdCompressionAvailable();
+    }
+}
@@ -15,16 +15,67 @@
  */
 package org.goots.exploder;
 
+import org.apache.commons.compress.MemoryLimitException;
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+import org.apache.commons.compress.archivers.sevenz.SevenZOutputFile;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.lang.reflect.FieldUtils;
+import org.goots.exploder.types.SevenZFileType;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.contrib.java.lang.system.SystemOutRule;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ArchivesTest
 {
@@ -86,7 +137,7 @@ public class ArchivesTest
         File target = new File (RESOURCES_DIR, "example.tar.gz" );
         File temporaryFolder = folder.newFolder();
 
-        Exploder u = new Exploder().useTargetDirectory( temporaryFolder );
+        Exploder u = new Exploder().useTargetDirectory( temporaryFolder ).materializeIntermediates();
 
         u.unpack( null, target );
 
@@ -98,4 +149,1150 @@ public class ArchivesTest
         assertTrue( new File ( temporaryFolder, "example.tar" + Exploder.ARCHIVE_UNPACK_SUFFIX).exists() );
         assertTrue ( new File ( temporaryFolder, "example.tar" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/dummy-repo" ).exists() );
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testUnpackTarGZInSinglePass() throws IOException, InternalException
+    {
+        File target = new File (RESOURCES_DIR, "example.tar.gz" );
+        File temporaryFolder = folder.newFolder();
+
+        new Exploder().useTargetDirectory( temporaryFolder ).unpack( null, target );
+
+        assertFalse( new File ( temporaryFolder, "example.tar").exists() );
+        assertTrue ( new File ( temporaryFolder, "example.tar" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/dummy-repo" ).exists() );
+    }
+
+    @Test
+    public void testUnpackResumesFromCheckpoint() throws IOException, InternalException
+    {
+        File target = folder.newFile( "resume.zip" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            for ( String name : new String[] { "a.txt", "b.txt", "c.txt", "d.txt" } )
+            {
+                zip.putArchiveEntry( new ZipArchiveEntry( name ) );
+                zip.write( name.getBytes( StandardCharsets.UTF_8 ) );
+                zip.closeArchiveEntry();
+            }
+        }
+        File temporaryFolder = folder.newFolder();
+        File checkpoint = new File( folder.getRoot(), "resume.checkpoint" );
+        // A directory in place of the third entry fails the unpack part way through the archive.
+        File blocked = new File( temporaryFolder, "c.txt" );
+        assertTrue( blocked.mkdir() );
+
+        try
+        {
+            new Exploder().useTargetDirectory( temporaryFolder ).useCheckpoint( checkpoint ).unpack( target );
+            fail( "Expected failure" );
+        }
+        catch ( InternalException e )
+        {
+            assertTrue( checkpoint.exists() );
+        }
+        Properties state = new Properties();
+        try ( InputStream input = Files.newInputStream( checkpoint.toPath() ) )
+        {
+            state.load( input );
+        }
+        assertTrue( state.getProperty( "progress.resume.zip" ).startsWith( "2," ) );
+        assertFalse( state.containsKey( "complete.resume.zip" ) );
+        assertFalse( new File( temporaryFolder, "d.txt" ).exists() );
+
+        // Modify the extracted entries; as they have already been extracted they should not be overwritten on resume.
+        assertTrue( blocked.delete() );
+        for ( String name : new String[] { "a.txt", "b.txt" } )
+        {
+            FileUtils.writeStringToFile( new File( temporaryFolder, name ), "abcde", StandardCharsets.UTF_8 );
+        }
+
+        new Exploder().useTargetDirectory( temporaryFolder ).useCheckpoint( checkpoint ).unpack( target );
+
+        assertEquals( "abcde", FileUtils.readFileToString( new File( temporaryFolder, "a.txt" ), StandardCharsets.UTF_8 ) );
+        assertEquals( "abcde", FileUtils.readFileToString( new File( temporaryFolder, "b.txt" ), StandardCharsets.UTF_8 ) );
+        assertEquals( "c.txt", FileUtils.readFileToString( new File( temporaryFolder, "c.txt" ), StandardCharsets.UTF_8 ) );
+        assertEquals( "d.txt", FileUtils.readFileToString( new File( temporaryFolder, "d.txt" ), StandardCharsets.UTF_8 ) );
+        assertFalse( checkpoint.exists() );
+    }
+
+    @Test
+    public void testCheckpointRecordsWrittenEntriesInOrder() throws IOException, InternalException
+    {
+        Checkpoint checkpoint = new Checkpoint( new File( folder.getRoot(), "order.checkpoint" ) );
+        Checkpoint.Entries entries = checkpoint.entries( "a.zip" );
+
+        // As by write-behind, the second entry is written before the first.
+        entries.written( 1, 20 );
+        assertEquals( 0, checkpoint.getEntryIndex( "a.zip" ) );
+        entries.written( 0, 10 );
+        assertEquals( 2, checkpoint.getEntryIndex( "a.zip" ) );
+    }
+
+    @Test
+    public void testCheckpointRestoresOnlyRecordedArchives() throws IOException, InternalException
+    {
+        File root = folder.newFolder();
+        File file = new File( folder.getRoot(), "shared.checkpoint" );
+        FileUtils.writeStringToFile( file, "suffix=-previous\ncomplete.lib/x.war=true\n", StandardCharsets.UTF_8 );
+        File recorded = new File( root, "lib/x.war-previous/WEB-INF/lib/y.jar-previous" );
+        File unrelated = new File( root, "other/z.war-previous" );
+        assertTrue( recorded.mkdirs() );
+        assertTrue( unrelated.mkdirs() );
+
+        new Checkpoint( file ).restore( root, true );
+
+        assertTrue( new File( root, "lib/x.war" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/WEB-INF/lib/y.jar"
+                                        + Exploder.ARCHIVE_UNPACK_SUFFIX ).isDirectory() );
+        assertTrue( unrelated.isDirectory() );
+    }
+
+    @Test
+    public void testUnpackSevenZInParallelResumesFromCheckpoint() throws IOException, InternalException
+    {
+        File target = createSevenZ( 8 );
+        File temporaryFolder = folder.newFolder();
+        File checkpoint = new File( folder.getRoot(), "parallel.checkpoint" );
+        // A directory in place of the last entry fails the unpack once the others have been extracted.
+        File blocked = new File( temporaryFolder, "dir/file7.txt" );
+        assertTrue( blocked.mkdirs() );
+
+        try
+        {
+            new Exploder().useTargetDirectory( temporaryFolder ).useCheckpoint( checkpoint ).useThreads( 2 ).unpack( target );
+            fail( "Expected failure" );
+        }
+        catch ( InternalException e )
+        {
+            assertTrue( checkpoint.exists() );
+        }
+        assertTrue( blocked.delete() );
+        File extracted = new File( temporaryFolder, "dir/file0.txt" );
+        FileUtils.writeStringToFile( extracted, "abcdefghi", StandardCharsets.UTF_8 );
+
+        new Exploder().useTargetDirectory( temporaryFolder ).useCheckpoint( checkpoint ).useThreads( 2 ).unpack( target );
+
+        assertEquals( "abcdefghi", FileUtils.readFileToString( extracted, StandardCharsets.UTF_8 ) );
+        assertEquals( "content 7", FileUtils.readFileToString( blocked, StandardCharsets.UTF_8 ) );
+        assertFalse( checkpoint.exists() );
+    }
+
+    @Test
+    public void testUnpackResumesWithJdkInflater() throws IOException, InternalException
+    {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( content ) )
+        {
+            for ( String name : new String[] { "a.txt", "b.txt", "c.txt" } )
+            {
+                zip.putArchiveEntry( new ZipArchiveEntry( name ) );
+                zip.write( name.getBytes( StandardCharsets.UTF_8 ) );
+                zip.closeArchiveEntry();
+            }
+        }
+        File target = folder.newFile( "reordered.zip" );
+        FileUtils.writeByteArrayToFile( target, reverseCentralDirectory( content.toByteArray() ) );
+        File temporaryFolder = folder.newFolder();
+        File checkpoint = new File( folder.getRoot(), "reordered.checkpoint" );
+        // A directory in place of the last entry fails the unpack once the first two have been extracted.
+        File blocked = new File( temporaryFolder, "c.txt" );
+        assertTrue( blocked.mkdir() );
+
+        try
+        {
+            new Exploder().useTargetDirectory( temporaryFolder ).useCheckpoint( checkpoint ).unpack( target );
+            fail( "Expected failure" );
+        }
+        catch ( InternalException e )
+        {
+            assertTrue( checkpoint.exists() );
+        }
+        assertTrue( blocked.delete() );
+        File extracted = new File( temporaryFolder, "a.txt" );
+        FileUtils.writeStringToFile( extracted, "abcde", StandardCharsets.UTF_8 );
+
+        // The entries are resumed in physical, not central directory, order.
+        new Exploder().useTargetDirectory( temporaryFolder ).useCheckpoint( checkpoint ).useJdkInflater().unpack( target );
+
+        assertEquals( "abcde", FileUtils.readFileToString( extracted, StandardCharsets.UTF_8 ) );
+        assertTrue( new File( temporaryFolder, "c.txt" ).exists() );
+    }
+
+    @Test
+    public void testUnpackResumesStoredInPlace() throws IOException, InternalException
+    {
+        byte[] inner = createZip( 3 );
+        File target = folder.newFile( "inplace.zip" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            zip.putArchiveEntry( new ZipArchiveEntry( "a.txt" ) );
+            zip.write( "a.txt".getBytes( StandardCharsets.UTF_8 ) );
+            zip.closeArchiveEntry();
+
+            CRC32 crc = new CRC32();
+            crc.update( inner );
+            ZipArchiveEntry stored = new ZipArchiveEntry( "lib/inner.jar" );
+            stored.setMethod( ZipEntry.STORED );
+            stored.setSize( inner.length );
+            stored.setCrc( crc.getValue() );
+            zip.putArchiveEntry( stored );
+            zip.write( inner );
+            zip.closeArchiveEntry();
+
+            for ( String name : new String[] { "c.txt", "d.txt" } )
+            {
+                zip.putArchiveEntry( new ZipArchiveEntry( name ) );
+                zip.write( name.getBytes( StandardCharsets.UTF_8 ) );
+                zip.closeArchiveEntry();
+            }
+        }
+        File temporaryFolder = folder.newFolder();
+        File checkpoint = new File( folder.getRoot(), "inplace.checkpoint" );
+        // A directory in place of the last entry fails the unpack once the others have been extracted.
+        File blocked = new File( temporaryFolder, "d.txt" );
+        assertTrue( blocked.mkdir() );
+
+        try
+        {
+            new Exploder().useTargetDirectory( temporaryFolder ).useCheckpoint( checkpoint ).readStoredInPlace().unpack( target );
+            fail( "Expected failure" );
+        }
+        catch ( InternalException e )
+        {
+            assertTrue( checkpoint.exists() );
+        }
+        assertTrue( blocked.delete() );
+        File extracted = new File( temporaryFolder, "c.txt" );
+        FileUtils.writeStringToFile( extracted, "abcde", StandardCharsets.UTF_8 );
+
+        // The nested jar counts towards the entry index, as when it is written, so reading it in place may be turned off.
+        new Exploder().useTargetDirectory( temporaryFolder ).useCheckpoint( checkpoint ).unpack( target );
+
+        assertEquals( "abcde", FileUtils.readFileToString( extracted, StandardCharsets.UTF_8 ) );
+        assertEquals( "d.txt", FileUtils.readFileToString( blocked, StandardCharsets.UTF_8 ) );
+        assertTrue( new File( temporaryFolder, "lib/inner.jar" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/dir/file2.txt" ).exists() );
+        assertFalse( checkpoint.exists() );
+    }
+
+    @Test
+    public void testUnpackCancelled() throws InternalException, IllegalAccessException
+    {
+        File target = new File (RESOURCES_DIR, "example.war" );
+        CancellationHandle handle = new CancellationHandle();
+
+        Exploder u = new Exploder().useTemporaryDirectory().useCancellation( handle );
+        File temporaryFolder = (File) FieldUtils.readField( u, "targetDirectory", true );
+
+        try
+        {
+            u.unpack( ( baseDir, file ) -> handle.cancel(), target );
+            fail( "Expected cancellation" );
+        }
+        catch ( CancelledException e )
+        {
+            assertFalse( temporaryFolder.exists() );
+        }
+    }
+
+    @Test( expected = CancelledException.class )
+    public void testUnpackExceedsDeadline() throws InternalException
+    {
+        File target = new File (RESOURCES_DIR, "example.war" );
+
+        new Exploder().useTemporaryDirectory().useTimeout( Duration.ZERO ).unpack( target );
+    }
+
+    @Test
+    public void testUnpackWithJdkInflater() throws IOException, InternalException
+    {
+        File temporaryFolder = folder.newFolder();
+
+        new Exploder().useTargetDirectory( temporaryFolder ).useJdkInflater().unpack( new File( RESOURCES_DIR, "example.tar.gz" ) );
+        new Exploder().useTargetDirectory( temporaryFolder ).useJdkInflater().unpack( new File( RESOURCES_DIR, "example.war" ) );
+
+        assertTrue( new File( temporaryFolder, "example.tar" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/dummy-repo/README" ).exists() );
+        assertTrue( new File( temporaryFolder, "example.jar" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/folder/Exploder.class" ).exists() );
+    }
+
+    @Test
+    public void testUnpackSevenZInParallel() throws IOException, InternalException
+    {
+        File target = createSevenZ( 8 );
+        File temporaryFolder = folder.newFolder();
+
+        new Exploder().useTargetDirectory( temporaryFolder ).useThreads( 3 ).unpack( target );
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            assertEquals( "content " + i, FileUtils.readFileToString( new File( temporaryFolder, "dir/file" + i + ".txt" ),
+                                                                      StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    @Test
+    public void testSevenZFolders() throws IOException
+    {
+        // Each entry written by SevenZOutputFile is compressed in its own folder, so may be decoded in parallel.
+        try ( SevenZFile sevenZ = new SevenZFile( createSevenZ( 3 ) ) )
+        {
+            assertArrayEquals( new int[] { 0, 1, 2 }, SevenZFileType.getFolderIndices( sevenZ ) );
+        }
+
+        // Entries without content (directories and empty files) have no folder. The folders are read from the
+        // internals of commons-compress, so this fails, rather than silently using a single reader, if they change.
+        File target = folder.newFile( "folders.7z" );
+        try ( SevenZOutputFile sevenZ = new SevenZOutputFile( target ) )
+        {
+            for ( String name : new String[] { "a.txt", "dir", "empty.txt", "b.txt" } )
+            {
+                SevenZArchiveEntry entry = new SevenZArchiveEntry();
+                entry.setName( name );
+                entry.setDirectory( name.equals( "dir" ) );
+                sevenZ.putArchiveEntry( entry );
+                if ( ! entry.isDirectory() && ! name.equals( "empty.txt" ) )
+                {
+                    sevenZ.write( name.getBytes( StandardCharsets.UTF_8 ) );
+                }
+                sevenZ.closeArchiveEntry();
+            }
+        }
+        try ( SevenZFile sevenZ = new SevenZFile( target ) )
+        {
+            assertArrayEquals( new int[] { 0, -1, -1, 1 }, SevenZFileType.getFolderIndices( sevenZ ) );
+        }
+    }
+
+    @Test
+    public void testUnpackSevenZWithIncludeFilter() throws IOException, InternalException
+    {
+        File target = createSevenZ( 4 );
+        File temporaryFolder = folder.newFolder();
+
+        new Exploder().useTargetDirectory( temporaryFolder ).includeEntries( n -> n.endsWith( "file2.txt" ) ).unpack( target );
+
+        assertTrue( new File( temporaryFolder, "dir/file2.txt" ).exists() );
+        assertFalse( new File( temporaryFolder, "dir/file1.txt" ).exists() );
+        assertFalse( new File( temporaryFolder, "dir/file3.txt" ).exists() );
+    }
+
+    @Test
+    public void testUnpackEntryFromIndexedTarGZ() throws IOException, InternalException
+    {
+        byte[] tar = createTar( 6 );
+        File target = folder.newFile( "indexed.tar.gz" );
+        File cache = folder.newFolder();
+
+        // Two independent gzip members, as written by pigz --independent or bgzip.
+        try ( OutputStream output = new FileOutputStream( target ) )
+        {
+            int split = tar.length / 2;
+            try ( GZIPOutputStream gzip = new GZIPOutputStream( CloseShieldOutputStream.wrap( output ) ) )
+            {
+                gzip.write( tar, 0, split );
+            }
+            try ( GZIPOutputStream gzip = new GZIPOutputStream( output ) )
+            {
+                gzip.write( tar, split, tar.length - split );
+            }
+        }
+
+        new Exploder().useTargetDirectory( folder.newFolder() ).useIndexCache( cache ).unpack( target );
+        assertEquals( 1, cache.list().length );
+
+        File destination = new File( folder.newFolder(), "file5.txt" );
+        new Exploder().useIndexCache( cache ).unpackEntry( target, "dir/file5.txt", destination );
+
+        assertEquals( "content 5", FileUtils.readFileToString( destination, StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void testUnpackEntryFromTarXZ() throws IOException, InternalException
+    {
+        File target = folder.newFile( "indexed.tar.xz" );
+        try ( OutputStream output = new XZCompressorOutputStream( new FileOutputStream( target ) ) )
+        {
+            output.write( createTar( 4 ) );
+        }
+
+        File destination = new File( folder.newFolder(), "file2.txt" );
+        new Exploder().unpackEntry( target, "dir/file2.txt", destination );
+
+        assertEquals( "content 2", FileUtils.readFileToString( destination, StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void testUnpackNestedInParallel() throws IOException, InternalException
+    {
+        File target = folder.newFile( "outer.zip" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            createNestedZip( zip, 5, i -> i * 10 + 1 );
+        }
+
+        Set<String> sequential = new TreeSet<>();
+        new Exploder().useTargetDirectory( folder.newFolder() )
+                      .unpack( ( b, f ) -> sequential.add( relative( b, f ) ), target );
+        Set<String> parallel = Collections.synchronizedSet( new TreeSet<>() );
+        new Exploder().useTargetDirectory( folder.newFolder() ).useThreads( 3 )
+                      .unpack( ( b, f ) -> parallel.add( relative( b, f ) ), target );
+
+        assertEquals( 5 + 1 + 11 + 21 + 31 + 41 + 1, sequential.size() );
+        assertEquals( sequential, parallel );
+    }
+
+    @Test
+    public void testSchedulerRunsLargestFirst() throws IOException, InternalException, InterruptedException
+    {
+        UnpackScheduler scheduler = new UnpackScheduler( 1 );
+        List<String> order = Collections.synchronizedList( new ArrayList<>() );
+        CountDownLatch running = new CountDownLatch( 1 );
+        CountDownLatch blocked = new CountDownLatch( 1 );
+        try
+        {
+            // Occupy the single thread so the remaining work queues up.
+            scheduler.submit( folder.newFile(), 0, () -> {
+                running.countDown();
+                try
+                {
+                    blocked.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new CancelledException( "Interrupted" );
+                }
+            } );
+            assertTrue( running.await( 10, TimeUnit.SECONDS ) );
+            scheduler.submit( createFile( "small", 10 ), 0, () -> order.add( "small" ) );
+            scheduler.submit( createFile( "large", 1000 ), 0, () -> order.add( "large" ) );
+            scheduler.submit( createFile( "deep", 600 ), 4, () -> order.add( "deep" ) );
+            scheduler.submit( createFile( "medium", 500 ), 0, () -> order.add( "medium" ) );
+            blocked.countDown();
+            scheduler.await();
+        }
+        finally
+        {
+            scheduler.shutdown();
+        }
+        assertEquals( Arrays.asList( "deep", "large", "medium", "small" ), order );
+    }
+
+    @Test
+    public void testSchedulerOrdersNestedSubmissions() throws IOException, InternalException
+    {
+        UnpackScheduler scheduler = new UnpackScheduler( 1 );
+        List<String> order = Collections.synchronizedList( new ArrayList<>() );
+        File small = createFile( "small", 10 );
+        File large = createFile( "large", 1000 );
+        File medium = createFile( "medium", 500 );
+        try
+        {
+            // As with nested archives, the work is queued by running work on the only thread.
+            scheduler.submit( folder.newFile(), 0, () -> {
+                order.add( "outer" );
+                scheduler.submit( small, 1, () -> order.add( "small" ) );
+                scheduler.submit( large, 1, () -> order.add( "large" ) );
+                scheduler.submit( medium, 1, () -> order.add( "medium" ) );
+            } );
+            scheduler.await();
+        }
+        finally
+        {
+            scheduler.shutdown();
+        }
+        assertEquals( Arrays.asList( "outer", "large", "medium", "small" ), order );
+    }
+
+    @Test
+    public void testUnpackDeduplicatesEntries() throws IOException, InternalException
+    {
+        File target = folder.newFile( "duplicates.zip" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            for ( String name : new String[] { "a/lib.jar", "b/lib.jar", "c/other.jar" } )
+            {
+                zip.putArchiveEntry( new ZipArchiveEntry( name ) );
+                zip.write( ( name.startsWith( "c" ) ? "other content" : "shared content" ).getBytes( StandardCharsets.UTF_8 ) );
+                zip.closeArchiveEntry();
+            }
+        }
+        File temporaryFolder = folder.newFolder();
+        Set<String> processed = new TreeSet<>();
+
+        List<DiskFootprint> footprint = new ArrayList<>();
+
+        new Exploder().useTargetDirectory( temporaryFolder ).useDeduplication().excludeSuffix( "jar" )
+                      .useFootprintListener( footprint::add )
+                      .unpack( ( b, f ) -> processed.add( f.getName() + '@' + f.getParentFile().getName() ), target );
+
+        assertTrue( Files.isSameFile( new File( temporaryFolder, "a/lib.jar" ).toPath(), new File( temporaryFolder, "b/lib.jar" ).toPath() ) );
+        assertFalse( Files.isSameFile( new File( temporaryFolder, "a/lib.jar" ).toPath(), new File( temporaryFolder, "c/other.jar" ).toPath() ) );
+        assertEquals( "shared content", FileUtils.readFileToString( new File( temporaryFolder, "b/lib.jar" ), StandardCharsets.UTF_8 ) );
+        // Duplicates are still reported.
+        assertTrue( processed.containsAll( Arrays.asList( "lib.jar@a", "lib.jar@b", "other.jar@c" ) ) );
+        // The hardlinked duplicate takes no further space.
+        assertEquals( "shared content".length() + "other content".length(), footprint.get( 0 ).getBytesWritten() );
+    }
+
+    @Test
+    public void testUnpackDeduplicatesDataDescriptorEntries() throws IOException, InternalException
+    {
+        // As with the jar tool, deflated entries are followed by a data descriptor holding their size and CRC.
+        File target = folder.newFile( "duplicates.jar" );
+        try ( JarOutputStream jar = new JarOutputStream( new FileOutputStream( target ) ) )
+        {
+            for ( String name : new String[] { "a/x.bin", "b/x.bin" } )
+            {
+                jar.putNextEntry( new JarEntry( name ) );
+                jar.write( "shared content".getBytes( StandardCharsets.UTF_8 ) );
+                jar.closeEntry();
+            }
+        }
+        File temporaryFolder = folder.newFolder();
+
+        new Exploder().useTargetDirectory( temporaryFolder ).useDeduplication().unpack( target );
+
+        assertTrue( Files.isSameFile( new File( temporaryFolder, "a/x.bin" ).toPath(), new File( temporaryFolder, "b/x.bin" ).toPath() ) );
+        assertEquals( "shared content", FileUtils.readFileToString( new File( temporaryFolder, "b/x.bin" ), StandardCharsets.UTF_8 ) );
+    }
+
+    @Test
+    public void testUnpackWithWriteBehind() throws IOException, InternalException
+    {
+        File target = folder.newFile( "writebehind.zip" );
+        byte[] large = new byte[300 * 1024];
+        new Random( 0 ).nextBytes( large );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            createNestedZip( zip, 3 );
+            // Larger than the capacity so written directly.
+            zip.putArchiveEntry( new ZipArchiveEntry( "data/large.bin" ) );
+            zip.write( large );
+            zip.closeArchiveEntry();
+        }
+
+        Map<String, Long> sequential = new TreeMap<>();
+        new Exploder().useTargetDirectory( folder.newFolder() )
+                      .unpack( ( b, f ) -> sequential.put( relative( b, f ), f.length() ), target );
+        File temporaryFolder = folder.newFolder();
+        Map<String, Long> behind = Collections.synchronizedMap( new TreeMap<>() );
+        new Exploder().useTargetDirectory( temporaryFolder ).useThreads( 2 ).useWriteBehind( 2, 128 * 1024 )
+                      .unpack( ( b, f ) -> behind.put( relative( b, f ), f.length() ), target );
+
+        // Each file is fully written before it is processed.
+        assertEquals( sequential, behind );
+        assertArrayEquals( large, FileUtils.readFileToByteArray( new File( temporaryFolder, "data/large.bin" ) ) );
+    }
+
+    @Test
+    public void testSharedEngineUnpacksConcurrently() throws Exception
+    {
+        File target = folder.newFile( "shared.zip" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            createNestedZip( zip, 3, i -> 10 );
+        }
+
+        Set<String> expected = new TreeSet<>();
+        new Exploder().useTargetDirectory( folder.newFolder() )
+                      .unpack( ( b, f ) -> expected.add( f.equals( target ) ? f.getName() : relative( b, f ) ), target );
+
+        ExploderEngine engine = new ExploderEngine( new ExploderConfig.Builder().useTemporaryDirectory()
+                                                                                .useStaging( 1024, 1024 * 1024 )
+                                                                                .useThreads( 2 )
+                                                                                .build() );
+        ExecutorService executor = Executors.newFixedThreadPool( 4 );
+        try
+        {
+            List<Future<Set<String>>> results = new ArrayList<>();
+            for ( int i = 0; i < 8; i++ )
+            {
+                results.add( executor.submit( () -> {
+                    Set<String> processed = Collections.synchronizedSet( new TreeSet<>() );
+                    engine.unpack( ( b, f ) -> processed.add( f.equals( target ) ? f.getName() : relative( b, f ) ), target );
+                    return processed;
+                } ) );
+            }
+            for ( Future<Set<String>> result : results )
+            {
+                assertEquals( expected, result.get() );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSharedEngineStagesConcurrentlyIntoSameDirectory() throws Exception
+    {
+        ExploderEngine engine = new ExploderEngine( new ExploderConfig.Builder().useStaging( 1024, 4 * 1024 * 1024 ).build() );
+        ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try
+        {
+            for ( int round = 0; round < 5; round++ )
+            {
+                File directory = folder.newFolder();
+                List<Future<Set<String>>> results = new ArrayList<>();
+                for ( String prefix : new String[] { "first", "second" } )
+                {
+                    File target = new File( folder.getRoot(), prefix + round + ".zip" );
+                    try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+                    {
+                        for ( int i = 0; i < 200; i++ )
+                        {
+                            zip.putArchiveEntry( new ZipArchiveEntry( "dir/" + prefix + i + ".txt" ) );
+                            zip.write( ( "content " + i ).getBytes( StandardCharsets.UTF_8 ) );
+                            zip.closeArchiveEntry();
+                        }
+                    }
+                    results.add( executor.submit( () -> {
+                        Set<String> staged = Collections.synchronizedSet( new TreeSet<>() );
+                        engine.unpack( new ExploderFileProcessor()
+                        {
+                            @Override
+                            public void processFile( File baseDir, File file )
+                            {
+                            }
+
+                            @Override
+                            public void processStaged( File baseDir, File file, VirtualPath path, ByteBuffer content )
+                            {
+                                staged.add( file.getName() );
+                            }
+                        }, target, directory, false );
+                        return staged;
+                    } ) );
+                }
+
+                // Each call is passed exactly the entries it staged itself.
+                Set<String> first = results.get( 0 ).get();
+                Set<String> second = results.get( 1 ).get();
+                assertEquals( 200, first.size() );
+                assertEquals( 200, second.size() );
+                assertTrue( first.stream().allMatch( n -> n.startsWith( "first" ) ) );
+                assertTrue( second.stream().allMatch( n -> n.startsWith( "second" ) ) );
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStreamStopsEarly() throws IOException, InternalException
+    {
+        File target = folder.newFile( "stream.zip" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            for ( String name : new String[] { "first.zip", "second.zip" } )
+            {
+                zip.putArchiveEntry( new ZipArchiveEntry( name ) );
+                zip.write( createZip( 10 ) );
+                zip.closeArchiveEntry();
+            }
+        }
+        File temporaryFolder = folder.newFolder();
+
+        Optional<ExplodedEntry> found;
+        try ( Stream<ExplodedEntry> entries = new Exploder().useTargetDirectory( temporaryFolder ).stream( target ) )
+        {
+            found = entries.filter( e -> e.getFile().getName().endsWith( ".txt" ) ).findFirst();
+        }
+
+        assertTrue( found.isPresent() );
+        assertEquals( 2, found.get().getPath().getArchiveChain().size() );
+        // Only the nested archive the entry was found within has been unpacked.
+        assertTrue( new File( temporaryFolder, "first.zip" + Exploder.ARCHIVE_UNPACK_SUFFIX ).exists()
+                                    ^ new File( temporaryFolder, "second.zip" + Exploder.ARCHIVE_UNPACK_SUFFIX ).exists() );
+
+        try ( Stream<ExplodedEntry> entries = new Exploder().useTargetDirectory( folder.newFolder() ).stream( target ) )
+        {
+            assertEquals( 2 + 2 * 10 + 1, entries.count() );
+        }
+    }
+
+    @Test
+    public void testStreamKeepsEntriesUntilPassed() throws IOException, InternalException
+    {
+        File target = folder.newFile( "lifetime.zip" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            for ( String name : new String[] { "a.txt", "b.txt" } )
+            {
+                zip.putArchiveEntry( new ZipArchiveEntry( name ) );
+                zip.write( name.getBytes( StandardCharsets.UTF_8 ) );
+                zip.closeArchiveEntry();
+            }
+            createNestedZip( zip, 2 );
+        }
+        File result = folder.newFolder();
+
+        int count = 1;
+        try ( Stream<ExplodedEntry> entries = new Exploder().useTargetDirectory( result ).minimizeFootprint().stream( target ) )
+        {
+            Iterator<ExplodedEntry> iterator = entries.iterator();
+            ExplodedEntry previous = iterator.next();
+
+            // Entries are only extracted as they are pulled.
+            assertEquals( "a.txt", previous.getFile().getName() );
+            assertFalse( new File( result, "b.txt" ).exists() );
+
+            while ( iterator.hasNext() )
+            {
+                // The previous entry, including a nested archive, may still be read once the next has been pulled.
+                assertTrue( previous.toString(), previous.getFile().isFile() );
+                assertTrue( Files.readAllBytes( previous.getFile().toPath() ).length > 0 );
+                previous = iterator.next();
+                count++;
+            }
+        }
+        assertEquals( 2 + 2 * 20 + 2 + 1, count );
+        assertFalse( new File( result, "lib/nested0.zip" ).exists() );
+        assertTrue( new File( result, "lib/nested0.zip" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/dir/file19.txt" ).exists() );
+    }
+
+    @Test
+    public void testUnpackMinimizesFootprint() throws IOException, InternalException
+    {
+        File target = folder.newFile( "footprint.zip" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            createNestedZip( zip, 3 );
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try ( GZIPOutputStream gzip = new GZIPOutputStream( compressed ) )
+            {
+                gzip.write( createTar( 5 ) );
+            }
+            zip.putArchiveEntry( new ZipArchiveEntry( "data/content.tar.gz" ) );
+            zip.write( compressed.toByteArray() );
+            zip.closeArchiveEntry();
+        }
+
+        File full = folder.newFolder();
+        List<DiskFootprint> fullFootprint = new ArrayList<>();
+        new Exploder().useTargetDirectory( full ).materializeIntermediates()
+                      .useFootprintListener( fullFootprint::add ).unpack( target );
+
+        File minimal = folder.newFolder();
+        List<DiskFootprint> minimalFootprint = new ArrayList<>();
+        Set<String> processed = new TreeSet<>();
+        new Exploder().useTargetDirectory( minimal ).materializeIntermediates().minimizeFootprint()
+                      .useFootprintListener( minimalFootprint::add )
+                      .unpack( ( b, f ) -> processed.add( f.getName() ), target );
+
+        // Intermediates are reported before they are deleted, and the input is retained.
+        assertTrue( processed.containsAll( Arrays.asList( "nested0.zip", "content.tar.gz", "content.tar" ) ) );
+        assertTrue( target.exists() );
+        assertFalse( new File( minimal, "lib/nested0.zip" ).exists() );
+        assertFalse( new File( minimal, "data/content.tar.gz" ).exists() );
+        assertFalse( new File( minimal, "data/content.tar" ).exists() );
+        assertTrue( new File( minimal, "lib/nested0.zip" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/dir/file19.txt" ).exists() );
+        assertTrue( new File( minimal, "data/content.tar" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/dir/file4.txt" ).exists() );
+
+        assertEquals( 1, fullFootprint.size() );
+        assertEquals( 1, minimalFootprint.size() );
+        DiskFootprint footprint = minimalFootprint.get( 0 );
+        assertEquals( FileUtils.sizeOfDirectory( full ), fullFootprint.get( 0 ).getBytesOnDisk() );
+        assertEquals( FileUtils.sizeOfDirectory( minimal ), footprint.getBytesOnDisk() );
+        assertEquals( footprint.getBytesWritten() - footprint.getBytesDeleted(), footprint.getBytesOnDisk() );
+        assertTrue( footprint.getPeakBytesOnDisk() < fullFootprint.get( 0 ).getPeakBytesOnDisk() );
+    }
+
+    @Test
+    public void testUnpackReportsProgress() throws IOException, InternalException
+    {
+        File target = folder.newFile( "progress.zip" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            createNestedZip( zip, 3 );
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try ( GZIPOutputStream gzip = new GZIPOutputStream( compressed ) )
+            {
+                gzip.write( createTar( 5 ) );
+            }
+            zip.putArchiveEntry( new ZipArchiveEntry( "data/content.tar.gz" ) );
+            zip.write( compressed.toByteArray() );
+            zip.closeArchiveEntry();
+        }
+
+        File full = folder.newFolder();
+        List<Progress> updates = new ArrayList<>();
+        new Exploder().useTargetDirectory( full ).materializeIntermediates()
+                      .useProgressListener( updates::add, Duration.ZERO ).unpack( target );
+
+        Progress last = updates.get( updates.size() - 1 );
+        assertTrue( last.isComplete() );
+        assertTrue( last.isEstimated() );
+        assertEquals( Duration.ZERO, last.getEta() );
+        // Every byte extracted or decompressed is written once.
+        assertEquals( FileUtils.sizeOfDirectory( full ), last.getBytesCompleted() );
+        assertTrue( last.getBytesTotal() >= last.getBytesCompleted() );
+        assertTrue( last.getEntriesCompleted() >= last.getEntriesTotal() );
+        assertTrue( updates.stream().anyMatch( p -> p.getCurrentPath().startsWith( "lib/nested1.zip!/dir/" ) ) );
+        for ( int i = 1; i < updates.size(); i++ )
+        {
+            assertFalse( updates.get( i - 1 ).isComplete() );
+            assertTrue( updates.get( i - 1 ).getBytesCompleted() <= updates.get( i ).getBytesCompleted() );
+        }
+
+        // Updates are throttled to the interval, leaving only the final one.
+        updates.clear();
+        new Exploder().useTargetDirectory( folder.newFolder() )
+                      .useProgressListener( updates::add, Duration.ofHours( 1 ) ).unpack( target );
+        assertEquals( 1, updates.size() );
+        assertTrue( updates.get( 0 ).isComplete() );
+    }
+
+    @Test
+    public void testUnpackWithDecoderMemoryBudget() throws Exception
+    {
+        // The default preset has an 8MB dictionary.
+        File xz = folder.newFile( "budget.txt.xz" );
+        try ( OutputStream output = new XZCompressorOutputStream( new FileOutputStream( xz ) ) )
+        {
+            output.write( "content".getBytes( StandardCharsets.UTF_8 ) );
+        }
+        File sevenZ = createSevenZ( 5 );
+
+        // Decoders requiring more than the whole budget fail without waiting.
+        for ( File target : Arrays.asList( xz, sevenZ ) )
+        {
+            try
+            {
+                new Exploder().useTargetDirectory( folder.newFolder() )
+                              .useDecoderMemoryBudget( new DecoderMemoryBudget( 1024 * 1024 ) ).unpack( target );
+                fail( "Expected memory limit to be exceeded" );
+            }
+            catch ( InternalException e )
+            {
+                assertTrue( e.getCause() instanceof MemoryLimitException );
+            }
+        }
+
+        // While the budget is held by another decoder the unpack waits.
+        DecoderMemoryBudget budget = new DecoderMemoryBudget( 32 * 1024 * 1024 );
+        DecoderMemoryBudget.Reservation held = budget.reserve( "test", 32 * 1024, () -> { } );
+        File result = folder.newFolder();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<Void> unpack = executor.submit( () -> {
+                new Exploder().useTargetDirectory( result ).useDecoderMemoryBudget( budget ).unpack( xz );
+                return null;
+            } );
+            Thread.sleep( 500 );
+            assertFalse( unpack.isDone() );
+
+            held.close();
+            unpack.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        assertEquals( "content", FileUtils.readFileToString( new File( result, "budget.txt" ), StandardCharsets.UTF_8 ) );
+        assertEquals( 0, budget.getReserved() );
+
+        new Exploder().useTargetDirectory( result ).useThreads( 2 ).useDecoderMemoryBudget( budget ).unpack( sevenZ );
+        assertTrue( new File( result, "dir/file4.txt" ).exists() );
+        assertEquals( 0, budget.getReserved() );
+    }
+
+    @Test
+    public void testUnpackSparseEntries() throws IOException, InternalException
+    {
+        byte[] dump = new byte[3 * 1024 * 1024 + 100];
+        new Random( 7 ).nextBytes( dump );
+        Arrays.fill( dump, 4096, 3 * 1024 * 1024, (byte) 0 );
+
+        File target = folder.newFile( "sparse.tar" );
+        try ( TarArchiveOutputStream tar = new TarArchiveOutputStream( new FileOutputStream( target ) ) )
+        {
+            // A PAX 0.1 sparse entry of 2MB, holding "hello" at 0 and "world" at 1MB.
+            byte[] headers = ( paxRecord( "GNU.sparse.size", "2097152" ) + paxRecord( "GNU.sparse.numblocks", "3" )
+                            + paxRecord( "GNU.sparse.map", "0,5,1048576,5,2097152,0" ) ).getBytes( StandardCharsets.UTF_8 );
+            TarArchiveEntry pax = new TarArchiveEntry( "PaxHeaders/disk.img", TarConstants.LF_PAX_EXTENDED_HEADER_LC );
+            pax.setSize( headers.length );
+            tar.putArchiveEntry( pax );
+            tar.write( headers );
+            tar.closeArchiveEntry();
+
+            TarArchiveEntry sparse = new TarArchiveEntry( "disk.img" );
+            sparse.setSize( 10 );
+            tar.putArchiveEntry( sparse );
+            tar.write( "helloworld".getBytes( StandardCharsets.UTF_8 ) );
+            tar.closeArchiveEntry();
+
+            TarArchiveEntry dense = new TarArchiveEntry( "dump.bin" );
+            dense.setSize( dump.length );
+            tar.putArchiveEntry( dense );
+            tar.write( dump );
+            tar.closeArchiveEntry();
+        }
+
+        File sparseTarget = folder.newFolder();
+        new Exploder().useTargetDirectory( sparseTarget ).usePreallocation().useSparseFiles().unpack( target );
+
+        byte[] disk = FileUtils.readFileToByteArray( new File( sparseTarget, "disk.img" ) );
+        byte[] expected = new byte[2097152];
+        System.arraycopy( "hello".getBytes( StandardCharsets.UTF_8 ), 0, expected, 0, 5 );
+        System.arraycopy( "world".getBytes( StandardCharsets.UTF_8 ), 0, expected, 1048576, 5 );
+        assertArrayEquals( expected, disk );
+        assertArrayEquals( dump, FileUtils.readFileToByteArray( new File( sparseTarget, "dump.bin" ) ) );
+
+        // Without sparse files the tar sparse map is still honoured.
+        File plainTarget = folder.newFolder();
+        new Exploder().useTargetDirectory( plainTarget ).unpack( target );
+        assertArrayEquals( expected, FileUtils.readFileToByteArray( new File( plainTarget, "disk.img" ) ) );
+        assertArrayEquals( dump, FileUtils.readFileToByteArray( new File( plainTarget, "dump.bin" ) ) );
+    }
+
+    @Test
+    public void testUnpackPipelined() throws IOException, InternalException
+    {
+        // Entries spanning several prefetch buffers, compressed with gzip and xz.
+        Random random = new Random( 11 );
+        byte[][] contents = new byte[4][];
+        ByteArrayOutputStream tarContent = new ByteArrayOutputStream();
+        try ( TarArchiveOutputStream tar = new TarArchiveOutputStream( tarContent ) )
+        {
+            for ( int i = 0; i < contents.length; i++ )
+            {
+                contents[i] = new byte[300 * 1024 + i];
+                random.nextBytes( contents[i] );
+                TarArchiveEntry entry = new TarArchiveEntry( "dir/file" + i + ".bin" );
+                entry.setSize( contents[i].length );
+                tar.putArchiveEntry( entry );
+                tar.write( contents[i] );
+                tar.closeArchiveEntry();
+            }
+        }
+        File gzip = folder.newFile( "pipeline.tar.gz" );
+        try ( OutputStream output = new GZIPOutputStream( new FileOutputStream( gzip ) ) )
+        {
+            output.write( tarContent.toByteArray() );
+        }
+        File xz = folder.newFile( "pipeline.tar.xz" );
+        try ( OutputStream output = new XZCompressorOutputStream( new FileOutputStream( xz ) ) )
+        {
+            output.write( tarContent.toByteArray() );
+        }
+
+        for ( File target : new File[] { gzip, xz } )
+        {
+            String name = target.getName().substring( 0, target.getName().lastIndexOf( '.' ) );
+            File stacked = folder.newFolder();
+            new Exploder().useTargetDirectory( stacked ).usePipeline().unpack( target );
+            File materialized = folder.newFolder();
+            new Exploder().useTargetDirectory( materialized ).usePipeline().materializeIntermediates().unpack( target );
+
+            assertArrayEquals( tarContent.toByteArray(), FileUtils.readFileToByteArray( new File( materialized, name ) ) );
+            for ( File directory : new File[] { stacked, materialized } )
+            {
+                for ( int i = 0; i < contents.length; i++ )
+                {
+                    assertArrayEquals( contents[i], FileUtils.readFileToByteArray(
+                                    new File( directory, name + Exploder.ARCHIVE_UNPACK_SUFFIX + "/dir/file" + i + ".bin" ) ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a PAX extended header record, whose length prefix includes its own digits.
+     */
+    private String paxRecord( String key, String value )
+    {
+        String body = " " + key + "=" + value + "\n";
+        int length = body.length() + String.valueOf( body.length() ).length();
+        if ( String.valueOf( length ).length() != String.valueOf( body.length() ).length() )
+        {
+            length++;
+        }
+        return length + body;
+    }
+
+    @Test
+    public void testUnpackSharded() throws Exception
+    {
+        File target = folder.newFile( "sharded.zip" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            createNestedZip( zip, 6, i -> 5 + i * 10 );
+            zip.putArchiveEntry( new ZipArchiveEntry( "README.txt" ) );
+            zip.write( "readme".getBytes( StandardCharsets.UTF_8 ) );
+            zip.closeArchiveEntry();
+        }
+
+        Set<String> expected = new TreeSet<>();
+        new Exploder().useTargetDirectory( folder.newFolder() ).unpack( new ExploderFileProcessor()
+        {
+            @Override
+            public void processFile( File baseDir, File file )
+            {
+            }
+
+            @Override
+            public void processFile( File baseDir, File file, VirtualPath path )
+            {
+                expected.add( path.toString() );
+            }
+        }, target );
+
+        WorkPlan plan = new Exploder().plan( target );
+        assertEquals( 7, plan.getUnits().size() );
+        assertEquals( 6, plan.getUnits().stream().filter( WorkPlan.Unit::isNested ).count() );
+
+        List<WorkPlan.Shard> shards = plan.split( 3 );
+        long largest = plan.getUnits().stream().mapToLong( WorkPlan.Unit::getSize ).max().getAsLong();
+        long min = shards.stream().mapToLong( WorkPlan.Shard::getSize ).min().getAsLong();
+        long max = shards.stream().mapToLong( WorkPlan.Shard::getSize ).max().getAsLong();
+        assertEquals( plan.getSize(), shards.stream().mapToLong( WorkPlan.Shard::getSize ).sum() );
+        assertTrue( max - min <= largest );
+
+        // Execute each shard in its own JVM.
+        List<File> outputs = new ArrayList<>();
+        List<Process> processes = new ArrayList<>();
+        for ( WorkPlan.Shard shard : shards )
+        {
+            File shardFile = new File( folder.getRoot(), "shard" + shard.getIndex() );
+            File output = new File( folder.getRoot(), "output" + shard.getIndex() );
+            shard.save( shardFile );
+            outputs.add( output );
+            processes.add( new ProcessBuilder( new File( System.getProperty( "java.home" ), "bin/java" ).getPath(), "-cp",
+                                               System.getProperty( "java.class.path" ), ShardRunner.class.getName(),
+                                               shardFile.getPath(), output.getPath() ).inheritIO().start() );
+        }
+        for ( Process process : processes )
+        {
+            assertEquals( 0, process.waitFor() );
+        }
+
+        File manifest = new File( folder.getRoot(), "merged.manifest" );
+        List<ExplodedEntry> merged = ShardRunner.merge( outputs, manifest );
+        Set<String> paths = new TreeSet<>();
+        merged.forEach( e -> {
+            assertTrue( e.getFile().exists() );
+            paths.add( e.getPath().toString() );
+        } );
+        assertEquals( expected, paths );
+        assertEquals( expected.size(), Files.readAllLines( manifest.toPath() ).size() );
+        assertEquals( "sharded.zip!/lib/nested3.zip!/dir/file34.txt",
+                      VirtualPath.parse( "sharded.zip!/lib/nested3.zip!/dir/file34.txt" ).toString() );
+        assertEquals( 2, VirtualPath.parse( "sharded.zip!/lib/nested3.zip!/dir/file34.txt" ).getDepth() );
+    }
+
+    private String relative( File baseDir, File file )
+    {
+        return FilenameUtils.separatorsToUnix( baseDir.toPath().relativize( file.toPath() ).toString() );
+    }
+
+    private File createFile( String name, int size ) throws IOException
+    {
+        File file = folder.newFile( name );
+        FileUtils.writeByteArrayToFile( file, new byte[size] );
+        return file;
+    }
+
+    private byte[] createZip( int count ) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( result ) )
+        {
+            for ( int i = 0; i < count; i++ )
+            {
+                zip.putArchiveEntry( new ZipArchiveEntry( "dir/file" + i + ".txt" ) );
+                zip.write( ( "content " + i ).getBytes( StandardCharsets.UTF_8 ) );
+                zip.closeArchiveEntry();
+            }
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Writes nested zips of 20 files each, {@code lib/nested0.zip} onwards, to the zip.
+     */
+    private void createNestedZip( ZipArchiveOutputStream zip, int count ) throws IOException
+    {
+        createNestedZip( zip, count, i -> 20 );
+    }
+
+    /**
+     * Writes nested zips, {@code lib/nested0.zip} onwards, to the zip ; the i-th holds {@code files.applyAsInt( i )} files.
+     */
+    private void createNestedZip( ZipArchiveOutputStream zip, int count, IntUnaryOperator files ) throws IOException
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            zip.putArchiveEntry( new ZipArchiveEntry( "lib/nested" + i + ".zip" ) );
+            zip.write( createZip( files.applyAsInt( i ) ) );
+            zip.closeArchiveEntry();
+        }
+    }
+
+    private byte[] createTar( int count ) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try ( TarArchiveOutputStream tar = new TarArchiveOutputStream( result ) )
+        {
+            for ( int i = 0; i < count; i++ )
+            {
+                byte[] content = ( "content " + i ).getBytes( StandardCharsets.UTF_8 );
+                TarArchiveEntry entry = new TarArchiveEntry( "dir/file" + i + ".txt" );
+                entry.setSize( content.length );
+                tar.putArchiveEntry( entry );
+                tar.write( content );
+                tar.closeArchiveEntry();
+            }
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Reverses the order of the central directory records of a zip without a comment, so that it no
+     * longer matches the order of the entries in the file.
+     */
+    private static byte[] reverseCentralDirectory( byte[] zip )
+    {
+        ByteBuffer buffer = ByteBuffer.wrap( zip ).order( ByteOrder.LITTLE_ENDIAN );
+        int end = zip.length - 22;
+        int count = buffer.getShort( end + 10 );
+        int start = buffer.getInt( end + 16 );
+
+        List<byte[]> records = new ArrayList<>();
+        for ( int offset = start, i = 0; i < count; i++ )
+        {
+            int length = 46 + buffer.getShort( offset + 28 ) + buffer.getShort( offset + 30 ) + buffer.getShort( offset + 32 );
+            records.add( Arrays.copyOfRange( zip, offset, offset + length ) );
+            offset += length;
+        }
+        Collections.reverse( records );
+
+        byte[] result = zip.clone();
+        int offset = start;
+        for ( byte[] record : records )
+        {
+            System.arraycopy( record, 0, result, offset, record.length );
+            offset += record.length;
+        }
+        return result;
+    }
+
+    private File createSevenZ( int count ) throws IOException
+    {
+        File target = folder.newFile( "parallel.7z" );
+        try ( SevenZOutputFile sevenZ = new SevenZOutputFile( target ) )
+        {
+            for ( int i = 0; i < count; i++ )
+            {
+                SevenZArchiveEntry entry = new SevenZArchiveEntry();
+                entry.setName( "dir/file" + i + ".txt" );
+                sevenZ.putArchiveEntry( entry );
+                sevenZ.write( ( "content " + i ).getBytes( StandardCharsets.UTF_8 ) );
+                sevenZ.closeArchiveEntry();
+            }
+        }
+        return target;
+    }
+}
@@ -20,16 +20,27 @@ import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.lz4.BlockLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.goots.exploder.types.FileType;
+import org.goots.exploder.types.InflaterGzipInputStream;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -94,4 +105,82 @@ public class FileHandlerTest
         InputStream i = type.getStream( target );
         assertTrue ( i instanceof ArchiveInputStream );
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCodecFileNames()
+    {
+        FileHandler f = new FileHandler();
+
+        assertEquals( CompressorStreamFactory.ZSTANDARD, f.getType( new File( "/tmp/t.tar.zst" ) ).getTypename() );
+        assertEquals( "/tmp/t.tar", f.getType( new File( "/tmp/t.tzst" ) ).getUncompressedFilename( new File( "/tmp/t.tzst" ) ) );
+        assertEquals( CompressorStreamFactory.SNAPPY_FRAMED, f.getType( new File( "/tmp/t.sz" ) ).getTypename() );
+        assertEquals( CompressorStreamFactory.BROTLI, f.getType( new File( "/tmp/t.br" ) ).getTypename() );
+        assertEquals( CompressorStreamFactory.LZ4_FRAMED, f.getType( new File( "/tmp/t.lz4" ) ).getTypename() );
+        assertEquals( ArchiveStreamFactory.ZIP, f.getType( new File( "/tmp/t.zip" ) ).getTypename() );
+        assertTrue( f.getSupportedSuffixes().contains( "war" ) );
+    }
+
+    @Test
+    public void testLZ4BlockSelectedByMagic() throws IOException
+    {
+        FileHandler f = new FileHandler();
+
+        File framed = folder.newFile( "framed.lz4" );
+        try ( OutputStream o = new FramedLZ4CompressorOutputStream( Files.newOutputStream( framed.toPath() ) ) )
+        {
+            o.write( "framed content".getBytes( StandardCharsets.UTF_8 ) );
+        }
+        File block = folder.newFile( "block.lz4" );
+        try ( OutputStream o = new BlockLZ4CompressorOutputStream( Files.newOutputStream( block.toPath() ) ) )
+        {
+            o.write( "block content".getBytes( StandardCharsets.UTF_8 ) );
+        }
+
+        assertEquals( CompressorStreamFactory.LZ4_FRAMED, f.getType( framed ).getTypename() );
+        assertEquals( CompressorStreamFactory.LZ4_BLOCK, f.getType( block ).getTypename() );
+    }
+
+    @Test
+    public void testZstdStream() throws Exception
+    {
+        FileHandler f = new FileHandler();
+
+        File zstd = folder.newFile( "content.txt.zst" );
+        try ( OutputStream o = new ZstdCompressorOutputStream( Files.newOutputStream( zstd.toPath() ) ) )
+        {
+            o.write( "zstd content".getBytes( StandardCharsets.UTF_8 ) );
+        }
+
+        FileType type = f.getType( zstd );
+        assertTrue( type.isCompressed() );
+        try ( InputStream i = type.getStream( zstd ) )
+        {
+            assertEquals( "zstd content", IOUtils.toString( i, StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    @Test
+    public void testInflaterGzipMultipleMembers() throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        for ( String member : new String[] { "first member ", "second member" } )
+        {
+            try ( GZIPOutputStream o = new GZIPOutputStream( compressed )
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    finish();
+                }
+            } )
+            {
+                o.write( member.getBytes( StandardCharsets.UTF_8 ) );
+            }
+        }
+
+        try ( InputStream i = new InflaterGzipInputStream( new ByteArrayInputStream( compressed.toByteArray() ) ) )
+        {
+            assertEquals( "first member second member", IOUtils.toString( i, StandardCharsets.UTF_8 ) );
+        }
+    }
+}
@@ -15,16 +15,45 @@
  */
 package org.goots.exploder;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.reflect.FieldUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.contrib.java.lang.system.SystemOutRule;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class FileProcessorTest
@@ -116,6 +145,407 @@ public class FileProcessorTest
     }
 
 
+    @Test
+    public void testUnpackWithStaging() throws IOException, InternalException
+    {
+        File target = new File (RESOURCES_DIR, "example.war" );
+        File temporaryFolder = folder.newFolder();
+        StagedProcessor p = new StagedProcessor();
+
+        new Exploder().useTargetDirectory( temporaryFolder ).useStaging( 64 * 1024, 1024 * 1024 ).unpack( p, target );
+
+        File verifyjar = new File( temporaryFolder, "example.jar" + Exploder.ARCHIVE_UNPACK_SUFFIX );
+        assertTrue ( p.staged.containsKey( "folder/Exploder.class" ) );
+        assertTrue ( p.staged.get( "folder/Exploder.class" ) > 0 );
+        assertFalse ( new File( verifyjar, "folder/Exploder.class" ).exists() );
+        // Nested archives are still written so they may be unpacked.
+        assertTrue ( verifyjar.exists() );
+    }
+
+    @Test
+    public void testUnpackWithStagingSpills() throws IOException, InternalException
+    {
+        File target = new File (RESOURCES_DIR, "example.war" );
+        File temporaryFolder = folder.newFolder();
+        StagedProcessor p = new StagedProcessor();
+
+        new Exploder().useTargetDirectory( temporaryFolder ).useStaging( 64 * 1024, 0 ).unpack( p, target );
+
+        assertTrue ( p.staged.isEmpty() );
+        assertTrue ( new File( temporaryFolder, "example.jar" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/folder/Exploder.class" ).exists() );
+    }
+
+    @Test
+    public void testStagingUnknownSizeUsesPool() throws IOException
+    {
+        // Room for one buffer of the largest size class and one of the smallest.
+        StagingArena.Session session = new StagingArena( 64 * 1024, 128 * 1024 + 4096 ).newSession();
+        File directory = folder.newFolder();
+        byte[] large = new byte[100 * 1024];
+        Arrays.fill( large, (byte) 'x' );
+        byte[] small = "small".getBytes( StandardCharsets.UTF_8 );
+
+        InputStream spilled = session.stage( new File( directory, "large" ), -1, new ByteArrayInputStream( large ) );
+        assertArrayEquals( large, IOUtils.toByteArray( spilled ) );
+
+        // The buffer replayed for the spilled entry has been returned to the pool, so the next may be staged.
+        assertNull( session.stage( new File( directory, "small" ), -1, new ByteArrayInputStream( small ) ) );
+        List<StagingArena.Staged> staged = session.take( directory );
+        assertEquals( 1, staged.size() );
+        assertEquals( 4096, staged.get( 0 ).content.capacity() );
+        byte[] content = new byte[staged.get( 0 ).content.remaining()];
+        staged.get( 0 ).content.get( content );
+        assertArrayEquals( small, content );
+    }
+
+    @Test
+    public void testWriteBehindHoldsNoMoreThanCapacity() throws IOException, InternalException
+    {
+        // Smaller than a single chunk, so an entry that does not fit must be written directly.
+        WriteBehind writeBehind = new WriteBehind( 1, 1000 );
+        try
+        {
+            WriteBehind.Batch batch = writeBehind.newBatch();
+            File directory = folder.newFolder();
+            byte[] large = new byte[10 * 1000];
+            Arrays.fill( large, (byte) 'x' );
+            byte[] small = "small".getBytes( StandardCharsets.UTF_8 );
+
+            InputStream direct = batch.write( new File( directory, "large" ), new ByteArrayInputStream( large ), null );
+            assertNotNull( direct );
+            assertArrayEquals( large, IOUtils.toByteArray( direct ) );
+
+            assertNull( batch.write( new File( directory, "small" ), new ByteArrayInputStream( small ), null ) );
+            batch.await();
+            assertArrayEquals( small, Files.readAllBytes( new File( directory, "small" ).toPath() ) );
+        }
+        finally
+        {
+            writeBehind.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnpackWithStagingWritesForFileProcessor() throws IOException, InternalException
+    {
+        File target = new File (RESOURCES_DIR, "example.war" );
+        File temporaryFolder = folder.newFolder();
+        Processor p = new Processor("Exploder.class");
+
+        new Exploder().useTargetDirectory( temporaryFolder ).useStaging( 64 * 1024, 1024 * 1024 ).unpack( p, target );
+
+        assertEquals( "folder/Exploder.class", p.virtualPath );
+        assertTrue ( new File( temporaryFolder, "example.jar" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/folder/Exploder.class" ).exists() );
+    }
+
+    @Test
+    public void testUnpackWithVirtualPath() throws IOException, InternalException
+    {
+        File target = new File (RESOURCES_DIR, "example.war" );
+        Map<String, VirtualPath> paths = new HashMap<>();
+
+        new Exploder().useTargetDirectory( folder.newFolder() ).unpack( new ExploderFileProcessor()
+        {
+            @Override
+            public void processFile( File baseDir, File file )
+            {
+            }
+
+            @Override
+            public void processFile( File baseDir, File file, VirtualPath path )
+            {
+                paths.put( path.toString(), path );
+            }
+        }, target );
+
+        VirtualPath path = paths.get( "example.war!/example.jar!/folder/Exploder.class" );
+        assertEquals( "folder/Exploder.class", path.getPath() );
+        assertEquals( Arrays.asList( "example.war", "example.jar" ), path.getArchiveChain() );
+        assertEquals( 2, path.getDepth() );
+        assertEquals( "META-INF/MANIFEST.MF", paths.get( "example.war!/META-INF/MANIFEST.MF" ).getPath() );
+    }
+
+    @Test
+    public void testUnpackRecordsFlightRecorderEvents() throws IOException, InternalException
+    {
+        File recordingFile = new File( folder.newFolder(), "exploder.jfr" );
+        List<RecordedEvent> events;
+
+        try ( Recording recording = new Recording() )
+        {
+            for ( String name : new String[] { "Archive", "Decompress", "Processor" } )
+            {
+                recording.enable( "org.goots.exploder." + name ).withThreshold( Duration.ZERO );
+            }
+            recording.start();
+            new Exploder().useTargetDirectory( folder.newFolder() ).unpack( ( b, f ) -> { }, new File( RESOURCES_DIR, "example.war" ) );
+            new Exploder().useTargetDirectory( folder.newFolder() ).unpack( new File( RESOURCES_DIR, "example.tar.gz" ) );
+            recording.stop();
+            recording.dump( recordingFile.toPath() );
+        }
+        events = RecordingFile.readAllEvents( recordingFile.toPath() );
+
+        RecordedEvent jar = find( events, "org.goots.exploder.Archive", "example.war!/example.jar" );
+        assertEquals( "jar", jar.getString( "type" ) );
+        assertEquals( 1, jar.getInt( "depth" ) );
+        assertTrue( jar.getLong( "extractedBytes" ) > 0 );
+
+        RecordedEvent processed = find( events, "org.goots.exploder.Processor", "example.war!/example.jar!/folder/Exploder.class" );
+        assertEquals( 2, processed.getInt( "depth" ) );
+
+        RecordedEvent decompressed = find( events, "org.goots.exploder.Decompress", "example.tar.gz" );
+        assertEquals( "gz", decompressed.getString( "type" ) );
+        assertTrue( decompressed.toString(), decompressed.getLong( "uncompressedBytes" ) > decompressed.getLong( "compressedBytes" ) );
+    }
+
+    @Test
+    public void testPublishEntries() throws Exception
+    {
+        File target = new File (RESOURCES_DIR, "example.war" );
+        Map<String, File> processed = new HashMap<>();
+        new Exploder().useTargetDirectory( folder.newFolder() ).unpack( new ExploderFileProcessor()
+        {
+            @Override
+            public void processFile( File baseDir, File file )
+            {
+            }
+
+            @Override
+            public void processFile( File baseDir, File file, VirtualPath path )
+            {
+                processed.put( path.toString(), file );
+            }
+        }, target );
+
+        EntrySubscriber subscriber = new EntrySubscriber( 1 );
+        new Exploder().useTargetDirectory( folder.newFolder() ).publish( target ).subscribe( subscriber );
+
+        assertTrue( subscriber.done.await( 10, TimeUnit.SECONDS ) );
+        assertNull( subscriber.error );
+        assertEquals( processed.keySet(), subscriber.entries.keySet() );
+        assertTrue( subscriber.entries.containsKey( "example.war!/example.jar!/folder/Exploder.class" ) );
+    }
+
+    @Test
+    public void testPublishCompletesWithoutFurtherDemand() throws Exception
+    {
+        File target = new File (RESOURCES_DIR, "example.war" );
+        Set<String> processed = new TreeSet<>();
+        new Exploder().useTargetDirectory( folder.newFolder() ).unpack( ( b, f ) -> processed.add( f.getPath() ), target );
+
+        Exploder u = new Exploder().useTemporaryDirectory();
+        File temporaryFolder = (File) FieldUtils.readField( u, "targetDirectory", true );
+        EntrySubscriber subscriber = new EntrySubscriber( 0 );
+        u.publish( target ).subscribe( subscriber );
+
+        // Completion is signalled without requesting beyond the last entry.
+        subscriber.subscription.request( processed.size() );
+        assertTrue( subscriber.done.await( 10, TimeUnit.SECONDS ) );
+        assertNull( subscriber.error );
+        assertEquals( processed.size(), subscriber.entries.size() );
+
+        for ( int i = 0; i < 100 && temporaryFolder.exists(); i++ )
+        {
+            Thread.sleep( 50 );
+        }
+        assertFalse( temporaryFolder.exists() );
+    }
+
+    @Test
+    public void testPublishCancelled() throws Exception
+    {
+        File target = new File (RESOURCES_DIR, "example.war" );
+
+        Exploder u = new Exploder().useTemporaryDirectory();
+        File temporaryFolder = (File) FieldUtils.readField( u, "targetDirectory", true );
+        EntrySubscriber subscriber = new EntrySubscriber( 0 );
+        u.publish( target ).subscribe( subscriber );
+
+        subscriber.subscription.request( 1 );
+        // Nothing more is extracted until requested.
+        Thread.sleep( 200 );
+        assertEquals( 1, subscriber.entries.size() );
+
+        subscriber.subscription.cancel();
+        for ( int i = 0; i < 100 && temporaryFolder.exists(); i++ )
+        {
+            Thread.sleep( 50 );
+        }
+        assertFalse( temporaryFolder.exists() );
+        assertEquals( 1, subscriber.entries.size() );
+        assertEquals( 1, subscriber.done.getCount() );
+    }
+
+    @Test
+    public void testUnpackStoredInPlace() throws IOException, InternalException
+    {
+        byte[] deep = zip( false, "deep.txt", "deep".getBytes( StandardCharsets.UTF_8 ) );
+        byte[] inner = zip( true, "nested/deep.zip", deep );
+        File target = folder.newFile( "stored.war" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            putEntry( zip, true, "WEB-INF/lib/inner.jar", inner );
+            putEntry( zip, false, "WEB-INF/lib/compressed.jar", inner );
+            putEntry( zip, false, "index.html", "index".getBytes( StandardCharsets.UTF_8 ) );
+        }
+
+        PathProcessor expected = new PathProcessor();
+        new Exploder().useTargetDirectory( folder.newFolder() ).unpack( expected, target );
+
+        File temporaryFolder = folder.newFolder();
+        PathProcessor p = new PathProcessor();
+        new Exploder().useTargetDirectory( temporaryFolder ).readStoredInPlace().unpack( p, target );
+        Set<String> paths = p.paths;
+        Map<String, byte[]> staged = p.staged;
+
+        assertEquals( expected.paths, paths );
+        assertTrue( expected.staged.isEmpty() );
+        assertTrue( paths.contains( "stored.war!/WEB-INF/lib/inner.jar!/nested/deep.zip!/deep.txt" ) );
+        assertArrayEquals( inner, staged.get( "stored.war!/WEB-INF/lib/inner.jar" ) );
+        assertArrayEquals( deep, staged.get( "stored.war!/WEB-INF/lib/inner.jar!/nested/deep.zip" ) );
+        assertFalse( staged.containsKey( "stored.war!/WEB-INF/lib/compressed.jar" ) );
+
+        // Stored zips are never written, while the compressed jar is written and opened as before.
+        File lib = new File( temporaryFolder, "WEB-INF/lib" );
+        assertFalse( new File( lib, "inner.jar" ).exists() );
+        assertTrue( new File( lib, "compressed.jar" ).exists() );
+        File deepText = new File( lib, "inner.jar" + Exploder.ARCHIVE_UNPACK_SUFFIX + "/nested/deep.zip"
+                        + Exploder.ARCHIVE_UNPACK_SUFFIX + "/deep.txt" );
+        assertEquals( "deep", new String( Files.readAllBytes( deepText.toPath() ), StandardCharsets.UTF_8 ) );
+    }
+
+    private byte[] zip( boolean stored, String name, byte[] content ) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( result ) )
+        {
+            putEntry( zip, stored, name, content );
+        }
+        return result.toByteArray();
+    }
+
+    private void putEntry( ZipArchiveOutputStream zip, boolean stored, String name, byte[] content ) throws IOException
+    {
+        ZipArchiveEntry entry = new ZipArchiveEntry( name );
+        if ( stored )
+        {
+            CRC32 crc = new CRC32();
+            crc.update( content );
+            entry.setMethod( ZipEntry.STORED );
+            entry.setSize( content.length );
+            entry.setCrc( crc.getValue() );
+        }
+        zip.putArchiveEntry( entry );
+        zip.write( content );
+        zip.closeArchiveEntry();
+    }
+
+    private RecordedEvent find( List<RecordedEvent> events, String name, String path )
+    {
+        return events.stream()
+                     .filter( e -> e.getEventType().getName().equals( name ) && path.equals( e.getString( "path" ) ) )
+                     .findFirst()
+                     .orElseThrow( () -> new AssertionError( "No " + name + " event for " + path + " in " + events ) );
+    }
+
+    private class EntrySubscriber implements Flow.Subscriber<ExplodedEntry>
+    {
+        final Map<String, File> entries = new ConcurrentHashMap<>();
+
+        final CountDownLatch done = new CountDownLatch( 1 );
+
+        final long batch;
+
+        Flow.Subscription subscription;
+
+        Throwable error;
+
+        /**
+         * @param batch the number of entries to request after each is received, or 0 to leave requests to the test.
+         */
+        EntrySubscriber( long batch )
+        {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe( Flow.Subscription subscription )
+        {
+            this.subscription = subscription;
+            if ( batch > 0 )
+            {
+                subscription.request( batch );
+            }
+        }
+
+        @Override
+        public void onNext( ExplodedEntry item )
+        {
+            assertTrue( item.getFile().exists() );
+            entries.put( item.toString(), item.getFile() );
+            if ( batch > 0 )
+            {
+                subscription.request( batch );
+            }
+        }
+
+        @Override
+        public void onError( Throwable throwable )
+        {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete()
+        {
+            done.countDown();
+        }
+    }
+
+    private class StagedProcessor implements ExploderFileProcessor
+    {
+        Map<String, Integer> staged = new HashMap<>();
+
+        @Override
+        public void processFile( File baseDir, File file )
+        {
+        }
+
+        @Override
+        public void processStaged( File baseDir, File file, VirtualPath path, ByteBuffer content )
+        {
+            staged.put( path.getPath(), content.remaining() );
+        }
+    }
+
+    private class PathProcessor implements ExploderFileProcessor
+    {
+        Set<String> paths = new TreeSet<>();
+
+        Map<String, byte[]> staged = new HashMap<>();
+
+        @Override
+        public void processFile( File baseDir, File file )
+        {
+        }
+
+        @Override
+        public void processFile( File baseDir, File file, VirtualPath path )
+        {
+            paths.add( path.toString() );
+        }
+
+        @Override
+        public void processStaged( File baseDir, File file, VirtualPath path, ByteBuffer content )
+        {
+            byte[] bytes = new byte[content.remaining()];
+            content.get( bytes );
+            staged.put( path.toString(), bytes );
+            paths.add( path.toString() );
+        }
+    }
+
     private class Processor implements ExploderFileProcessor
     {
         private String search;
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.fs;
+
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZOutputFile;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExploderFileSystemTest
+{
+    private static final File RESOURCES_DIR = new File("src/test/resources");
+
+    private static final String MANIFEST = "Manifest-Version: 1.0\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadNestedEntry() throws IOException
+    {
+        File ear = createEar();
+
+        try ( FileSystem fs = FileSystems.newFileSystem( URI.create( "exploder:" + ear.toURI() ), Collections.emptyMap() ) )
+        {
+            Path manifest = fs.getPath( "/lib/x.war!/WEB-INF/lib/y.jar!/META-INF/MANIFEST.MF" );
+
+            assertEquals( MANIFEST, new String( Files.readAllBytes( manifest ), StandardCharsets.UTF_8 ) );
+            assertEquals( "/lib/x.war/WEB-INF/lib/y.jar/META-INF/MANIFEST.MF", manifest.toString() );
+            assertEquals( manifest, Paths.get( manifest.toUri() ) );
+            assertEquals( "a", new String( Files.readAllBytes( fs.getPath( "/lib/z.tar.gz/dir/a.txt" ) ), StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    @Test
+    public void testReadSpilledNestedEntry() throws IOException
+    {
+        File ear = createEar();
+        Map<String, Object> env = new HashMap<>();
+        env.put( ExploderFileSystem.CACHE_SIZE, 1 );
+        env.put( ExploderFileSystem.SPILL_SIZE, 1 );
+
+        try ( FileSystem fs = FileSystems.newFileSystem( URI.create( "exploder:" + ear.toURI() ), env ) )
+        {
+            Path manifest = fs.getPath( "/lib/x.war!/WEB-INF/lib/y.jar!/META-INF/MANIFEST.MF" );
+
+            assertEquals( MANIFEST, new String( Files.readAllBytes( manifest ), StandardCharsets.UTF_8 ) );
+            assertEquals( "a", new String( Files.readAllBytes( fs.getPath( "/lib/z.tar.gz/dir/a.txt" ) ), StandardCharsets.UTF_8 ) );
+            // Evicted nested archives are decoded again.
+            assertEquals( MANIFEST, new String( Files.readAllBytes( manifest ), StandardCharsets.UTF_8 ) );
+        }
+    }
+
+    @Test
+    public void testReadSpilledSevenZEntry() throws IOException
+    {
+        byte[] large = new byte[64 * 1024];
+        new Random( 0 ).nextBytes( large );
+        File archive = folder.newFile( "large.7z" );
+        try ( SevenZOutputFile sevenZ = new SevenZOutputFile( archive ) )
+        {
+            SevenZArchiveEntry entry = new SevenZArchiveEntry();
+            entry.setName( "dir/large.bin" );
+            sevenZ.putArchiveEntry( entry );
+            sevenZ.write( large );
+            sevenZ.closeArchiveEntry();
+        }
+        Path temporary = Paths.get( System.getProperty( "java.io.tmpdir" ) );
+        long spilled = countEntryFiles( temporary );
+
+        try ( FileSystem fs = FileSystems.newFileSystem( URI.create( "exploder:" + archive.toURI() ),
+                                                        Collections.singletonMap( ExploderFileSystem.SPILL_SIZE, 1024 ) ) )
+        {
+            assertArrayEquals( large, Files.readAllBytes( fs.getPath( "/dir/large.bin" ) ) );
+        }
+        // The spilled content is removed once read.
+        assertEquals( spilled, countEntryFiles( temporary ) );
+    }
+
+    private long countEntryFiles( Path directory ) throws IOException
+    {
+        try ( Stream<Path> files = Files.list( directory ) )
+        {
+            return files.filter( p -> p.getFileName().toString().endsWith( ".entry" ) ).count();
+        }
+    }
+
+    @Test
+    public void testWalkAndAttributes() throws IOException
+    {
+        File ear = createEar();
+
+        try ( FileSystem fs = FileSystems.newFileSystem( URI.create( "exploder:" + ear.toURI() ),
+                                                        Collections.singletonMap( ExploderFileSystem.CACHE_SIZE, 1 ) ) )
+        {
+            List<String> paths;
+            try ( Stream<Path> walk = Files.walk( fs.getPath( "/" ) ) )
+            {
+                paths = walk.map( Path::toString ).collect( Collectors.toList() );
+            }
+
+            assertTrue( paths.contains( "/lib/x.war/WEB-INF/lib/y.jar/META-INF/MANIFEST.MF" ) );
+            assertTrue( paths.contains( "/lib/z.tar.gz/dir/a.txt" ) );
+            assertTrue( Files.isDirectory( fs.getPath( "/lib/x.war" ) ) );
+            assertTrue( Files.isRegularFile( fs.getPath( "/lib/x.war/WEB-INF/lib/y.jar/META-INF/MANIFEST.MF" ) ) );
+            assertEquals( MANIFEST.length(), Files.size( fs.getPath( "/lib/x.war/WEB-INF/lib/y.jar/META-INF/MANIFEST.MF" ) ) );
+
+            Map<String, Object> attributes = Files.readAttributes( fs.getPath( "/lib/z.tar.gz/dir/a.txt" ), "size,isDirectory" );
+            assertEquals( 1L, attributes.get( "size" ) );
+            assertEquals( false, attributes.get( "isDirectory" ) );
+            assertFalse( Files.exists( fs.getPath( "/lib/missing.jar" ) ) );
+        }
+    }
+
+    @Test
+    public void testExampleWar() throws IOException
+    {
+        try ( FileSystem fs = FileSystems.newFileSystem( URI.create( "exploder:" + new File( RESOURCES_DIR, "example.war" ).toURI() ),
+                                                        Collections.emptyMap() ) )
+        {
+            Path exploder = fs.getPath( "example.jar", "folder", "Exploder.class" );
+
+            assertEquals( 8317, Files.size( exploder ) );
+            assertEquals( 8317, Files.readAllBytes( exploder ).length );
+            assertEquals( 1, Files.list( fs.getPath( "/example.jar/folder" ) )
+                                  .filter( fs.getPathMatcher( "glob:**/*.class" )::matches ).count() );
+        }
+    }
+
+    @Test(expected = ReadOnlyFileSystemException.class)
+    public void testReadOnly() throws IOException
+    {
+        try ( FileSystem fs = FileSystems.newFileSystem( URI.create( "exploder:" + createEar().toURI() ), Collections.emptyMap() ) )
+        {
+            Files.delete( fs.getPath( "/lib/x.war" ) );
+        }
+    }
+
+    private File createEar() throws IOException
+    {
+        byte[] jar = createZip( "META-INF/MANIFEST.MF", MANIFEST.getBytes( StandardCharsets.UTF_8 ) );
+        byte[] war = createZip( "WEB-INF/lib/y.jar", jar );
+
+        ByteArrayOutputStream tgz = new ByteArrayOutputStream();
+        try ( TarArchiveOutputStream tar = new TarArchiveOutputStream( new GzipCompressorOutputStream( tgz ) ) )
+        {
+            TarArchiveEntry entry = new TarArchiveEntry( "dir/a.txt" );
+            entry.setSize( 1 );
+            tar.putArchiveEntry( entry );
+            tar.write( 'a' );
+            tar.closeArchiveEntry();
+        }
+
+        File ear = folder.newFile( "app.ear" );
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( ear ) )
+        {
+            zip.putArchiveEntry( new ZipArchiveEntry( "lib/x.war" ) );
+            zip.write( war );
+            zip.closeArchiveEntry();
+            zip.putArchiveEntry( new ZipArchiveEntry( "lib/z.tar.gz" ) );
+            zip.write( tgz.toByteArray() );
+            zip.closeArchiveEntry();
+        }
+        return ear;
+    }
+
+    private byte[] createZip( String name, byte[] content ) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( result ) )
+        {
+            zip.putArchiveEntry( new ZipArchiveEntry( name ) );
+            zip.write( content );
+            zip.closeArchiveEntry();
+        }
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.perf;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZOutputFile;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Builds a reproducible corpus of synthetic inputs for the {@link Macrobenchmark}. All content is
+ * derived from a fixed seed so that the same specification always produces identical files. Each
+ * shape stresses a different part of the unpack:
+ * <ul>
+ *     <li>{@code nested} - an ear of wars of jars, exercising recursion and the nested archive paths.</li>
+ *     <li>{@code tiny} - a single zip holding a very large number of tiny entries, exercising per-entry overhead.</li>
+ *     <li>{@code huge} - a tar.gz holding a single very large entry, exercising raw decompression throughput.</li>
+ *     <li>{@code mixed} - a directory of archives using each of the supported compressors.</li>
+ * </ul>
+ * The sizes are configured by the system properties listed on {@link Spec}.
+ */
+public class CorpusGenerator
+{
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * A fixed modification time so that the generated archives are identical byte for byte.
+     */
+    private static final long TIME = 1_500_000_000_000L;
+
+    private final Spec spec;
+
+    private final Random random;
+
+    public CorpusGenerator( Spec spec )
+    {
+        this.spec = spec;
+        this.random = new Random( spec.seed );
+    }
+
+    /**
+     * Generates the corpus within the directory, unless already generated there from the same
+     * specification.
+     *
+     * @param directory the corpus directory.
+     * @return the inputs keyed by shape.
+     * @throws IOException if an error occurs.
+     */
+    public Map<String, File> generate( File directory ) throws IOException
+    {
+        File root = new File( directory, spec.toString() );
+        Map<String, File> result = new LinkedHashMap<>();
+
+        result.put( "nested", new File( root, "app.ear" ) );
+        result.put( "tiny", new File( root, "tiny.zip" ) );
+        result.put( "huge", new File( root, "huge.tar.gz" ) );
+        result.put( "mixed", new File( root, "mixed" ) );
+
+        File complete = new File( root, ".complete" );
+        if ( ! complete.exists() )
+        {
+            FileUtils.deleteDirectory( root );
+            root.mkdirs();
+
+            writeNested( result.get( "nested" ) );
+            writeTiny( result.get( "tiny" ) );
+            writeHuge( result.get( "huge" ) );
+            writeMixed( result.get( "mixed" ) );
+
+            complete.createNewFile();
+        }
+        return result;
+    }
+
+    /**
+     * Writes an archive nested {@link Spec#depth} levels deep, each level holding {@link Spec#breadth}
+     * archives of the next. The innermost jars hold {@link Spec#entries} class-like entries.
+     */
+    private void writeNested( File target ) throws IOException
+    {
+        Files.write( target.toPath(), nested( spec.depth ) );
+    }
+
+    private byte[] nested( int level ) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( result ) )
+        {
+            if ( level <= 1 )
+            {
+                for ( int i = 0; i < spec.entries; i++ )
+                {
+                    write( zip, new ZipArchiveEntry( "org/example/p" + i % 16 + "/Class" + i + ".class" ),
+                           content( 512 + random.nextInt( 8 * 1024 ) ) );
+                }
+            }
+            else
+            {
+                String suffix = level == 2 ? ".jar" : ".war";
+                String directory = level == 2 ? "WEB-INF/lib/" : "lib/";
+                for ( int i = 0; i < spec.breadth; i++ )
+                {
+                    write( zip, new ZipArchiveEntry( directory + "module" + i + suffix ), nested( level - 1 ) );
+                }
+                write( zip, new ZipArchiveEntry( "META-INF/MANIFEST.MF" ), content( 256 ) );
+            }
+        }
+        return result.toByteArray();
+    }
+
+    private void writeTiny( File target ) throws IOException
+    {
+        try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( target ) )
+        {
+            for ( int i = 0; i < spec.tinyEntries; i++ )
+            {
+                write( zip, new ZipArchiveEntry( "d" + i % 1000 + "/f" + i + ".txt" ), content( 1 + random.nextInt( 64 ) ) );
+            }
+        }
+    }
+
+    /**
+     * Streams a single entry of {@link Spec#hugeSize} bytes so the corpus never needs to be held in memory.
+     */
+    private void writeHuge( File target ) throws IOException
+    {
+        try ( TarArchiveOutputStream tar = new TarArchiveOutputStream(
+                        new GzipCompressorOutputStream( Files.newOutputStream( target.toPath() ) ) ) )
+        {
+            tar.setBigNumberMode( TarArchiveOutputStream.BIGNUMBER_POSIX );
+            TarArchiveEntry entry = new TarArchiveEntry( "data/huge.bin" );
+            entry.setModTime( TIME );
+            entry.setSize( spec.hugeSize );
+            tar.putArchiveEntry( entry );
+
+            for ( long remaining = spec.hugeSize; remaining > 0; remaining -= BLOCK_SIZE )
+            {
+                tar.write( content( (int) Math.min( BLOCK_SIZE, remaining ) ) );
+            }
+            tar.closeArchiveEntry();
+        }
+    }
+
+    private void writeMixed( File directory ) throws IOException
+    {
+        directory.mkdirs();
+
+        for ( int i = 0; i < spec.mixed; i++ )
+        {
+            writeTar( Files.newOutputStream( new File( directory, "plain" + i + ".tar" ).toPath() ) );
+            writeTar( new GzipCompressorOutputStream( Files.newOutputStream( new File( directory, "gzip" + i + ".tar.gz" ).toPath() ) ) );
+            writeTar( new BZip2CompressorOutputStream( Files.newOutputStream( new File( directory, "bzip" + i + ".tar.bz2" ).toPath() ) ) );
+            writeTar( new XZCompressorOutputStream( Files.newOutputStream( new File( directory, "xz" + i + ".tar.xz" ).toPath() ) ) );
+            writeTar( new ZstdCompressorOutputStream( Files.newOutputStream( new File( directory, "zstd" + i + ".tar.zst" ).toPath() ) ) );
+
+            try ( ZipArchiveOutputStream zip = new ZipArchiveOutputStream( new File( directory, "zip" + i + ".zip" ) ) )
+            {
+                for ( int j = 0; j < spec.entries; j++ )
+                {
+                    write( zip, new ZipArchiveEntry( "dir/file" + j + ".txt" ), content( 1024 + random.nextInt( 16 * 1024 ) ) );
+                }
+            }
+
+            try ( SevenZOutputFile sevenZ = new SevenZOutputFile( new File( directory, "sevenz" + i + ".7z" ) ) )
+            {
+                for ( int j = 0; j < spec.entries; j++ )
+                {
+                    SevenZArchiveEntry entry = new SevenZArchiveEntry();
+                    entry.setName( "dir/file" + j + ".txt" );
+                    sevenZ.putArchiveEntry( entry );
+                    sevenZ.write( content( 1024 + random.nextInt( 16 * 1024 ) ) );
+                    sevenZ.closeArchiveEntry();
+                }
+            }
+        }
+    }
+
+    private void writeTar( OutputStream output ) throws IOException
+    {
+        try ( TarArchiveOutputStream tar = new TarArchiveOutputStream( output ) )
+        {
+            for ( int j = 0; j < spec.entries; j++ )
+            {
+                byte[] content = content( 1024 + random.nextInt( 16 * 1024 ) );
+                TarArchiveEntry entry = new TarArchiveEntry( "dir/file" + j + ".txt" );
+                entry.setSize( content.length );
+                write( tar, entry, content );
+            }
+        }
+    }
+
+    private void write( ArchiveOutputStream output, ArchiveEntry entry, byte[] content ) throws IOException
+    {
+        if ( entry instanceof ZipArchiveEntry )
+        {
+            ( (ZipArchiveEntry) entry ).setTime( TIME );
+        }
+        else if ( entry instanceof TarArchiveEntry )
+        {
+            ( (TarArchiveEntry) entry ).setModTime( TIME );
+        }
+        output.putArchiveEntry( entry );
+        output.write( content );
+        output.closeArchiveEntry();
+    }
+
+    /**
+     * @return content that is roughly half random and half repeated text, so it compresses about as well as typical
+     * archive contents.
+     */
+    private byte[] content( int size )
+    {
+        byte[] result = new byte[size];
+        random.nextBytes( result );
+
+        byte[] text = "public static void main( String[] args ) ".getBytes();
+        for ( int i = size / 2; i < size; i++ )
+        {
+            result[i] = text[i % text.length];
+        }
+        return result;
+    }
+
+    /**
+     * The size of the corpus. Each value may be overridden by the system property
+     * {@code exploder.perf.<name>} e.g. {@code -Dexploder.perf.tinyEntries=1000000}.
+     */
+    public static class Spec
+    {
+        /**
+         * The number of archive levels of the nested shape (ear, war, jar).
+         */
+        int depth = Integer.getInteger( "exploder.perf.depth", 3 );
+
+        /**
+         * The number of archives held by each non-innermost level of the nested shape.
+         */
+        int breadth = Integer.getInteger( "exploder.perf.breadth", 8 );
+
+        /**
+         * The number of entries of each innermost nested archive and of each mixed archive.
+         */
+        int entries = Integer.getInteger( "exploder.perf.entries", 200 );
+
+        /**
+         * The number of entries of the tiny shape.
+         */
+        int tinyEntries = Integer.getInteger( "exploder.perf.tinyEntries", 250000 );
+
+        /**
+         * The size in bytes of the single entry of the huge shape.
+         */
+        long hugeSize = Long.getLong( "exploder.perf.hugeSize", 1024L * 1024 * 1024 );
+
+        /**
+         * The number of archives per compressor of the mixed shape.
+         */
+        int mixed = Integer.getInteger( "exploder.perf.mixed", 4 );
+
+        long seed = Long.getLong( "exploder.perf.seed", 42 );
+
+        public Spec depth( int depth )
+        {
+            this.depth = depth;
+            return this;
+        }
+
+        public Spec breadth( int breadth )
+        {
+            this.breadth = breadth;
+            return this;
+        }
+
+        public Spec entries( int entries )
+        {
+            this.entries = entries;
+            return this;
+        }
+
+        public Spec tinyEntries( int tinyEntries )
+        {
+            this.tinyEntries = tinyEntries;
+            return this;
+        }
+
+        public Spec hugeSize( long hugeSize )
+        {
+            this.hugeSize = hugeSize;
+            return this;
+        }
+
+        public Spec mixed( int mixed )
+        {
+            this.mixed = mixed;
+            return this;
+        }
+
+        /**
+         * @return a name identifying the specification, used to cache the generated corpus.
+         */
+        @Override
+        public String toString()
+        {
+            return "corpus-" + Integer.toHexString(
+                            Arrays.hashCode( new long[] { depth, breadth, entries, tinyEntries, hugeSize, mixed, seed } ) );
+        }
+    }
+}
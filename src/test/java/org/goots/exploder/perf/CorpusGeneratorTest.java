@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.perf;
+
+import org.apache.commons.io.FileUtils;
+import org.goots.exploder.Exploder;
+import org.goots.exploder.InternalException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class CorpusGeneratorTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final CorpusGenerator.Spec spec =
+                    new CorpusGenerator.Spec().depth( 3 ).breadth( 2 ).entries( 3 ).tinyEntries( 50 ).hugeSize( 100_000 ).mixed( 1 );
+
+    @Test
+    public void testCorpusIsReproducible() throws IOException
+    {
+        Map<String, File> first = new CorpusGenerator( spec ).generate( folder.newFolder() );
+        Map<String, File> second = new CorpusGenerator( spec ).generate( folder.newFolder() );
+
+        for ( String shape : new String[] { "nested", "tiny", "huge" } )
+        {
+            assertEquals( shape, FileUtils.checksumCRC32( first.get( shape ) ), FileUtils.checksumCRC32( second.get( shape ) ) );
+        }
+    }
+
+    @Test
+    public void testCorpusUnpacks() throws IOException, InternalException
+    {
+        Map<String, File> corpus = new CorpusGenerator( spec ).generate( folder.newFolder() );
+        Map<String, Integer> counts = new HashMap<>();
+
+        for ( Map.Entry<String, File> input : corpus.entrySet() )
+        {
+            new Exploder().useTargetDirectory( folder.newFolder() ).unpack( ( b, f ) -> {
+                String suffix = f.getName().substring( f.getName().lastIndexOf( '.' ) + 1 );
+                counts.merge( input.getKey() + '.' + suffix, 1, Integer::sum );
+            }, input.getValue() );
+        }
+
+        // Two wars of two jars of three classes.
+        assertEquals( 2 * 2 * 3, (int) counts.get( "nested.class" ) );
+        assertEquals( 50, (int) counts.get( "tiny.txt" ) );
+        assertEquals( 1, (int) counts.get( "huge.bin" ) );
+        // Seven formats of three entries.
+        assertEquals( 7 * 3, (int) counts.get( "mixed.txt" ) );
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2018 Red Hat, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.goots.exploder.perf;
+
+import org.apache.commons.io.FileUtils;
+import org.goots.exploder.Exploder;
+import org.goots.exploder.InternalException;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Explodes each shape of the {@link CorpusGenerator} corpus with each of a set of {@link Exploder}
+ * configurations, recording wall time, throughput and peak memory to a CSV report. This is not run
+ * by default ; use the {@code perf} profile:
+ * <pre>
+ * mvn test -Pperf [-Dexploder.perf.baseline=previous.csv] [-Dexploder.perf.tinyEntries=1000000]
+ * </pre>
+ * If a baseline report (e.g. from a previous version) is given each result is compared with it and
+ * the run fails if any wall time has regressed by more than {@code exploder.perf.tolerance} (default 0.1).
+ */
+public class Macrobenchmark
+{
+    static final String HEADER = "version,java,corpus,configuration,wall_ms,bytes,files,bytes_per_sec,files_per_sec,peak_rss_bytes,peak_heap_bytes";
+
+    private final Logger logger = LoggerFactory.getLogger( getClass() );
+
+    private final File work = new File( System.getProperty( "exploder.perf.directory", "target/perf" ) );
+
+    private final int iterations = Integer.getInteger( "exploder.perf.iterations", 3 );
+
+    private final String version = System.getProperty( "exploder.perf.version", "unknown" );
+
+    @Test
+    public void run() throws IOException, InternalException
+    {
+        Map<String, File> corpus = new CorpusGenerator( new CorpusGenerator.Spec() ).generate( new File( work, "corpus" ) );
+        List<Result> results = new ArrayList<>();
+
+        for ( Map.Entry<String, File> input : corpus.entrySet() )
+        {
+            for ( Map.Entry<String, Configuration> configuration : getConfigurations().entrySet() )
+            {
+                results.add( measure( input.getKey(), input.getValue(), configuration.getKey(), configuration.getValue() ) );
+            }
+        }
+
+        File report = new File( System.getProperty( "exploder.perf.report", new File( work, "report.csv" ).getPath() ) );
+        report.getParentFile().mkdirs();
+        try ( PrintWriter writer = new PrintWriter( Files.newBufferedWriter( report.toPath(), StandardCharsets.UTF_8 ) ) )
+        {
+            writer.println( HEADER );
+            results.forEach( r -> writer.println( r.toCsv() ) );
+        }
+        logger.info( "Wrote report to {}", report );
+
+        String baseline = System.getProperty( "exploder.perf.baseline" );
+        if ( baseline != null )
+        {
+            assertTrue( "Performance regressed against " + baseline, compare( results, new File( baseline ) ) );
+        }
+    }
+
+    /**
+     * @return the configurations to compare, keyed by name. Each is applied to a new Exploder.
+     */
+    private Map<String, Configuration> getConfigurations()
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        Map<String, Configuration> result = new LinkedHashMap<>();
+
+        result.put( "default", e -> e );
+        result.put( "jdkInflater", Exploder::useJdkInflater );
+        result.put( "threads", e -> e.useThreads( threads ) );
+        result.put( "materialize", Exploder::materializeIntermediates );
+        result.put( "staging", e -> e.useStaging( 64 * 1024, 256 * 1024 * 1024 ) );
+        result.put( "deduplication", Exploder::useDeduplication );
+        result.put( "writeBehind", e -> e.useWriteBehind( 4, 64 * 1024 * 1024 ) );
+        result.put( "threadsWriteBehind", e -> e.useThreads( threads ).useWriteBehind( 4, 64 * 1024 * 1024 ) );
+
+        return result;
+    }
+
+    /**
+     * Runs one unmeasured iteration followed by the configured number of measured iterations, reporting the median.
+     */
+    private Result measure( String corpus, File input, String name, Configuration configuration )
+                    throws IOException, InternalException
+    {
+        List<Result> runs = new ArrayList<>();
+
+        for ( int i = 0; i <= iterations; i++ )
+        {
+            File target = new File( work, "output" );
+            FileUtils.deleteDirectory( target );
+            System.gc();
+            resetPeaks();
+
+            long start = System.nanoTime();
+            // Processors are supplied so that staging applies.
+            configuration.apply( new Exploder().useTargetDirectory( target ) ).unpack( ( b, f ) -> { }, input );
+            long wall = ( System.nanoTime() - start ) / 1_000_000;
+
+            Result result = new Result( corpus, name, wall, getPeakRss(), getPeakHeap() );
+            try ( Stream<Path> files = Files.walk( target.toPath() ) )
+            {
+                files.filter( Files::isRegularFile ).forEach( f -> {
+                    result.files++;
+                    result.bytes += f.toFile().length();
+                } );
+            }
+            if ( i > 0 )
+            {
+                runs.add( result );
+            }
+            logger.info( "{} {} {}: {}ms", corpus, name, i == 0 ? "warmup" : "run " + i, wall );
+        }
+        FileUtils.deleteDirectory( new File( work, "output" ) );
+
+        runs.sort( ( a, b ) -> Long.compare( a.wall, b.wall ) );
+        return runs.get( runs.size() / 2 );
+    }
+
+    /**
+     * Compares the results with a baseline report, logging the change in wall time of each.
+     *
+     * @return false if any result regressed by more than the tolerance.
+     */
+    private boolean compare( List<Result> results, File baseline ) throws IOException
+    {
+        double tolerance = Double.parseDouble( System.getProperty( "exploder.perf.tolerance", "0.1" ) );
+        List<String> columns = Arrays.asList( HEADER.split( "," ) );
+        Map<String, Long> previous = new HashMap<>();
+
+        for ( String line : Files.readAllLines( baseline.toPath(), StandardCharsets.UTF_8 ) )
+        {
+            String[] values = line.split( "," );
+            if ( ! line.equals( HEADER ) && values.length == columns.size() )
+            {
+                previous.put( values[columns.indexOf( "corpus" )] + '/' + values[columns.indexOf( "configuration" )],
+                              Long.parseLong( values[columns.indexOf( "wall_ms" )] ) );
+            }
+        }
+
+        boolean result = true;
+        for ( Result r : results )
+        {
+            Long wall = previous.get( r.corpus + '/' + r.configuration );
+            if ( wall != null && wall > 0 )
+            {
+                double change = ( r.wall - wall ) / (double) wall;
+                logger.info( "{} {}: {}ms against {}ms ({}%)", r.corpus, r.configuration, r.wall, wall,
+                             String.format( "%+.1f", change * 100 ) );
+                if ( change > tolerance )
+                {
+                    logger.error( "{} {} regressed beyond the tolerance of {}%", r.corpus, r.configuration, tolerance * 100 );
+                    result = false;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resets the peak resident set size (Linux only) and heap usage so each run reports its own peak.
+     */
+    private void resetPeaks()
+    {
+        try
+        {
+            Files.write( Paths.get( "/proc/self/clear_refs" ), "5".getBytes( StandardCharsets.US_ASCII ) );
+        }
+        catch ( IOException | UnsupportedOperationException e )
+        {
+            logger.debug( "Unable to reset peak RSS: {}", e.toString() );
+        }
+        ManagementFactory.getMemoryPoolMXBeans().forEach( MemoryPoolMXBean::resetPeakUsage );
+    }
+
+    /**
+     * @return the peak resident set size of the JVM in bytes, or -1 if unavailable.
+     */
+    private long getPeakRss()
+    {
+        try
+        {
+            for ( String line : Files.readAllLines( Paths.get( "/proc/self/status" ), StandardCharsets.US_ASCII ) )
+            {
+                if ( line.startsWith( "VmHWM:" ) )
+                {
+                    return Long.parseLong( line.replaceAll( "[^0-9]", "" ) ) * 1024;
+                }
+            }
+        }
+        catch ( IOException | NumberFormatException e )
+        {
+            logger.debug( "Unable to read peak RSS: {}", e.toString() );
+        }
+        return -1;
+    }
+
+    private long getPeakHeap()
+    {
+        return ManagementFactory.getMemoryPoolMXBeans()
+                                .stream()
+                                .filter( p -> p.getType() == MemoryType.HEAP )
+                                .mapToLong( p -> p.getPeakUsage().getUsed() )
+                                .sum();
+    }
+
+    @FunctionalInterface
+    private interface Configuration
+    {
+        Exploder apply( Exploder exploder ) throws InternalException;
+    }
+
+    private class Result
+    {
+        final String corpus;
+
+        final String configuration;
+
+        final long wall;
+
+        final long peakRss;
+
+        final long peakHeap;
+
+        long bytes;
+
+        long files;
+
+        Result( String corpus, String configuration, long wall, long peakRss, long peakHeap )
+        {
+            this.corpus = corpus;
+            this.configuration = configuration;
+            this.wall = wall;
+            this.peakRss = peakRss;
+            this.peakHeap = peakHeap;
+        }
+
+        String toCsv()
+        {
+            double seconds = Math.max( wall, 1 ) / 1000.0;
+
+            return String.join( ",", version, System.getProperty( "java.version" ), corpus, configuration,
+                                Long.toString( wall ), Long.toString( bytes ), Long.toString( files ),
+                                Long.toString( (long) ( bytes / seconds ) ), Long.toString( (long) ( files / seconds ) ),
+                                Long.toString( peakRss ), Long.toString( peakHeap ) );
+        }
+    }
+}